@@ -186,7 +186,7 @@ public class Cloader {
          * Mainly aim to bypass a bug of the crazyflie firmware that prevents
          * reset before normal CRTP communication
          */
-        Header header = new Header(0, CrtpPort.LINKCTRL);
+        Header header = Header.valueOf(0, CrtpPort.LINKCTRL);
         CrtpPacket pk = new CrtpPacket(header.getByte(), new byte[]{1, 2, 3, (byte) cpuId});
         this.mDriver.sendPacket(pk);
 
@@ -600,7 +600,7 @@ public class Cloader {
     }
 
     private void sendBootloaderPacket(byte[] data) {
-        Header header = new Header((byte) 0xFF);
+        Header header = Header.valueOf((byte) 0xFF);
         CrtpPacket pk = new CrtpPacket(header.getByte(), data);
         this.mDriver.sendPacket(pk);
     }
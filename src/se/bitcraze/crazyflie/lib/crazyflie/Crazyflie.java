@@ -29,9 +29,11 @@ package se.bitcraze.crazyflie.lib.crazyflie;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,11 +43,15 @@ import se.bitcraze.crazyflie.lib.crazyradio.RadioDriver;
 import se.bitcraze.crazyflie.lib.crtp.CommanderPacket;
 import se.bitcraze.crazyflie.lib.crtp.CrtpDriver;
 import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacketPool;
+import se.bitcraze.crazyflie.lib.crtp.PacketCapture;
 import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
 import se.bitcraze.crazyflie.lib.log.Logg;
 import se.bitcraze.crazyflie.lib.param.Param;
+import se.bitcraze.crazyflie.lib.param.ParamValueCache;
 import se.bitcraze.crazyflie.lib.toc.TocCache;
 import se.bitcraze.crazyflie.lib.toc.TocFetchFinishedListener;
+import se.bitcraze.crazyflie.lib.toc.TocFetcher;
 
 public class Crazyflie {
 
@@ -54,10 +60,13 @@ public class Crazyflie {
     private CrtpDriver mDriver;
     private Thread mIncomingPacketHandlerThread;
 
-    private LinkedBlockingDeque<CrtpPacket> mResendQueue = new LinkedBlockingDeque<CrtpPacket>();
+    private final PendingRequestTable mResendQueue = new PendingRequestTable();
     private Thread mResendQueueHandlerThread;
 
-    private Set<DataListener> mDataListeners = new CopyOnWriteArraySet<DataListener>();
+    private final PortDispatcher mPortDispatcher = new PortDispatcher();
+    private volatile PacketCapture mPacketCapture;
+
+    private Set<RequestFailedListener> mRequestFailedListeners = new CopyOnWriteArraySet<RequestFailedListener>();
 
     private State mState = State.DISCONNECTED;
 
@@ -66,6 +75,10 @@ public class Crazyflie {
     private Param mParam;
     private Logg mLogg;
     private TocCache mTocCache;
+    private ParamValueCache mParamValueCache;
+    private int mTocFetchWindowSize = TocFetcher.DEFAULT_WINDOW_SIZE;
+    private boolean mConcurrentSetup = false;
+    private final SetupTiming mSetupTiming = new SetupTiming();
 
     /**
      * State of the connection procedure
@@ -99,12 +112,17 @@ public class Crazyflie {
      */
     public Crazyflie(CrtpDriver driver, File tocCacheDir) {
         this.mDriver = driver;
-        this.mTocCache = new TocCache(tocCacheDir);
+        this.mTocCache = TocCache.getShared(tocCacheDir);
+        if (tocCacheDir != null) {
+            this.mParamValueCache = new ParamValueCache(tocCacheDir);
+        }
     }
 
     public void connect() {
         mLogger.debug("connect()");
         mState = State.INITIALIZED;
+        mSetupTiming.markConnectStart();
+        mPortDispatcher.start();
 
         // try to connect
         try {
@@ -151,6 +169,7 @@ public class Crazyflie {
             if(mResendQueueHandlerThread != null) {
                 mResendQueueHandlerThread.interrupt();
             }
+            mPortDispatcher.shutdown();
             mState = State.DISCONNECTED;
         }
     }
@@ -165,7 +184,22 @@ public class Crazyflie {
     }
 
     /**
-     * Send a packet through the driver interface
+     * Cache for the last known param values, which are shown while the values are read again after connecting.
+     * Enabled by default if a TOC cache dir is used. Used for connections started after this call.
+     *
+     * @param paramValueCache value cache, null to disable
+     */
+    public void setParamValueCache(ParamValueCache paramValueCache) {
+        this.mParamValueCache = paramValueCache;
+    }
+
+    public ParamValueCache getParamValueCache() {
+        return mParamValueCache;
+    }
+
+    /**
+     * Send a packet through the driver interface.
+     * A {@link se.bitcraze.crazyflie.lib.crtp.PooledCrtpPacket} is owned by the Crazyflie after this call.
      *
      * @param packet packet to send to the Crazyflie
      */
@@ -176,19 +210,47 @@ public class Crazyflie {
                 mLogger.warn("Packet is null.");
                 return;
             }
-            mDriver.sendPacket(packet);
-
             if (packet.getExpectedReply() != null && packet.getExpectedReply().length > 0) {
                 //add packet to resend queue
-                if(!mResendQueue.contains(packet)) {
-                    mResendQueue.add(packet);
-                } else {
-                    mLogger.warn("Packet already exists in Queue.");
+                // the resend queue holds its own reference, the driver releases the other one
+                CrtpPacketPool.retain(packet);
+                CrtpPacket replacedPacket = mResendQueue.add(packet, System.nanoTime());
+                if (replacedPacket != null) {
+                    if (replacedPacket != packet) {
+                        mLogger.warn("Packet with the same expected reply already exists in Queue, replacing it.");
+                    }
+                    CrtpPacketPool.release(replacedPacket);
                 }
             }
+            sendToDriver(packet);
+        } else {
+            CrtpPacketPool.release(packet);
         }
     }
 
+    private void sendToDriver(CrtpPacket packet) {
+        PacketCapture capture = mPacketCapture;
+        if (capture != null) {
+            // the driver may release the packet right away
+            capture.recordOutbound(packet);
+        }
+        mDriver.sendPacket(packet);
+    }
+
+    /**
+     * Record all sent and received packets, e.g. to replay the session with a {@code ReplayDriver} (test sources).
+     * The capture is not closed by the Crazyflie.
+     *
+     * @param packetCapture capture or null to stop recording
+     */
+    public void setPacketCapture(PacketCapture packetCapture) {
+        this.mPacketCapture = packetCapture;
+    }
+
+    public PacketCapture getPacketCapture() {
+        return mPacketCapture;
+    }
+
     /**
      * Callback called for every packet received to check if we are
      * waiting for a packet like this. If so, then remove it from the queue.
@@ -196,51 +258,81 @@ public class Crazyflie {
      * @param packet received packet
      */
     private void checkReceivedPackets(CrtpPacket packet) {
-        // compare received packet with expectedReplies in resend queue
-        for(CrtpPacket resendQueuePacket : mResendQueue) {
-            if(isPacketMatchingExpectedReply(resendQueuePacket, packet)) {
-                mResendQueue.remove(resendQueuePacket);
-                // mLogger.debug("QUEUE REMOVE: " + resendQueuePacket);
-                break;
-            }
+        // look up the received packet by header and payload prefix in the resend queue
+        CrtpPacket resendQueuePacket = mResendQueue.match(packet);
+        if (resendQueuePacket != null) {
+            // mLogger.debug("QUEUE REMOVE: " + resendQueuePacket);
+            CrtpPacketPool.release(resendQueuePacket);
         }
     }
 
-    private boolean isPacketMatchingExpectedReply(CrtpPacket resendQueuePacket, CrtpPacket packet) {
-        //Only check equality for the amount of bytes in expected reply
-        byte[] expectedReply = resendQueuePacket.getExpectedReply();
-        for(int i = 0; i < expectedReply.length;i++) {
-            if(expectedReply[i] != packet.getPayload()[i]) {
-                return false;
-            }
+    /**
+     * Set the retry policy for packets with an expected reply.
+     *
+     * @param initialTimeoutMs time to wait for a reply before the first resend
+     * @param maxTimeoutMs upper bound for the timeout, which doubles with every resend
+     * @param maxAttempts number of transmissions before the request is reported as failed
+     */
+    public void setResendPolicy(long initialTimeoutMs, long maxTimeoutMs, int maxAttempts) {
+        mResendQueue.setRetryPolicy(initialTimeoutMs, maxTimeoutMs, maxAttempts);
+    }
+
+    /**
+     * Set the number of TOC element requests that are sent without waiting for a reply.
+     * Used for TOC fetches started after this call.
+     *
+     * @param windowSize number of outstanding requests (1 = sequential fetching)
+     */
+    public void setTocFetchWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1.");
         }
-        return true;
+        this.mTocFetchWindowSize = windowSize;
     }
 
+    public int getTocFetchWindowSize() {
+        return mTocFetchWindowSize;
+    }
+
+    /**
+     * Resends all packets whose reply deadline has expired and reports
+     * packets that reached the max number of attempts.
+     */
     private class ResendQueueHandler implements Runnable {
 
+        private final List<CrtpPacket> mResendPackets = new ArrayList<CrtpPacket>();
+        private final List<CrtpPacket> mFailedPackets = new ArrayList<CrtpPacket>();
+
         public void run() {
             mLogger.debug("ResendQueueHandlerThread was started.");
             while(true) {
-                if (!mResendQueue.isEmpty()) {
-                    CrtpPacket resendPacket = mResendQueue.poll();
-                    if (resendPacket != null) {
-                        mLogger.debug("RESEND: {} ID: {}", resendPacket, resendPacket.getPayload()[0]);
-                        sendPacket(resendPacket);
-                    }
-                }
                 try {
-                    Thread.sleep(500);
+                    mResendQueue.awaitExpired();
                 } catch (InterruptedException e) {
                     mLogger.debug("ResendQueueHandlerThread was interrupted.");
                     break;
                 }
+                mResendQueue.pollExpired(System.nanoTime(), mResendPackets, mFailedPackets);
+                for (CrtpPacket resendPacket : mResendPackets) {
+                    mLogger.debug("RESEND: {} ID: {}", resendPacket, resendPacket.getPayload()[0]);
+                    if (mDriver.isConnected()) {
+                        sendToDriver(resendPacket);
+                    } else {
+                        CrtpPacketPool.release(resendPacket);
+                    }
+                }
+                for (CrtpPacket failedPacket : mFailedPackets) {
+                    mLogger.warn("No reply after {} attempts: {}", mResendQueue.getMaxAttempts(), failedPacket);
+                    notifyRequestFailed(failedPacket, mResendQueue.getMaxAttempts());
+                    CrtpPacketPool.release(failedPacket);
+                }
+                mResendPackets.clear();
+                mFailedPackets.clear();
             }
         }
 
     }
 
-
     /**
      * Called when first packet arrives from Crazyflie.
      * This is used to determine if we are connected to something that is answering.
@@ -253,6 +345,7 @@ public class Crazyflie {
         if (this.mState == State.INITIALIZED) {
             mLogger.info("Initial packet has been received! => State.CONNECTED");
             this.mState = State.CONNECTED;
+            mSetupTiming.markLinkEstablished();
             //self.link_established.call(self.link_uri)
             //FIXME: Crazyflie should not call mDriver.notifyConnected()
             this.mDriver.notifyConnected();
@@ -268,6 +361,7 @@ public class Crazyflie {
     public void startConnectionSetup_BLE() {
         if (this.mState == State.INITIALIZED) {
             this.mState = State.CONNECTED;
+            mSetupTiming.markLinkEstablished();
             startConnectionSetup();
         }
     }
@@ -290,30 +384,50 @@ public class Crazyflie {
         mLogger.info("We are connected [{}], requesting connection setup...", connection);
 
         mParam = new Param(this);
+        mLogg = new Logg(this);
+
+        // setup is finished when both TOCs are fetched
+        final AtomicInteger pendingTocs = new AtomicInteger(2);
+        final ParamValueCache paramValueCache = mParamValueCache;
+
         //must be defined first to be usable in Log TocFetchFinishedListener
         final TocFetchFinishedListener paramTocFetchFinishedListener = new TocFetchFinishedListener(CrtpPort.PARAMETERS) {
             public void tocFetchFinished() {
                 //_param_toc_updated_cb(self):
                 mLogger.info("Param TOC finished updating.");
+                mSetupTiming.markParamTocFinished();
                 //mParam.requestUpdateOfAllParams();
-                //TODO: should be set only after log, param, mems are all updated
-                mState = State.SETUP_FINISHED;
-                //TODO: fix hacky-di-hack
-                mDriver.notifySetupFinished();
+                if (paramValueCache != null) {
+                    // last known values are available right away, the actual values are read in the background
+                    mParam.restoreValues(paramValueCache, mDriver.getLinkId());
+                }
+                if (pendingTocs.decrementAndGet() == 0) {
+                    setupFinished();
+                }
             }
         };
 
-        mLogg = new Logg(this);
+        final boolean concurrent = mConcurrentSetup;
         TocFetchFinishedListener loggTocFetchFinishedListener = new TocFetchFinishedListener(CrtpPort.LOGGING) {
             public void tocFetchFinished() {
                 mLogger.info("Logg TOC finished updating.");
-                //after log toc has been fetched, fetch param toc
-                mParam.refreshToc(paramTocFetchFinishedListener, mTocCache);
+                mSetupTiming.markLogTocFinished();
+                if (!concurrent) {
+                    //after log toc has been fetched, fetch param toc
+                    mParam.refreshToc(paramTocFetchFinishedListener, mTocCache);
+                }
+                if (pendingTocs.decrementAndGet() == 0) {
+                    setupFinished();
+                }
             }
         };
         //mLog.refreshToc(self._log_toc_updated_cb, self._toc_cache);
-        if (mDriver instanceof RadioDriver) {
+        if (mDriver.supportsTocFetch()) {
             mLogg.refreshToc(loggTocFetchFinishedListener, mTocCache);
+            if (concurrent) {
+                // log and param TOC are on different ports, so they can be fetched at the same time
+                mParam.refreshToc(paramTocFetchFinishedListener, mTocCache);
+            }
         } else {
             //TODO: shortcut for BLELink
             mState = State.SETUP_FINISHED; //important, otherwise BLE keeps trying to reconnect
@@ -323,6 +437,36 @@ public class Crazyflie {
         //TODO: self.mem.refresh(self._mems_updated_cb)
     }
 
+    private void setupFinished() {
+        //TODO: should be set only after log, param, mems are all updated
+        mState = State.SETUP_FINISHED;
+        mSetupTiming.markSetupFinished();
+        mLogger.info("Connection setup finished: {}", mSetupTiming);
+        //TODO: fix hacky-di-hack
+        mDriver.notifySetupFinished();
+    }
+
+    /**
+     * Fetch the log and param TOC at the same time during connection setup
+     * instead of one after the other. Used for connections started after this call.
+     *
+     * @param concurrentSetup true to fetch both TOCs in parallel
+     */
+    public void setConcurrentSetup(boolean concurrentSetup) {
+        this.mConcurrentSetup = concurrentSetup;
+    }
+
+    public boolean isConcurrentSetup() {
+        return mConcurrentSetup;
+    }
+
+    /**
+     * @return timing breakdown of the last connection setup
+     */
+    public SetupTiming getSetupTiming() {
+        return mSetupTiming;
+    }
+
     public Param getParam() {
         return mParam;
     }
@@ -351,7 +495,7 @@ public class Crazyflie {
     public void addDataListener(DataListener dataListener) {
         if (dataListener != null) {
             mLogger.debug("Adding data listener for port [" + dataListener.getPort() + "]");
-            this.mDataListeners.add(dataListener);
+            this.mPortDispatcher.addListener(dataListener);
         }
     }
 
@@ -363,30 +507,66 @@ public class Crazyflie {
     public void removeDataListener(DataListener dataListener) {
         if (dataListener != null) {
             mLogger.debug("Removing data listener for port [" + dataListener.getPort() + "]");
-            this.mDataListeners.remove(dataListener);
+            this.mPortDispatcher.removeListener(dataListener);
         }
     }
 
     //public void removeDataListener(CrtpPort); ?
 
+    /**
+     * Returns the dispatcher of received packets, e.g. to configure the mailboxes of asynchronous
+     * data listeners or to read the dispatch latency and mailbox depth per port
+     *
+     * @return port dispatcher
+     */
+    public PortDispatcher getPortDispatcher() {
+        return mPortDispatcher;
+    }
+
     /**
      * Notify data listeners that a packet was received
      *
      * @param packet received packet
      */
     private void notifyDataReceived(CrtpPacket packet) {
-        boolean found = false;
-        for (DataListener dataListener : mDataListeners) {
-            if (dataListener.getPort() == packet.getHeader().getPort()) {
-                dataListener.dataReceived(packet);
-                found = true;
-            }
-        }
+        boolean found = mPortDispatcher.dispatch(packet);
         if (!found) {
             //mLogger.warn("Got packet on port [" + packet.getHeader().getPort() + "] but found no data listener to handle it.");
         }
     }
 
+    /** REQUEST FAILED LISTENER **/
+
+    /**
+     * Add a listener for requests on a specific port that did not get a reply
+     *
+     * @param requestFailedListener listener that should be added
+     */
+    public void addRequestFailedListener(RequestFailedListener requestFailedListener) {
+        if (requestFailedListener != null) {
+            this.mRequestFailedListeners.add(requestFailedListener);
+        }
+    }
+
+    /**
+     * Remove a listener for requests that did not get a reply
+     *
+     * @param requestFailedListener listener that should be removed
+     */
+    public void removeRequestFailedListener(RequestFailedListener requestFailedListener) {
+        if (requestFailedListener != null) {
+            this.mRequestFailedListeners.remove(requestFailedListener);
+        }
+    }
+
+    private void notifyRequestFailed(CrtpPacket packet, int attempts) {
+        for (RequestFailedListener requestFailedListener : mRequestFailedListeners) {
+            if (requestFailedListener.getPort() == packet.getHeader().getPort()) {
+                requestFailedListener.requestFailed(packet, attempts);
+            }
+        }
+    }
+
     /**
      * Handles incoming packets and sends the data to the correct listeners
      */
@@ -401,11 +581,17 @@ public class Crazyflie {
                 if(packet != null) {
                     //All-packet callbacks
                     //self.cf.packet_received.call(pk)
+                    PacketCapture capture = mPacketCapture;
+                    if (capture != null) {
+                        capture.recordInbound(packet);
+                    }
 
                     checkForInitialPacketCallback(packet);
                     checkReceivedPackets(packet);
 
                     notifyDataReceived(packet);
+                    // pooled packets are only valid during dispatch
+                    CrtpPacketPool.release(packet);
                 }
             }
             mLogger.debug("IncomingPacketHandlerThread was interrupted.");
@@ -33,6 +33,10 @@ import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
 /**
  * Interface for receiving notifications about data received from the Crazyflie.
  *
+ * By default listeners are called on the thread that handles incoming packets, so a slow listener
+ * delays all other ports. A listener created with <code>async = true</code> is called on the executor
+ * of its port instead (see {@link PortDispatcher}).
+ *
  * TODO:
  * -add channel?
  * -add port mask (or use CrtpPort.ALL?)
@@ -42,15 +46,36 @@ import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
 public abstract class DataListener {
 
     private CrtpPort mPort;
+    private final boolean mAsync;
 
     public DataListener(CrtpPort port) {
+        this(port, false);
+    }
+
+    /**
+     * @param port port to listen to
+     * @param async if true, the listener is called on the executor of the port
+     */
+    public DataListener(CrtpPort port, boolean async) {
         mPort = port;
+        mAsync = async;
     }
 
     public CrtpPort getPort() {
         return mPort;
     }
 
+    public boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * Called for every packet received on the port of this listener.
+     * The packet may be a pooled packet that is reused after the callback returns,
+     * so copy what is needed instead of keeping a reference to the packet.
+     *
+     * @param packet received packet
+     */
     public abstract void dataReceived(CrtpPacket packet);
 
 }
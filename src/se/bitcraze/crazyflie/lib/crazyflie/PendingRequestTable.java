@@ -0,0 +1,424 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crazyflie;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacketPool;
+
+/**
+ * Table of sent packets that are waiting for a reply from the Crazyflie.
+ *
+ * Requests are indexed by their header (port and channel) plus the expected reply prefix,
+ * so inserting, matching a received packet and removing a request are O(1).
+ * All requests are additionally kept in a list ordered by deadline, which makes
+ * finding the next request to resend O(1) as well.
+ *
+ * Every request has its own deadline and attempt counter. When a request expires it is either
+ * rescheduled with an exponentially growing timeout or, after the max number of attempts, dropped.
+ *
+ * Only the first {@link #MAX_PREFIX_LENGTH} bytes of the expected reply are part of the key.
+ * A received packet whose key is found is only a reply if it also matches the rest of the expected reply,
+ * like the complete comparison of the old resend queue.
+ */
+/* package private */ final class PendingRequestTable {
+
+    /**
+     * Max number of expected reply bytes that are used as part of the key
+     */
+    static final int MAX_PREFIX_LENGTH = 6;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    public static final long DEFAULT_INITIAL_TIMEOUT_MS = 200;
+    public static final long DEFAULT_MAX_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    private long mInitialTimeoutNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INITIAL_TIMEOUT_MS);
+    private long mMaxTimeoutNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_TIMEOUT_MS);
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * A packet waiting for its reply
+     */
+    private static final class PendingRequest {
+        private final long mKey;
+        private final CrtpPacket mPacket;
+        private final byte[] mExpectedReply;
+        private long mDeadline;
+        private int mAttempts = 1;
+        private PendingRequest mPrev;
+        private PendingRequest mNext;
+
+        private PendingRequest(long key, CrtpPacket packet, long deadline) {
+            this.mKey = key;
+            this.mPacket = packet;
+            this.mExpectedReply = packet.getExpectedReply();
+            this.mDeadline = deadline;
+        }
+
+        private boolean isReply(byte[] payload) {
+            if (payload.length < mExpectedReply.length) {
+                return false;
+            }
+            // the prefix is already part of the key
+            for (int i = MAX_PREFIX_LENGTH; i < mExpectedReply.length; i++) {
+                if (payload[i] != mExpectedReply[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // open addressing hash table (linear probing) keyed by PendingRequest.mKey
+    private PendingRequest[] mSlots = new PendingRequest[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    // number of pending requests per (header, prefix length), used to only probe lengths that are in use
+    private final int[][] mPrefixLengthCounts = new int[256][MAX_PREFIX_LENGTH + 1];
+
+    // list of pending requests ordered by deadline
+    private PendingRequest mHead;
+    private PendingRequest mTail;
+
+    /**
+     * Set the retry policy for requests that are added from now on.
+     *
+     * @param initialTimeoutMs time to wait for a reply after the first transmission
+     * @param maxTimeoutMs upper bound for the timeout, which doubles with every attempt
+     * @param maxAttempts number of transmissions before a request is considered failed
+     */
+    public synchronized void setRetryPolicy(long initialTimeoutMs, long maxTimeoutMs, int maxAttempts) {
+        if (initialTimeoutMs <= 0 || maxTimeoutMs < initialTimeoutMs || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid retry policy: " + initialTimeoutMs + "ms, " + maxTimeoutMs + "ms, " + maxAttempts + " attempts");
+        }
+        this.mInitialTimeoutNs = TimeUnit.MILLISECONDS.toNanos(initialTimeoutMs);
+        this.mMaxTimeoutNs = TimeUnit.MILLISECONDS.toNanos(maxTimeoutMs);
+        this.mMaxAttempts = maxAttempts;
+    }
+
+    public synchronized int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Add a packet that expects a reply and has just been sent for the first time.
+     * A pending request with the same header and expected reply prefix is replaced,
+     * because the table keeps one request per key.
+     * The table takes over one reference of the packet.
+     *
+     * @param packet packet with an expected reply
+     * @param now current time (System.nanoTime())
+     * @return the replaced packet (the reference is handed back to the caller) or <code>null</code>
+     */
+    public synchronized CrtpPacket add(CrtpPacket packet, long now) {
+        byte[] expectedReply = packet.getExpectedReply();
+        if (expectedReply == null || expectedReply.length == 0) {
+            throw new IllegalArgumentException("Packet has no expected reply.");
+        }
+        int header = normalizeHeader(packet.getHeaderByte());
+        int prefixLength = Math.min(expectedReply.length, MAX_PREFIX_LENGTH);
+        long key = createKey(header, expectedReply, prefixLength);
+
+        CrtpPacket replaced = null;
+        PendingRequest existing = remove(key);
+        if (existing != null) {
+            replaced = existing.mPacket;
+        }
+
+        PendingRequest request = new PendingRequest(key, packet, now + mInitialTimeoutNs);
+        put(request);
+        mPrefixLengthCounts[header][prefixLength]++;
+        insertOrdered(request);
+        if (mHead == request) {
+            // wake up awaitExpired(), the earliest deadline has changed
+            notifyAll();
+        }
+        return replaced;
+    }
+
+    /**
+     * Check if a received packet is a reply to a pending request and remove that request.
+     * Longer expected replies are preferred over shorter ones.
+     *
+     * @param packet received packet
+     * @return the matched request packet (the reference is handed back to the caller) or <code>null</code>
+     */
+    public synchronized CrtpPacket match(CrtpPacket packet) {
+        if (mSize == 0) {
+            return null;
+        }
+        int header = normalizeHeader(packet.getHeaderByte());
+        byte[] payload = packet.getPayload();
+        int[] prefixLengthCounts = mPrefixLengthCounts[header];
+        for (int prefixLength = Math.min(payload.length, MAX_PREFIX_LENGTH); prefixLength > 0; prefixLength--) {
+            if (prefixLengthCounts[prefixLength] == 0) {
+                continue;
+            }
+            long key = createKey(header, payload, prefixLength);
+            PendingRequest request = find(key);
+            if (request != null && request.isReply(payload)) {
+                remove(key);
+                return request.mPacket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Block until at least one pending request has expired.
+     *
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public synchronized void awaitExpired() throws InterruptedException {
+        while (true) {
+            if (mHead == null) {
+                wait();
+            } else {
+                long remaining = mHead.mDeadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+    }
+
+    /**
+     * Handle all expired requests in one pass. Requests with attempts left are rescheduled
+     * with twice the previous timeout (up to the max timeout) and added to resendPackets,
+     * the table keeps them until the reply arrives. Requests without attempts left are removed
+     * and added to failedPackets. The caller gets one reference for every returned packet.
+     *
+     * @param now current time (System.nanoTime())
+     * @param resendPackets list to which packets that must be resent are added
+     * @param failedPackets list to which packets that reached the max number of attempts are added
+     */
+    public synchronized void pollExpired(long now, List<CrtpPacket> resendPackets, List<CrtpPacket> failedPackets) {
+        PendingRequest rescheduled = null;
+        while (mHead != null && mHead.mDeadline - now <= 0) {
+            PendingRequest request = mHead;
+            if (request.mAttempts >= mMaxAttempts) {
+                remove(request.mKey);
+                failedPackets.add(request.mPacket);
+            } else {
+                unlink(request);
+                long timeout = Math.min(mInitialTimeoutNs << Math.min(request.mAttempts, 30), mMaxTimeoutNs);
+                request.mAttempts++;
+                request.mDeadline = now + timeout;
+                // collect first, inserting now could put the request in front of the remaining expired ones
+                request.mNext = rescheduled;
+                rescheduled = request;
+                CrtpPacketPool.retain(request.mPacket);
+                resendPackets.add(request.mPacket);
+            }
+        }
+        while (rescheduled != null) {
+            PendingRequest next = rescheduled.mNext;
+            rescheduled.mNext = null;
+            insertOrdered(rescheduled);
+            rescheduled = next;
+        }
+    }
+
+    /**
+     * Get the earliest deadline of all pending requests.
+     *
+     * @return earliest deadline or <code>Long.MAX_VALUE</code> if there are no pending requests
+     */
+    public synchronized long getEarliestDeadline() {
+        return (mHead != null) ? mHead.mDeadline : Long.MAX_VALUE;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Remove all pending requests and release their packets
+     */
+    public synchronized void clear() {
+        for (PendingRequest request = mHead; request != null; request = request.mNext) {
+            CrtpPacketPool.release(request.mPacket);
+        }
+        mSlots = new PendingRequest[INITIAL_CAPACITY];
+        mSize = 0;
+        for (int[] counts : mPrefixLengthCounts) {
+            Arrays.fill(counts, 0);
+        }
+        mHead = null;
+        mTail = null;
+    }
+
+    /* Key handling */
+
+    /**
+     * Bits 2 and 3 of the header are link specific and not part of the port/channel address
+     */
+    private static int normalizeHeader(byte header) {
+        return header & 0xF3;
+    }
+
+    private static long createKey(int header, byte[] prefix, int prefixLength) {
+        long key = header | ((long) prefixLength << 8);
+        for (int i = 0; i < prefixLength; i++) {
+            key |= ((long) (prefix[i] & 0xFF)) << (16 + 8 * i);
+        }
+        return key;
+    }
+
+    private static int prefixLengthOf(long key) {
+        return (int) ((key >>> 8) & 0xFF);
+    }
+
+    private static int headerOf(long key) {
+        return (int) (key & 0xFF);
+    }
+
+    private int indexFor(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (mSlots.length - 1);
+    }
+
+    /* Hash table */
+
+    private void put(PendingRequest request) {
+        if ((mSize + 1) * 2 > mSlots.length) {
+            resize(mSlots.length * 2);
+        }
+        int index = indexFor(request.mKey);
+        while (mSlots[index] != null) {
+            index = (index + 1) & (mSlots.length - 1);
+        }
+        mSlots[index] = request;
+        mSize++;
+    }
+
+    private PendingRequest find(long key) {
+        int mask = mSlots.length - 1;
+        int index = indexFor(key);
+        while (mSlots[index] != null) {
+            if (mSlots[index].mKey == key) {
+                return mSlots[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    private PendingRequest remove(long key) {
+        int mask = mSlots.length - 1;
+        int index = indexFor(key);
+        while (mSlots[index] != null) {
+            if (mSlots[index].mKey == key) {
+                PendingRequest request = mSlots[index];
+                mSlots[index] = null;
+                mSize--;
+                shiftBack(index);
+                mPrefixLengthCounts[headerOf(key)][prefixLengthOf(key)]--;
+                unlink(request);
+                return request;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    // backward shift deletion keeps probe sequences intact without tombstones
+    private void shiftBack(int freeIndex) {
+        int mask = mSlots.length - 1;
+        int index = (freeIndex + 1) & mask;
+        while (mSlots[index] != null) {
+            int home = indexFor(mSlots[index].mKey);
+            boolean movable = (index > freeIndex) ? (home <= freeIndex || home > index) : (home <= freeIndex && home > index);
+            if (movable) {
+                mSlots[freeIndex] = mSlots[index];
+                mSlots[index] = null;
+                freeIndex = index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        PendingRequest[] oldSlots = mSlots;
+        mSlots = new PendingRequest[capacity];
+        mSize = 0;
+        for (PendingRequest request : oldSlots) {
+            if (request != null) {
+                put(request);
+            }
+        }
+    }
+
+    /* Deadline list */
+
+    private void insertOrdered(PendingRequest request) {
+        // deadlines are mostly increasing, so search from the tail
+        PendingRequest prev = mTail;
+        while (prev != null && prev.mDeadline - request.mDeadline > 0) {
+            prev = prev.mPrev;
+        }
+        request.mPrev = prev;
+        request.mNext = (prev != null) ? prev.mNext : mHead;
+        if (request.mNext != null) {
+            request.mNext.mPrev = request;
+        } else {
+            mTail = request;
+        }
+        if (prev != null) {
+            prev.mNext = request;
+        } else {
+            mHead = request;
+        }
+    }
+
+    private void unlink(PendingRequest request) {
+        if (request.mPrev != null) {
+            request.mPrev.mNext = request.mNext;
+        } else {
+            mHead = request.mNext;
+        }
+        if (request.mNext != null) {
+            request.mNext.mPrev = request.mPrev;
+        } else {
+            mTail = request.mPrev;
+        }
+        request.mPrev = null;
+        request.mNext = null;
+    }
+
+}
@@ -0,0 +1,405 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyflie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacketPool;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer.OverflowPolicy;
+
+/**
+ * Dispatches received packets to the {@link DataListener}s of their port.
+ *
+ * Listeners are kept in a table indexed by port, so a packet only visits the listeners of its own port.
+ * Synchronous listeners are called on the thread that handles incoming packets. Asynchronous listeners
+ * ({@link DataListener#isAsync()}) are called on an executor thread of their port that is fed through a
+ * bounded mailbox, so a slow listener only delays its own port.
+ *
+ * When a mailbox is full, the overflow policy of the port decides:
+ * <ul>
+ * <li>BLOCK: the incoming packet handler waits (backpressure on all ports)</li>
+ * <li>DROP_OLDEST: the oldest packet in the mailbox is dropped (default)</li>
+ * <li>DROP_NEWEST: the new packet is dropped</li>
+ * </ul>
+ *
+ * The dispatch latency of a port is the time from the start of the dispatch until all listeners
+ * of the port have been called, including the time in the mailbox.
+ */
+public final class PortDispatcher {
+
+    final Logger mLogger = LoggerFactory.getLogger(this.getClass().getSimpleName());
+
+    public static final int DEFAULT_MAILBOX_CAPACITY = 64;
+
+    private final PortEntry[] mEntries;
+    // no executors are started after a shutdown until start() is called
+    private volatile boolean mShutdown = false;
+
+    /* package private */ PortDispatcher() {
+        CrtpPort[] ports = CrtpPort.values();
+        this.mEntries = new PortEntry[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            mEntries[i] = new PortEntry(ports[i]);
+        }
+    }
+
+    /* package private */ void addListener(DataListener listener) {
+        mEntries[listener.getPort().ordinal()].add(listener);
+    }
+
+    /* package private */ void removeListener(DataListener listener) {
+        mEntries[listener.getPort().ordinal()].remove(listener);
+    }
+
+    /**
+     * Dispatch a packet to the listeners of its port. Asynchronous listeners get their own reference
+     * to pooled packets, so the caller can release the packet when this method returns.
+     *
+     * @param packet received packet
+     * @return true if the port has listeners
+     */
+    /* package private */ boolean dispatch(CrtpPacket packet) {
+        CrtpPort port = packet.getHeader().getPort();
+        if (port == null) {
+            return false;
+        }
+        return mEntries[port.ordinal()].dispatch(packet);
+    }
+
+    /**
+     * Allow executors to be started again after a shutdown
+     */
+    /* package private */ void start() {
+        mShutdown = false;
+    }
+
+    /**
+     * Stop all executor threads and drop the packets in the mailboxes.
+     * Packets for asynchronous listeners are dropped until {@link #start()} is called.
+     */
+    /* package private */ void shutdown() {
+        mShutdown = true;
+        for (PortEntry entry : mEntries) {
+            entry.shutdown();
+        }
+    }
+
+    /**
+     * Configure the mailbox of the asynchronous listeners of a port.
+     * Takes effect when the executor of the port is started the next time, e.g. on the next connect.
+     *
+     * @param port port
+     * @param capacity max number of packets waiting for the listeners
+     * @param overflowPolicy what to do when the mailbox is full
+     */
+    public void setMailbox(CrtpPort port, int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy can not be null");
+        }
+        PortEntry entry = mEntries[port.ordinal()];
+        entry.mCapacity = capacity;
+        entry.mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return number of packets waiting in the mailbox of the port
+     */
+    public int getMailboxDepth(CrtpPort port) {
+        PortExecutor executor = mEntries[port.ordinal()].mExecutor;
+        return (executor != null) ? executor.size() : 0;
+    }
+
+    /**
+     * @return highest number of packets that were waiting in the mailbox of the port
+     */
+    public int getMailboxMaxDepth(CrtpPort port) {
+        return mEntries[port.ordinal()].mMaxDepth;
+    }
+
+    /**
+     * @return number of packets dropped because the mailbox of the port was full
+     */
+    public long getDropCount(CrtpPort port) {
+        return mEntries[port.ordinal()].mDropCount.get();
+    }
+
+    /**
+     * @return number of packets dispatched to the listeners of the port
+     */
+    public long getDispatchCount(CrtpPort port) {
+        return mEntries[port.ordinal()].mDispatchCount.get();
+    }
+
+    /**
+     * @return average dispatch latency of the port in microseconds
+     */
+    public long getAverageLatency(CrtpPort port) {
+        PortEntry entry = mEntries[port.ordinal()];
+        long count = entry.mDispatchCount.get();
+        return (count > 0) ? TimeUnit.NANOSECONDS.toMicros(entry.mTotalLatency.get() / count) : 0;
+    }
+
+    /**
+     * @return highest dispatch latency of the port in microseconds
+     */
+    public long getMaxLatency(CrtpPort port) {
+        return TimeUnit.NANOSECONDS.toMicros(mEntries[port.ordinal()].mMaxLatency.get());
+    }
+
+    /**
+     * Listeners and statistics of one port
+     */
+    private final class PortEntry {
+
+        private final CrtpPort mPort;
+        private volatile DataListener[] mSyncListeners = new DataListener[0];
+        private volatile DataListener[] mAsyncListeners = new DataListener[0];
+
+        private volatile int mCapacity = DEFAULT_MAILBOX_CAPACITY;
+        private volatile OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+        private volatile PortExecutor mExecutor;
+
+        private final AtomicLong mDispatchCount = new AtomicLong();
+        private final AtomicLong mTotalLatency = new AtomicLong();
+        private final AtomicLong mMaxLatency = new AtomicLong();
+        private final AtomicLong mDropCount = new AtomicLong();
+        private volatile int mMaxDepth = 0;
+
+        PortEntry(CrtpPort port) {
+            this.mPort = port;
+        }
+
+        synchronized void add(DataListener listener) {
+            if (listener.isAsync()) {
+                mAsyncListeners = added(mAsyncListeners, listener);
+            } else {
+                mSyncListeners = added(mSyncListeners, listener);
+            }
+        }
+
+        synchronized void remove(DataListener listener) {
+            mSyncListeners = removed(mSyncListeners, listener);
+            mAsyncListeners = removed(mAsyncListeners, listener);
+        }
+
+        boolean dispatch(CrtpPacket packet) {
+            long start = System.nanoTime();
+            DataListener[] syncListeners = mSyncListeners;
+            DataListener[] asyncListeners = mAsyncListeners;
+            for (DataListener listener : syncListeners) {
+                listener.dataReceived(packet);
+            }
+            if (asyncListeners.length > 0) {
+                // latency is recorded by the executor
+                PortExecutor executor = executor();
+                if (executor != null) {
+                    executor.submit(packet, start);
+                }
+            } else if (syncListeners.length > 0) {
+                recordLatency(System.nanoTime() - start);
+            }
+            return syncListeners.length > 0 || asyncListeners.length > 0;
+        }
+
+        private synchronized PortExecutor executor() {
+            if (mExecutor == null && !mShutdown) {
+                PortExecutor executor = new PortExecutor(this, mCapacity, mOverflowPolicy);
+                Thread thread = new Thread(executor, "PortExecutor-" + mPort);
+                executor.mThread = thread;
+                thread.start();
+                mExecutor = executor;
+            }
+            return mExecutor;
+        }
+
+        synchronized void shutdown() {
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+                mExecutor = null;
+            }
+        }
+
+        void recordLatency(long latency) {
+            mDispatchCount.incrementAndGet();
+            mTotalLatency.addAndGet(latency);
+            long max;
+            while (latency > (max = mMaxLatency.get())) {
+                if (mMaxLatency.compareAndSet(max, latency)) {
+                    break;
+                }
+            }
+        }
+
+        private DataListener[] added(DataListener[] listeners, DataListener listener) {
+            if (Arrays.asList(listeners).contains(listener)) {
+                return listeners;
+            }
+            DataListener[] result = Arrays.copyOf(listeners, listeners.length + 1);
+            result[listeners.length] = listener;
+            return result;
+        }
+
+        private DataListener[] removed(DataListener[] listeners, DataListener listener) {
+            List<DataListener> result = new ArrayList<DataListener>(Arrays.asList(listeners));
+            if (!result.remove(listener)) {
+                return listeners;
+            }
+            return result.toArray(new DataListener[result.size()]);
+        }
+    }
+
+    /**
+     * Calls the asynchronous listeners of one port with the packets from a bounded mailbox
+     */
+    private final class PortExecutor implements Runnable {
+
+        private final PortEntry mEntry;
+        private final OverflowPolicy mOverflowPolicy;
+        private final CrtpPacket[] mPackets;
+        private final long[] mStartTimes;
+        private int mHead = 0;
+        private int mCount = 0;
+        private boolean mStopped = false;
+        private Thread mThread;
+
+        PortExecutor(PortEntry entry, int capacity, OverflowPolicy overflowPolicy) {
+            this.mEntry = entry;
+            this.mOverflowPolicy = overflowPolicy;
+            this.mPackets = new CrtpPacket[capacity];
+            this.mStartTimes = new long[capacity];
+        }
+
+        synchronized int size() {
+            return mCount;
+        }
+
+        synchronized void submit(CrtpPacket packet, long startTime) {
+            if (mCount == mPackets.length) {
+                switch (mOverflowPolicy) {
+                    case BLOCK:
+                        try {
+                            while (mCount == mPackets.length && !mStopped) {
+                                wait();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            mEntry.mDropCount.incrementAndGet();
+                            return;
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        mEntry.mDropCount.incrementAndGet();
+                        return;
+                    case DROP_OLDEST:
+                    default:
+                        CrtpPacketPool.release(take());
+                        mEntry.mDropCount.incrementAndGet();
+                        break;
+                }
+            }
+            if (mStopped) {
+                return;
+            }
+            // the caller releases its reference after dispatching
+            CrtpPacketPool.retain(packet);
+            int tail = (mHead + mCount) % mPackets.length;
+            mPackets[tail] = packet;
+            mStartTimes[tail] = startTime;
+            mCount++;
+            if (mCount > mEntry.mMaxDepth) {
+                mEntry.mMaxDepth = mCount;
+            }
+            notifyAll();
+        }
+
+        public void run() {
+            while (true) {
+                CrtpPacket packet;
+                long startTime;
+                synchronized (this) {
+                    try {
+                        while (mCount == 0 && !mStopped) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (mStopped) {
+                        break;
+                    }
+                    startTime = mStartTimes[mHead];
+                    packet = take();
+                    notifyAll();
+                }
+                for (DataListener listener : mEntry.mAsyncListeners) {
+                    try {
+                        listener.dataReceived(packet);
+                    } catch (RuntimeException e) {
+                        // keep the executor alive for the other listeners of the port
+                        mLogger.error("Data listener on port " + mEntry.mPort + " failed: " + e.getMessage(), e);
+                    }
+                }
+                CrtpPacketPool.release(packet);
+                mEntry.recordLatency(System.nanoTime() - startTime);
+            }
+        }
+
+        synchronized void shutdown() {
+            mStopped = true;
+            while (mCount > 0) {
+                CrtpPacketPool.release(take());
+            }
+            notifyAll();
+            if (mThread != null) {
+                mThread.interrupt();
+            }
+        }
+
+        private CrtpPacket take() {
+            CrtpPacket packet = mPackets[mHead];
+            mPackets[mHead] = null;
+            mHead = (mHead + 1) % mPackets.length;
+            mCount--;
+            return packet;
+        }
+    }
+
+}
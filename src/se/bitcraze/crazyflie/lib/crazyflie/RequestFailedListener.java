@@ -0,0 +1,58 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crazyflie;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
+
+/**
+ * Listener for requests on a specific port that did not get a reply from the Crazyflie,
+ * even after the max number of resends.
+ */
+public abstract class RequestFailedListener {
+
+    private CrtpPort mPort;
+
+    public RequestFailedListener(CrtpPort port) {
+        mPort = port;
+    }
+
+    public CrtpPort getPort() {
+        return mPort;
+    }
+
+    /**
+     * Called when a request has been given up.
+     * The packet may be a pooled packet that is reused after the callback returns.
+     *
+     * @param packet the request without reply
+     * @param attempts number of times the request has been sent
+     */
+    public abstract void requestFailed(CrtpPacket packet, int attempts);
+
+}
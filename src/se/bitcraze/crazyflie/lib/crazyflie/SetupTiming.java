@@ -0,0 +1,109 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crazyflie;
+
+/**
+ * Timing breakdown of the connection setup.
+ *
+ * All durations are in milliseconds, -1 if the phase has not finished (yet).
+ * The TOC durations are measured from the start of the connection setup,
+ * so in concurrent setup mode both fetches start at the same time.
+ */
+public class SetupTiming {
+
+    private volatile long mConnectStart = -1;
+    private volatile long mLinkEstablished = -1;
+    private volatile long mLogTocFinished = -1;
+    private volatile long mParamTocFinished = -1;
+    private volatile long mSetupFinished = -1;
+
+    /* package private */ void markConnectStart() {
+        mConnectStart = System.nanoTime();
+        mLinkEstablished = -1;
+        mLogTocFinished = -1;
+        mParamTocFinished = -1;
+        mSetupFinished = -1;
+    }
+
+    /* package private */ void markLinkEstablished() {
+        mLinkEstablished = System.nanoTime();
+    }
+
+    /* package private */ void markLogTocFinished() {
+        mLogTocFinished = System.nanoTime();
+    }
+
+    /* package private */ void markParamTocFinished() {
+        mParamTocFinished = System.nanoTime();
+    }
+
+    /* package private */ void markSetupFinished() {
+        mSetupFinished = System.nanoTime();
+    }
+
+    /**
+     * @return time from connect() until the first packet was received
+     */
+    public long getLinkTime() {
+        return elapsedMs(mConnectStart, mLinkEstablished);
+    }
+
+    /**
+     * @return time from link established until the log TOC was fetched
+     */
+    public long getLogTocTime() {
+        return elapsedMs(mLinkEstablished, mLogTocFinished);
+    }
+
+    /**
+     * @return time from link established until the param TOC was fetched
+     */
+    public long getParamTocTime() {
+        return elapsedMs(mLinkEstablished, mParamTocFinished);
+    }
+
+    /**
+     * @return time from connect() until the setup was finished
+     */
+    public long getTotalTime() {
+        return elapsedMs(mConnectStart, mSetupFinished);
+    }
+
+    private static long elapsedMs(long start, long end) {
+        if (start == -1 || end == -1) {
+            return -1;
+        }
+        return (end - start) / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "SetupTiming [link=" + getLinkTime() + "ms, logToc=" + getLogTocTime() + "ms, paramToc="
+                + getParamTocTime() + "ms, total=" + getTotalTime() + "ms]";
+    }
+}
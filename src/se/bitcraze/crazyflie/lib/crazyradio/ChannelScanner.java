@@ -0,0 +1,327 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans for Crazyflies by sending null packets on every channel and data rate.
+ *
+ * Compared to the slow scan in {@link Crazyradio#scanChannels(boolean)} the scanner
+ * <ul>
+ * <li>does not sleep between probes, the dongle already waits for the ack</li>
+ * <li>probes the channels that answered in previous scans and the known channels first</li>
+ * <li>stops as soon as the requested number of Crazyflies was found</li>
+ * <li>only counts Crazyflies that use the configured radio address</li>
+ * <li>reports every hit to a {@link ScanListener} while the scan is still running</li>
+ * </ul>
+ *
+ * The retry count of the dongle is lowered while scanning, the previous radio settings are restored afterwards.
+ * Hits are cached per radio address, so the scanner should be reused (see {@link Crazyradio#getChannelScanner()}).
+ */
+public class ChannelScanner {
+
+    final Logger mLogger = LoggerFactory.getLogger(this.getClass().getSimpleName());
+
+    /** Scan all channels, used with {@link #setMaxResults(int)} */
+    public static final int ALL = 0;
+
+    private static final int CHANNEL_COUNT = 126;
+    private static final int MAX_CACHED_HITS = 8;
+    private static final byte[] DEFAULT_ADDRESS = new byte[] {(byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7};
+
+    private final Crazyradio mRadio;
+    private final RadioAck mAck = new RadioAck();
+
+    // hits of previous scans per radio address, most recent first
+    private final Map<Long, LinkedList<ConnectionData>> mCachedHits = new HashMap<Long, LinkedList<ConnectionData>>();
+    private final List<ConnectionData> mKnownChannels = new ArrayList<ConnectionData>();
+
+    private int[] mDataRates = new int[] {Crazyradio.DR_250KPS, Crazyradio.DR_1MPS, Crazyradio.DR_2MPS};
+    private int mMaxResults = ALL;
+    private int mProbeRetries = 1;
+    private byte[] mAddress;
+    private volatile boolean mCancelled = false;
+    private int mProbeCount = 0;
+
+    public ChannelScanner(Crazyradio radio) {
+        this.mRadio = radio;
+    }
+
+    /**
+     * Set the data rates to scan, in the order they are scanned
+     *
+     * @param dataRates data rates in range 0-2
+     */
+    public void setDataRates(int... dataRates) {
+        for (int dataRate : dataRates) {
+            if (dataRate < 0 || dataRate > 2) {
+                throw new IllegalArgumentException("Data rate must be an int value between 0 and 2");
+            }
+        }
+        this.mDataRates = dataRates.clone();
+    }
+
+    /**
+     * Stop the scan once this many Crazyflies were found
+     *
+     * @param maxResults number of Crazyflies or {@link #ALL}
+     */
+    public void setMaxResults(int maxResults) {
+        if (maxResults < 0) {
+            throw new IllegalArgumentException("Max results must not be negative");
+        }
+        this.mMaxResults = maxResults;
+    }
+
+    /**
+     * Set the number of retries per probe. Less retries make the scan faster, but weak links may be missed.
+     *
+     * @param retries number of retries in range 0-15
+     */
+    public void setProbeRetries(int retries) {
+        if (retries < 0 || retries > 15) {
+            throw new IllegalArgumentException("Count must be in range 0-15");
+        }
+        this.mProbeRetries = retries;
+    }
+
+    /**
+     * Only scan for Crazyflies with this radio address
+     *
+     * @param address radio address with a length of 5 bytes or null to use the current address of the radio
+     */
+    public void setAddress(byte[] address) {
+        if (address != null && address.length != 5) {
+            throw new IllegalArgumentException("Radio address must be 5 bytes long");
+        }
+        this.mAddress = (address != null) ? address.clone() : null;
+    }
+
+    /**
+     * Add a channel that is probed before the other channels, e.g. the last channel the user connected to
+     *
+     * @param connectionData channel and data rate
+     */
+    public synchronized void addKnownChannel(ConnectionData connectionData) {
+        if (!mKnownChannels.contains(connectionData)) {
+            mKnownChannels.add(connectionData);
+        }
+    }
+
+    public synchronized void clearKnownChannels() {
+        mKnownChannels.clear();
+    }
+
+    /**
+     * Forget the hits of previous scans
+     */
+    public synchronized void clearCache() {
+        mCachedHits.clear();
+    }
+
+    /**
+     * Stop a running scan after the current probe. Can be called from any thread, also from the {@link ScanListener}.
+     */
+    public void cancel() {
+        this.mCancelled = true;
+    }
+
+    /**
+     * @return number of probes sent by the last scan
+     */
+    public int getProbeCount() {
+        return mProbeCount;
+    }
+
+    /**
+     * Scan for Crazyflies. Blocks until the scan is finished.
+     *
+     * @param listener receives the hits while scanning, may be null
+     * @return channels and data rates of the Crazyflies that were found, in the order they were found
+     * @throws IllegalStateException if the Crazyradio is not attached
+     */
+    public List<ConnectionData> scan(ScanListener listener) {
+        return scan(listener, mMaxResults);
+    }
+
+    /**
+     * Scan for Crazyflies with a limit for this scan only. Blocks until the scan is finished.
+     *
+     * @param listener receives the hits while scanning, may be null
+     * @param maxResults stop the scan once this many Crazyflies were found, {@link #ALL} to scan all channels
+     * @return channels and data rates of the Crazyflies that were found, in the order they were found
+     * @throws IllegalStateException if the Crazyradio is not attached
+     */
+    public synchronized List<ConnectionData> scan(ScanListener listener, int maxResults) {
+        if (maxResults < 0) {
+            throw new IllegalArgumentException("Max results must not be negative");
+        }
+        if (!mRadio.isUsbConnected()) {
+            throw new IllegalStateException("Crazyradio not attached");
+        }
+        mCancelled = false;
+        mProbeCount = 0;
+
+        int oldChannel = mRadio.getChannel();
+        int oldDatarate = mRadio.getDatarate();
+        int oldArc = mRadio.getArc();
+        byte[] oldAddress = mRadio.getAddress();
+
+        byte[] address = mAddress;
+        if (address == null) {
+            address = (oldAddress != null) ? oldAddress : DEFAULT_ADDRESS;
+        }
+        Long addressKey = toKey(address);
+        LinkedList<ConnectionData> cachedHits = mCachedHits.get(addressKey);
+        if (cachedHits == null) {
+            cachedHits = new LinkedList<ConnectionData>();
+            mCachedHits.put(addressKey, cachedHits);
+        }
+
+        List<ConnectionData> result = new ArrayList<ConnectionData>();
+        boolean[][] probed = new boolean[3][CHANNEL_COUNT];
+        try {
+            if (mAddress != null) {
+                mRadio.setAddress(address);
+            }
+            // old dongle firmware does not support changing the retry count
+            if (oldArc >= 0) {
+                mRadio.setArc(mProbeRetries);
+            }
+
+            mLogger.debug("Scanning...");
+            // cached hits and known channels first, hits that do not answer anymore are forgotten
+            Iterator<ConnectionData> it = cachedHits.iterator();
+            while (it.hasNext() && !isDone(result, maxResults)) {
+                ConnectionData candidate = it.next();
+                if (!probe(candidate.getChannel(), candidate.getDataRate(), probed, result, listener)) {
+                    it.remove();
+                }
+            }
+            for (int i = 0; i < mKnownChannels.size() && !isDone(result, maxResults); i++) {
+                ConnectionData candidate = mKnownChannels.get(i);
+                probe(candidate.getChannel(), candidate.getDataRate(), probed, result, listener);
+            }
+            // full sweep, grouped by data rate
+            for (int i = 0; i < mDataRates.length && !isDone(result, maxResults); i++) {
+                for (int channel = 0; channel < CHANNEL_COUNT && !isDone(result, maxResults); channel++) {
+                    probe(channel, mDataRates[i], probed, result, listener);
+                }
+            }
+        } finally {
+            restore(oldChannel, oldDatarate, oldArc, oldAddress);
+        }
+
+        for (int i = result.size() - 1; i >= 0; i--) {
+            ConnectionData hit = result.get(i);
+            cachedHits.remove(hit);
+            cachedHits.addFirst(hit);
+        }
+        while (cachedHits.size() > MAX_CACHED_HITS) {
+            cachedHits.removeLast();
+        }
+
+        mLogger.debug("Scan finished after " + mProbeCount + " probes, found " + result.size() + " Crazyflie(s)");
+        if (listener != null) {
+            listener.scanFinished(result);
+        }
+        return result;
+    }
+
+    private boolean isDone(List<ConnectionData> result, int maxResults) {
+        return mCancelled || (maxResults != ALL && result.size() >= maxResults);
+    }
+
+    /**
+     * Probe a channel, unless it was already probed during this scan
+     *
+     * @return true if a Crazyflie answered
+     */
+    private boolean probe(int channel, int datarate, boolean[][] probed, List<ConnectionData> result, ScanListener listener) {
+        if (probed[datarate][channel]) {
+            return result.contains(new ConnectionData(channel, datarate));
+        }
+        probed[datarate][channel] = true;
+
+        if (mRadio.getDatarate() != datarate) {
+            mRadio.setDatarate(datarate);
+        }
+        mRadio.setChannel(channel);
+        mProbeCount++;
+        if (!mRadio.sendPacket(Crazyradio.NULL_PACKET, mAck)) {
+            throw new IllegalStateException("Crazyradio not attached");
+        }
+        if (!mAck.isAck()) {
+            return false;
+        }
+        ConnectionData hit = new ConnectionData(channel, datarate);
+        result.add(hit);
+        mLogger.debug("Found channel: " + channel + " Data rate: " + datarate);
+        if (listener != null) {
+            listener.channelFound(hit);
+        }
+        return true;
+    }
+
+    private void restore(int channel, int datarate, int arc, byte[] address) {
+        if (!mRadio.isUsbConnected()) {
+            return;
+        }
+        if (arc >= 0) {
+            mRadio.setArc(arc);
+        }
+        if (mAddress != null && address != null) {
+            mRadio.setAddress(address);
+        }
+        if (datarate >= 0) {
+            mRadio.setDatarate(datarate);
+        }
+        if (channel >= 0) {
+            mRadio.setChannel(channel);
+        }
+    }
+
+    private static Long toKey(byte[] address) {
+        long key = 0;
+        for (byte b : address) {
+            key = (key << 8) | (b & 0xFF);
+        }
+        return key;
+    }
+
+}
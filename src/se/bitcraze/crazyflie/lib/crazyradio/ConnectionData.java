@@ -47,6 +47,23 @@ public class ConnectionData {
         return mDataRate;
     }
 
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ConnectionData)) {
+            return false;
+        }
+        ConnectionData other = (ConnectionData) obj;
+        return mChannel == other.mChannel && mDataRate == other.mDataRate;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mChannel + mDataRate;
+    }
+
     @Override
     public String toString() {
         return "Channel: " + getChannel() + ", DataRate: " + getDataRate();
@@ -29,7 +29,8 @@ package se.bitcraze.crazyflie.lib.crazyradio;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -75,6 +76,10 @@ public class Crazyradio {
 
     private CrazyUsbInterface mUsbInterface;
     private int mArc;
+    private int mChannel = -1;
+    private int mDatarate = -1;
+    private byte[] mAddress;
+    private ChannelScanner mChannelScanner;
     private float mVersion; // Crazyradio firmware version
     private String mSerialNumber; // Crazyradio serial number
 
@@ -148,6 +153,14 @@ public class Crazyradio {
             throw new IllegalArgumentException("Channel must be an integer value between 0 and 125");
         }
         sendVendorSetup(SET_RADIO_CHANNEL, channel, 0, null);
+        this.mChannel = channel;
+    }
+
+    /**
+     * @return the last channel that was set or -1 if none was set yet
+     */
+    public int getChannel() {
+        return mChannel;
     }
 
     /**
@@ -162,6 +175,14 @@ public class Crazyradio {
             throw new IllegalArgumentException("Radio address must be 5 bytes long");
         }
         sendVendorSetup(SET_RADIO_ADDRESS, 0, 0, address);
+        this.mAddress = address.clone();
+    }
+
+    /**
+     * @return a copy of the last address that was set or null if none was set yet
+     */
+    public byte[] getAddress() {
+        return (mAddress != null) ? mAddress.clone() : null;
     }
 
     /**
@@ -174,6 +195,14 @@ public class Crazyradio {
             throw new IllegalArgumentException("Data rate must be an int value between 0 and 2");
         }
         sendVendorSetup(SET_DATA_RATE, datarate, 0, null);
+        this.mDatarate = datarate;
+    }
+
+    /**
+     * @return the last data rate that was set or -1 if none was set yet
+     */
+    public int getDatarate() {
+        return mDatarate;
     }
 
     /**
@@ -202,6 +231,13 @@ public class Crazyradio {
         this.mArc = arc;
     }
 
+    /**
+     * @return the ACK retry count or -1 if it was never set
+     */
+    public int getArc() {
+        return mArc;
+    }
+
     /**
      * Set the ACK retry delay for radio communication
      *
@@ -241,6 +277,24 @@ public class Crazyradio {
         sendVendorSetup(SET_RADIO_ARD, 0x80 | nbytes, 0, null);
     }
 
+    /**
+     * Enable or disable the ACK request in transmitted packets.
+     * Without ACK packets can be sent to several Crazyflies at once (broadcast), but the
+     * Crazyflies can not answer and there is no retry.
+     *
+     * @param enable <code>false</code> to send packets without requesting an ACK
+     */
+    public void setAckEnable(boolean enable) {
+        /*
+        def set_ack_enable(self, enable):
+            if enable:
+                _send_vendor_setup(self.handle, ACK_ENABLE, 1, 0, ())
+            else:
+                _send_vendor_setup(self.handle, ACK_ENABLE, 0, 0, ())
+        */
+        sendVendorSetup(ACK_ENABLE, (enable ? 1 : 0), 0, null);
+    }
+
     /**
      * Set the continuous carrier mode. When enabled the radio chip provides a
      * test mode in which a continuous non-modulated sine wave is emitted. When
@@ -319,18 +373,30 @@ public class Crazyradio {
     public ConnectionData[] scanChannels(boolean useSlowScan) throws IOException {
         List<ConnectionData> result = new ArrayList<ConnectionData>();
         if (mUsbInterface.isUsbConnected()) {
-            // null packet
-            final byte[] packet = CrtpPacket.NULL_PACKET.toByteArray();
-            final byte[] rdata = new byte[64];
-
             mLogger.debug("Scanning...");
-            // scan for all 3 data rates
-            for (int datarate = 0; datarate < 3; datarate++) {
-                // set data rate
-                mUsbInterface.sendControlTransfer(0x40, SET_DATA_RATE, datarate, 0, null);
-                if (useSlowScan) {
-                    result.addAll(scanChannelsSlow(datarate));
-                } else {
+            if (useSlowScan) {
+                // PC-driven scan of all 3 data rates
+                ChannelScanner scanner = getChannelScanner();
+                // the limit only applies to this scan, the shared scanner keeps its settings
+                result.addAll(scanner.scan(null, ChannelScanner.ALL));
+                Collections.sort(result, new Comparator<ConnectionData>() {
+                    @Override
+                    public int compare(ConnectionData cd1, ConnectionData cd2) {
+                        if (cd1.getDataRate() != cd2.getDataRate()) {
+                            return cd1.getDataRate() - cd2.getDataRate();
+                        }
+                        return cd1.getChannel() - cd2.getChannel();
+                    }
+                });
+            } else {
+                // null packet
+                final byte[] packet = CrtpPacket.NULL_PACKET.toByteArray();
+                final byte[] rdata = new byte[64];
+
+                // scan for all 3 data rates
+                for (int datarate = 0; datarate < 3; datarate++) {
+                    // set data rate
+                    setDatarate(datarate);
                     mLogger.debug("Fast firmware scan...");
                     //long transfer timeout (1000) is important!
                     mUsbInterface.sendControlTransfer(0x40, SCAN_CHANNELS, 0, 125, packet);
@@ -351,34 +417,15 @@ public class Crazyradio {
     }
 
     /**
-     * Slow manual scan
+     * Returns the channel scanner of this radio. The scanner remembers the hits of previous scans.
      *
-     * @param datarate the data rate that should be used during the scan
-     * @throws IOException if the Crazyradio is not attached (the connection is <code>null</code>).
+     * @return channel scanner
      */
-    private List<ConnectionData> scanChannelsSlow(int datarate) throws IOException {
-        mLogger.debug("Slow manual scan...");
-        List<ConnectionData> result = new ArrayList<ConnectionData>();
-
-        for (int channel = 0; channel < 126; channel++) {
-            // set channel
-            mUsbInterface.sendControlTransfer(0x40, SET_RADIO_CHANNEL, channel, 0, null);
-
-            byte[] receiveData = new byte[33];
-            final byte[] sendData = CrtpPacket.NULL_PACKET.toByteArray();
-
-            mUsbInterface.sendBulkTransfer(sendData, receiveData);
-            if ((receiveData[0] & 1) != 0) { // check if ack received
-                result.add(new ConnectionData(channel, datarate));
-                mLogger.debug("Channel found: " + channel + " Data rate: " + datarate);
-            }
-            try {
-                Thread.sleep(20, 0);
-            } catch (InterruptedException e) {
-                mLogger.error("scanChannelsSlow InterruptedException");
-            }
+    public synchronized ChannelScanner getChannelScanner() {
+        if (mChannelScanner == null) {
+            mChannelScanner = new ChannelScanner(this);
         }
-        return result;
+        return mChannelScanner;
     }
 
     public boolean scanSelected(int channel, int datarate, byte[] packet) {
@@ -418,33 +465,42 @@ public class Crazyradio {
      * @param dataOut bytes to send
      */
     public RadioAck sendPacket(byte[] dataOut) {
-        RadioAck ackIn = null;
-        byte[] data = new byte[33]; // 33?
-
-        if (mUsbInterface == null || !mUsbInterface.isUsbConnected()) {
+        RadioAck ackIn = new RadioAck();
+        if (!sendPacket(dataOut, ackIn)) {
             return null;
         }
-        mUsbInterface.sendBulkTransfer(dataOut, data);
-
-        // if data is not None:
-        ackIn = new RadioAck();
-        if (data[0] != 0) {
-            ackIn.setAck((data[0] & 0x01) != 0);
-            ackIn.setPowerDet((data[0] & 0x02) != 0);
-            ackIn.setRetry(data[0] >> 4);
-            ackIn.setData(Arrays.copyOfRange(data, 1, data.length));
-        } else {
-            ackIn.setRetry(mArc);
-        }
         return ackIn;
     }
 
+    /**
+     * Send a packet and receive the ack into a reusable {@link RadioAck} without allocating memory.
+     *
+     * @param dataOut bytes to send
+     * @param ackIn ack that is filled with the result, the previous content is overwritten
+     * @return false if the radio is not connected
+     */
+    public boolean sendPacket(byte[] dataOut, RadioAck ackIn) {
+        if (mUsbInterface == null || !mUsbInterface.isUsbConnected()) {
+            return false;
+        }
+        byte[] buffer = ackIn.getBuffer();
+        // clear the status byte in case the transfer fails
+        buffer[0] = 0;
+        int received = mUsbInterface.sendBulkTransfer(dataOut, buffer);
+        ackIn.decode(received, mArc);
+        return true;
+    }
+
     private void sendVendorSetup(int request, int value, int index, byte[] data) {
         // usb.TYPE_VENDOR = 64 <=> 0x40
         int usbTypeVendor = 0x40;
         mUsbInterface.sendControlTransfer(usbTypeVendor, request, value, index, data);
     }
 
+    public boolean isUsbConnected() {
+        return mUsbInterface != null && mUsbInterface.isUsbConnected();
+    }
+
     public float getVersion() {
         return this.mVersion;
     }
@@ -0,0 +1,435 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacketPool;
+import se.bitcraze.crazyflie.lib.crtp.OutgoingPacketScheduler;
+import se.bitcraze.crazyflie.lib.crtp.PackedPositionPacket;
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer.OverflowPolicy;
+import se.bitcraze.crazyflie.lib.usb.CrazyUsbInterface;
+
+/**
+ * Shares one Crazyradio between several Crazyflies.
+ *
+ * Every Crazyflie gets its own {@link VirtualRadioDriver} that can be passed to a
+ * {@link se.bitcraze.crazyflie.lib.crazyflie.Crazyflie}. One radio thread exchanges packets with the connected
+ * Crazyflies in turn, a Crazyflie with weight 2 gets twice as many exchanges as a Crazyflie with weight 1
+ * (smooth weighted round robin). Channel, data rate and address are only sent to the dongle when they differ
+ * from the previous exchange.
+ *
+ * When none of the Crazyflies had anything to send or receive for a whole round, the radio thread waits
+ * for the idle poll interval before it polls again.
+ *
+ * Packets for all Crazyflies can be broadcast without ACK with {@link #sendBroadcastPacket(CrtpPacket)}
+ * (e.g. the same setpoint for every Crazyflie) or {@link #sendBroadcastPositions(int[], float[], float[], float[])}
+ * (four Crazyflies per radio frame). The cost of a broadcast does not depend on the number of Crazyflies.
+ * Broadcasts are sent by the radio thread before the next exchange, so at least one Crazyflie must be connected.
+ */
+public class MultiplexedRadioDriver {
+
+    final Logger mLogger = LoggerFactory.getLogger(this.getClass().getSimpleName());
+
+    public static final byte[] DEFAULT_ADDRESS = new byte[] {(byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7};
+    public static final byte[] DEFAULT_BROADCAST_ADDRESS = new byte[] {(byte) 0xFF, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7};
+    public static final long DEFAULT_IDLE_POLL_INTERVAL_US = 1000;
+
+    private final CrazyUsbInterface mUsbInterface;
+    private Crazyradio mCradio;
+    private Thread mRadioThread;
+
+    private final List<VirtualRadioDriver> mCopters = new CopyOnWriteArrayList<VirtualRadioDriver>();
+    // snapshot of the connected copters for the radio thread, replaced on every change
+    private volatile VirtualRadioDriver[] mConnected = new VirtualRadioDriver[0];
+
+    // broadcast setpoints are coalesced like normal setpoints, nobody waits for a full broadcast queue
+    private final OutgoingPacketScheduler mBroadcastQueue = new OutgoingPacketScheduler(RadioDriver.DEFAULT_OUT_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    private volatile ConnectionData mBroadcastConnectionData;
+    private volatile byte[] mBroadcastAddress = DEFAULT_BROADCAST_ADDRESS;
+    private volatile long mBroadcastFrameCount = 0;
+
+    private volatile long mIdlePollIntervalNs = TimeUnit.MICROSECONDS.toNanos(DEFAULT_IDLE_POLL_INTERVAL_US);
+    private volatile long mConfigTransferCount = 0;
+    private volatile long mSkippedConfigCount = 0;
+
+    public MultiplexedRadioDriver(CrazyUsbInterface usbInterface) {
+        this.mUsbInterface = usbInterface;
+    }
+
+    /**
+     * Add a Crazyflie with the default address and weight 1
+     *
+     * @param connectionData channel and data rate of the Crazyflie
+     * @return driver for the Crazyflie
+     */
+    public VirtualRadioDriver addCopter(ConnectionData connectionData) {
+        return addCopter(connectionData, DEFAULT_ADDRESS, 1);
+    }
+
+    /**
+     * Add a Crazyflie
+     *
+     * @param connectionData channel and data rate of the Crazyflie
+     * @param address radio address with a length of 5 bytes
+     * @param weight share of the exchanges, must be at least 1
+     * @return driver for the Crazyflie
+     */
+    public VirtualRadioDriver addCopter(ConnectionData connectionData, byte[] address, int weight) {
+        if (address.length != 5) {
+            throw new IllegalArgumentException("Radio address must be 5 bytes long");
+        }
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1");
+        }
+        VirtualRadioDriver driver = new VirtualRadioDriver(this, connectionData, address, weight);
+        mCopters.add(driver);
+        return driver;
+    }
+
+    /**
+     * Remove a Crazyflie, it is disconnected first if necessary
+     *
+     * @param driver driver returned by addCopter
+     */
+    public void removeCopter(VirtualRadioDriver driver) {
+        if (driver.isConnected()) {
+            driver.disconnect();
+        }
+        mCopters.remove(driver);
+    }
+
+    public List<VirtualRadioDriver> getCopters() {
+        return mCopters;
+    }
+
+    /**
+     * Set how long the radio thread waits when no Crazyflie had anything to send or receive for a whole round
+     *
+     * @param intervalUs interval in microseconds, 0 polls continuously
+     */
+    public void setIdlePollInterval(long intervalUs) {
+        if (intervalUs < 0) {
+            throw new IllegalArgumentException("Interval must not be negative");
+        }
+        this.mIdlePollIntervalNs = TimeUnit.MICROSECONDS.toNanos(intervalUs);
+    }
+
+    public long getIdlePollInterval() {
+        return TimeUnit.NANOSECONDS.toMicros(mIdlePollIntervalNs);
+    }
+
+    /**
+     * Set channel, data rate and address used for broadcasts. All Crazyflies of the swarm must listen
+     * on this channel and address in addition to their own.
+     *
+     * @param connectionData channel and data rate
+     * @param address broadcast address with a length of 5 bytes
+     */
+    public void setBroadcastTarget(ConnectionData connectionData, byte[] address) {
+        if (address.length != 5) {
+            throw new IllegalArgumentException("Radio address must be 5 bytes long");
+        }
+        this.mBroadcastAddress = address.clone();
+        this.mBroadcastConnectionData = connectionData;
+    }
+
+    /**
+     * Send a packet to all Crazyflies without ACK. Like setpoints of a single Crazyflie, a broadcast setpoint
+     * replaces the one of the same port and channel that has not been sent yet.
+     *
+     * @param packet packet to broadcast, ownership is transferred
+     * @throws IllegalStateException if no broadcast target is set or no Crazyflie is connected
+     */
+    public void sendBroadcastPacket(CrtpPacket packet) {
+        if (mBroadcastConnectionData == null) {
+            CrtpPacketPool.release(packet);
+            throw new IllegalStateException("Broadcast target must be set before broadcasting.");
+        }
+        if (mConnected.length == 0) {
+            CrtpPacketPool.release(packet);
+            throw new IllegalStateException("At least one Crazyflie must be connected to broadcast.");
+        }
+        try {
+            CrtpPacket dropped = mBroadcastQueue.offer(packet);
+            if (dropped != null) {
+                CrtpPacketPool.release(dropped);
+            }
+        } catch (InterruptedException e) {
+            mLogger.error("InterruptedException: " + e.getMessage());
+            CrtpPacketPool.release(packet);
+        }
+    }
+
+    /**
+     * Broadcast the positions of several Crazyflies, packed into as few radio frames as possible
+     *
+     * @param ids ids of the Crazyflies (last byte of the radio address)
+     * @param x (m)
+     * @param y (m)
+     * @param z (m)
+     * @return number of radio frames
+     * @throws IllegalStateException if no broadcast target is set or no Crazyflie is connected
+     */
+    public int sendBroadcastPositions(int[] ids, float[] x, float[] y, float[] z) {
+        if (x.length != ids.length || y.length != ids.length || z.length != ids.length) {
+            throw new IllegalArgumentException("ids and positions must have the same length");
+        }
+        int frames = 0;
+        for (int offset = 0; offset < ids.length; offset += PackedPositionPacket.MAX_ITEMS) {
+            int count = Math.min(PackedPositionPacket.MAX_ITEMS, ids.length - offset);
+            sendBroadcastPacket(PackedPositionPacket.obtain(ids, x, y, z, offset, count));
+            frames++;
+        }
+        return frames;
+    }
+
+    /**
+     * @return number of radio frames that were broadcast
+     */
+    public long getBroadcastFrameCount() {
+        return mBroadcastFrameCount;
+    }
+
+    /**
+     * @return number of channel, data rate and address transfers sent to the dongle
+     */
+    public long getConfigTransferCount() {
+        return mConfigTransferCount;
+    }
+
+    /**
+     * @return number of channel, data rate and address transfers that were skipped because the setting did not change
+     */
+    public long getSkippedConfigCount() {
+        return mSkippedConfigCount;
+    }
+
+    /* package private */ synchronized void attach(VirtualRadioDriver driver) {
+        if (!mCopters.contains(driver)) {
+            throw new IllegalStateException("Virtual driver does not belong to this multiplexer");
+        }
+        if (!Arrays.asList(mConnected).contains(driver)) {
+            VirtualRadioDriver[] connected = Arrays.copyOf(mConnected, mConnected.length + 1);
+            connected[connected.length - 1] = driver;
+            driver.mCurrentWeight = 0;
+            mConnected = connected;
+        }
+        if (mCradio == null) {
+            this.mCradio = new Crazyradio(mUsbInterface);
+            if (this.mCradio.getVersion() >= 0.4) {
+                this.mCradio.setArc(10);
+            } else {
+                mLogger.warn("Radio version <0.4 will be obsolete soon!");
+            }
+        }
+        if (mRadioThread == null) {
+            mRadioThread = new Thread(new MultiplexerThread(mCradio), "MultiplexedRadioDriver");
+            mRadioThread.start();
+        }
+    }
+
+    /* package private */ void detach(VirtualRadioDriver driver) {
+        Thread radioThread;
+        synchronized (this) {
+            List<VirtualRadioDriver> connected = new ArrayList<VirtualRadioDriver>(Arrays.asList(mConnected));
+            connected.remove(driver);
+            mConnected = connected.toArray(new VirtualRadioDriver[connected.size()]);
+            if (mConnected.length > 0) {
+                return;
+            }
+            // last Crazyflie disconnected, stop the radio
+            radioThread = mRadioThread;
+            mRadioThread = null;
+            if (radioThread != null) {
+                radioThread.interrupt();
+            }
+        }
+        // join without holding the lock, the radio thread may need it to report a communication error
+        if (radioThread != null) {
+            try {
+                radioThread.join(100);
+            } catch (InterruptedException e) {
+                mLogger.error("Interrupted during disconnect: " + e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            // another Crazyflie may have been attached in the meantime and started a new radio thread
+            if (mRadioThread == null && mCradio != null) {
+                mCradio.disconnect();
+                mCradio = null;
+            }
+        }
+    }
+
+    /**
+     * Exchanges packets with all connected Crazyflies in turn
+     */
+    private class MultiplexerThread implements Runnable {
+
+        private final Crazyradio mRadio;
+        // reused for every exchange
+        private final RadioAck mAck = new RadioAck();
+        private final PacketSerializer mSerializer = new PacketSerializer();
+
+        private int mChannel = -1;
+        private int mDatarate = -1;
+        private byte[] mAddress = null;
+
+        public MultiplexerThread(Crazyradio radio) {
+            this.mRadio = radio;
+        }
+
+        public void run() {
+            int idleExchanges = 0;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    VirtualRadioDriver[] copters = mConnected;
+                    if (copters.length == 0) {
+                        break;
+                    }
+                    if (!mBroadcastQueue.isEmpty()) {
+                        broadcast();
+                    }
+                    VirtualRadioDriver copter = select(copters);
+                    configure(copter.getConnectionData(), copter.getAddressInternal());
+
+                    // an unacked packet is sent again on the next turn of this copter
+                    byte[] dataOut = copter.nextDataOut();
+                    boolean sentData = dataOut != null;
+                    if (!sentData) {
+                        dataOut = Crazyradio.NULL_PACKET;
+                    }
+
+                    if (!mRadio.sendPacket(dataOut, mAck)) {
+                        mLogger.warn("Dongle communication error");
+                        for (VirtualRadioDriver c : copters) {
+                            c.communicationError("Dongle communication error");
+                        }
+                        synchronized (MultiplexedRadioDriver.this) {
+                            if (mRadioThread == Thread.currentThread()) {
+                                mRadioThread = null;
+                            }
+                        }
+                        break;
+                    }
+                    boolean receivedData = copter.handleAck(mAck, sentData, System.nanoTime());
+
+                    if (sentData || receivedData) {
+                        idleExchanges = 0;
+                    } else if (++idleExchanges >= copters.length) {
+                        idleExchanges = 0;
+                        long interval = mIdlePollIntervalNs;
+                        if (interval > 0) {
+                            LockSupport.parkNanos(interval);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    mLogger.debug("MultiplexerThread was interrupted.");
+                    break;
+                }
+            }
+            mLogger.debug("MultiplexerThread stopped.");
+        }
+
+        /**
+         * Send all waiting broadcast packets with ACK disabled
+         */
+        private void broadcast() {
+            configure(mBroadcastConnectionData, mBroadcastAddress);
+            mRadio.setAckEnable(false);
+            CrtpPacket packet;
+            while ((packet = mBroadcastQueue.poll()) != null) {
+                byte[] dataOut = mSerializer.serialize(packet);
+                CrtpPacketPool.release(packet);
+                // there is no ack, only the status of the dongle
+                mRadio.sendPacket(dataOut, mAck);
+                mBroadcastFrameCount++;
+            }
+            mRadio.setAckEnable(true);
+            mConfigTransferCount += 2;
+        }
+
+        /**
+         * Smooth weighted round robin: every copter gains its weight, the one with the most credit is served and pays the total
+         */
+        private VirtualRadioDriver select(VirtualRadioDriver[] copters) {
+            VirtualRadioDriver best = null;
+            int total = 0;
+            for (VirtualRadioDriver copter : copters) {
+                copter.mCurrentWeight += copter.getWeight();
+                total += copter.getWeight();
+                if (best == null || copter.mCurrentWeight > best.mCurrentWeight) {
+                    best = copter;
+                }
+            }
+            best.mCurrentWeight -= total;
+            return best;
+        }
+
+        /**
+         * Only send the settings that differ from the previous exchange
+         */
+        private void configure(ConnectionData connectionData, byte[] address) {
+            if (mAddress == null || (mAddress != address && !Arrays.equals(mAddress, address))) {
+                mRadio.setAddress(address);
+                mAddress = address;
+                mConfigTransferCount++;
+            } else {
+                mSkippedConfigCount++;
+            }
+            if (mDatarate != connectionData.getDataRate()) {
+                mDatarate = connectionData.getDataRate();
+                mRadio.setDatarate(mDatarate);
+                mConfigTransferCount++;
+            } else {
+                mSkippedConfigCount++;
+            }
+            if (mChannel != connectionData.getChannel()) {
+                mChannel = connectionData.getChannel();
+                mRadio.setChannel(mChannel);
+                mConfigTransferCount++;
+            } else {
+                mSkippedConfigCount++;
+            }
+        }
+    }
+
+}
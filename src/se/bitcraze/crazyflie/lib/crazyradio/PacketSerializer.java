@@ -0,0 +1,61 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+
+/**
+ * Serializes packets for the radio into reusable buffers, one buffer per packet size.
+ *
+ * Not thread safe, every radio thread (or every link that keeps a packet for resending) uses its own instance.
+ */
+final class PacketSerializer {
+
+    private final byte[][] mOutBuffers = new byte[CrtpPacket.MAX_PACKET_SIZE + 1][];
+
+    /**
+     * Serialize the packet into a reusable buffer of the right size
+     *
+     * @param packet packet to send
+     * @return buffer that is valid until the next call with a packet of the same size
+     */
+    byte[] serialize(CrtpPacket packet) {
+        int size = packet.getSerializedSize();
+        if (size > CrtpPacket.MAX_PACKET_SIZE) {
+            return packet.toByteArray();
+        }
+        byte[] buffer = mOutBuffers[size];
+        if (buffer == null) {
+            buffer = new byte[size];
+            mOutBuffers[size] = buffer;
+        }
+        packet.writeTo(buffer, 0);
+        return buffer;
+    }
+}
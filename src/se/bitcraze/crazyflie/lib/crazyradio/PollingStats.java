@@ -0,0 +1,120 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measurements of a {@link RadioPollingPolicy}, updated by the radio thread.
+ *
+ * The RX latency is the time since the previous radio exchange whenever an ack
+ * contained data. It is an upper bound of how long the packet waited in the Crazyflie
+ * for the next poll. The busy share is the share of time the radio thread was not parked
+ * by the polling policy. It is not the CPU usage of the thread: the time blocked in USB transfers
+ * counts as busy, because thread CPU time can't be measured portably on Android.
+ */
+public class PollingStats {
+
+    private volatile long mExchanges;
+    private volatile long mDataPackets;
+    private volatile long mRxLatencySumNanos;
+    private volatile long mRxLatencyMaxNanos;
+    private volatile long mActiveNanos;
+    private volatile long mParkedNanos;
+
+    private long mLastExchange = -1;
+
+    /* package private */ void recordExchange(long now, boolean receivedData) {
+        if (mLastExchange != -1) {
+            long elapsed = now - mLastExchange;
+            mActiveNanos += elapsed;
+            if (receivedData) {
+                mRxLatencySumNanos += elapsed;
+                if (elapsed > mRxLatencyMaxNanos) {
+                    mRxLatencyMaxNanos = elapsed;
+                }
+            }
+        }
+        mLastExchange = now;
+        mExchanges++;
+        if (receivedData) {
+            mDataPackets++;
+        }
+    }
+
+    /* package private */ void recordParked(long nanos) {
+        mParkedNanos += nanos;
+    }
+
+    /**
+     * Restart the time measurement, e.g. after the policy was inactive
+     */
+    /* package private */ void resume() {
+        mLastExchange = -1;
+    }
+
+    public long getExchangeCount() {
+        return mExchanges;
+    }
+
+    public long getDataPacketCount() {
+        return mDataPackets;
+    }
+
+    /**
+     * @return average RX latency in microseconds
+     */
+    public long getAverageRxLatencyUs() {
+        long dataPackets = mDataPackets;
+        return dataPackets == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mRxLatencySumNanos / dataPackets);
+    }
+
+    /**
+     * @return max RX latency in microseconds
+     */
+    public long getMaxRxLatencyUs() {
+        return TimeUnit.NANOSECONDS.toMicros(mRxLatencyMaxNanos);
+    }
+
+    /**
+     * @return share of time the radio thread was not parked, including USB transfers (0.0 - 1.0)
+     */
+    public double getBusyShare() {
+        long active = mActiveNanos;
+        if (active == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, 1 - (double) mParkedNanos / active));
+    }
+
+    @Override
+    public String toString() {
+        return "PollingStats [exchanges=" + getExchangeCount() + ", dataPackets=" + getDataPacketCount() + ", avgRxLatency="
+                + getAverageRxLatencyUs() + "us, maxRxLatency=" + getMaxRxLatencyUs() + "us, busy=" + String.format("%.1f%%", getBusyShare() * 100) + "]";
+    }
+}
@@ -27,12 +27,31 @@
 
 package se.bitcraze.crazyflie.lib.crazyradio;
 
+import java.util.Arrays;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+
+/**
+ * Ack of a radio exchange.
+ *
+ * A RadioAck can be reused for every exchange with {@link Crazyradio#sendPacket(byte[], RadioAck)}.
+ * The raw USB buffer is kept, the ack payload is available as a view into it
+ * ({@link #getBuffer()}, {@link #getDataOffset()}, {@link #getDataLength()}) without copying.
+ */
 public class RadioAck {
+
+    // status byte + max CRTP packet size
+    /* package private */ static final int BUFFER_SIZE = 1 + CrtpPacket.MAX_PACKET_SIZE;
+
     private boolean ack = false;
     private boolean powerDet = false;
     private int retry = 0;
     private byte[] data;
 
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int dataLength = 0;
+    private boolean dataView = false;
+
     public boolean isAck() {
         return ack;
     }
@@ -51,10 +70,65 @@ public class RadioAck {
     public void setRetry(int retry) {
         this.retry = retry;
     }
+
+    /**
+     * Returns a copy of the ack payload. Use {@link #getBuffer()} to avoid the copy.
+     *
+     * @return ack payload or null if there was no ack
+     */
     public byte[] getData() {
+        if (dataView) {
+            // copy on first access
+            data = Arrays.copyOfRange(buffer, 1, 1 + dataLength);
+            dataView = false;
+        }
         return data;
     }
     public void setData(byte[] data) {
         this.data = data;
+        this.dataView = false;
+        this.dataLength = (data != null) ? data.length : 0;
+    }
+
+    /**
+     * @return the raw USB buffer, the payload starts at {@link #getDataOffset()}
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getDataOffset() {
+        return 1;
+    }
+
+    /**
+     * @return number of payload bytes in the buffer
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Decode the status byte and the payload length after the buffer was filled by the radio
+     *
+     * @param received number of bytes received from the radio
+     * @param defaultRetry retry count to report if there was no ack
+     */
+    /* package private */ void decode(int received, int defaultRetry) {
+        int status = (received > 0) ? buffer[0] & 0xFF : 0;
+        this.data = null;
+        if (status != 0) {
+            this.ack = (status & 0x01) != 0;
+            this.powerDet = (status & 0x02) != 0;
+            this.retry = status >> 4;
+            this.dataLength = Math.min(received, BUFFER_SIZE) - 1;
+            this.dataView = true;
+        } else {
+            this.ack = false;
+            this.powerDet = false;
+            this.retry = defaultRetry;
+            this.dataLength = 0;
+            this.dataView = false;
+        }
     }
-}
\ No newline at end of file
+}
@@ -31,8 +31,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -41,11 +39,23 @@ import org.slf4j.LoggerFactory;
 import se.bitcraze.crazyflie.lib.Utilities;
 import se.bitcraze.crazyflie.lib.crtp.CrtpDriver;
 import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacketPool;
+import se.bitcraze.crazyflie.lib.crtp.OutgoingPacketScheduler;
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer;
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer.OverflowPolicy;
 import se.bitcraze.crazyflie.lib.usb.CrazyUsbInterface;
 
 /**
  * Crazyradio link driver
  *
+ * Packets are exchanged with the radio thread through bounded ring buffers.
+ * Outgoing packets go through an {@link OutgoingPacketScheduler} with separate lanes for control
+ * traffic, setpoints (latest wins) and bulk traffic.
+ * By default senders wait when a lane of the out queue is full, which limits the latency that can build up
+ * in bursts. Like the Python lib they wait at most {@link #SEND_TIMEOUT_MS}, then the packet is dropped and
+ * a link error is reported. The oldest received packet is dropped when the in queue is full, so the radio
+ * thread never blocks. Blocking the in queue can dead lock if the receiving thread also sends packets.
+ *
  */
 public class RadioDriver extends CrtpDriver {
 
@@ -56,19 +66,40 @@ public class RadioDriver extends CrtpDriver {
 
     private CrazyUsbInterface mUsbInterface;
 
-    private final BlockingQueue<CrtpPacket> mOutQueue = new LinkedBlockingQueue<CrtpPacket>();
-    //TODO: Limit size of out queue to avoid "ReadBack" effect?
-    private final BlockingQueue<CrtpPacket> mInQueue = new LinkedBlockingQueue<CrtpPacket>();
+    public static final int DEFAULT_OUT_QUEUE_CAPACITY = 64;
+    public static final int DEFAULT_IN_QUEUE_CAPACITY = 256;
+    /** max time a sender waits for a free slot in a full lane of the out queue */
+    public static final long SEND_TIMEOUT_MS = 2000;
+
+    private final OutgoingPacketScheduler mOutQueue;
+    private final SpscRingBuffer<CrtpPacket> mInQueue;
 
     private ConnectionData mConnectionData;
+
+    private volatile RadioPollingPolicy mPollingPolicy = RadioPollingPolicy.balanced();
     
     /**
      * Create the link driver
      */
     public RadioDriver(CrazyUsbInterface usbInterface) {
+        this(usbInterface, DEFAULT_OUT_QUEUE_CAPACITY, OverflowPolicy.BLOCK, DEFAULT_IN_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Create the link driver with custom queue sizes
+     *
+     * @param usbInterface
+     * @param outCapacity max number of control and bulk packets waiting to be sent (per lane)
+     * @param outPolicy what to do when a lane of the out queue is full
+     * @param inCapacity max number of received packets waiting to be processed
+     * @param inPolicy what to do when the in queue is full
+     */
+    public RadioDriver(CrazyUsbInterface usbInterface, int outCapacity, OverflowPolicy outPolicy, int inCapacity, OverflowPolicy inPolicy) {
         this.mUsbInterface = usbInterface;
         this.mCradio = null;
         this.mRadioDriverThread = null;
+        this.mOutQueue = new OutgoingPacketScheduler(outCapacity, outPolicy);
+        this.mInQueue = new SpscRingBuffer<CrtpPacket>(inCapacity, inPolicy);
     }
 
     /* (non-Javadoc)
@@ -126,6 +157,27 @@ public class RadioDriver extends CrtpDriver {
         this.mConnectionData = connectionData;
     }
 
+    /**
+     * @return channel, data rate and address, e.g. radio/80/2/E7E7E7E7E7
+     */
+    @Override
+    public String getLinkId() {
+        if (mConnectionData == null) {
+            return super.getLinkId();
+        }
+        // the Crazyradio is always used with its default address
+        return getLinkId(mConnectionData, MultiplexedRadioDriver.DEFAULT_ADDRESS);
+    }
+
+    /* package private */ static String getLinkId(ConnectionData connectionData, byte[] address) {
+        StringBuilder sb = new StringBuilder("radio/");
+        sb.append(connectionData.getChannel()).append('/').append(connectionData.getDataRate()).append('/');
+        for (byte b : address) {
+            sb.append(String.format("%02X", b));
+        }
+        return sb.toString();
+    }
+
     /*
      *  Receive a packet though the link. This call is blocking but will
      *  timeout and return None if a timeout is supplied.
@@ -149,6 +201,7 @@ public class RadioDriver extends CrtpDriver {
     @Override
     public void sendPacket(CrtpPacket packet) {
         if (this.mCradio == null) {
+            CrtpPacketPool.release(packet);
             return;
         }
 
@@ -165,10 +218,85 @@ public class RadioDriver extends CrtpDriver {
 
         // this.mOutQueue.addLast(packet);
         try {
-            this.mOutQueue.put(packet);
+            // dropped or replaced by a newer setpoint
+            CrtpPacket dropped = this.mOutQueue.offer(packet, SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (dropped != null) {
+                CrtpPacketPool.release(dropped);
+            }
+            if (dropped == packet && mOutQueue.getOverflowPolicy() == OverflowPolicy.BLOCK) {
+                notifyConnectionLost("RadioDriver: Could not send packet to copter");
+                mLogger.warn("Out queue full for " + SEND_TIMEOUT_MS + " ms, packet dropped");
+            }
         } catch (InterruptedException e) {
             mLogger.error("InterruptedException: " + e.getMessage());
+            CrtpPacketPool.release(packet);
+        }
+    }
+
+    /**
+     * @return number of packets waiting to be sent
+     */
+    public int getOutQueueDepth() {
+        return mOutQueue.size();
+    }
+
+    /**
+     * @return number of received packets waiting to be processed
+     */
+    public int getInQueueDepth() {
+        return mInQueue.size();
+    }
+
+    /**
+     * @return highest number of packets that were waiting to be sent
+     */
+    public int getOutQueueMaxDepth() {
+        return mOutQueue.getMaxDepth();
+    }
+
+    /**
+     * @return highest number of received packets that were waiting to be processed
+     */
+    public int getInQueueMaxDepth() {
+        return mInQueue.getMaxDepth();
+    }
+
+    /**
+     * @return number of packets dropped because the out queue was full
+     */
+    public long getOutQueueDropCount() {
+        return mOutQueue.getDroppedCount();
+    }
+
+    /**
+     * Set the policy that decides how often the Crazyflie is polled when there is nothing to send.
+     * Can be changed while connected.
+     *
+     * @param pollingPolicy e.g. {@link RadioPollingPolicy#lowLatency()}
+     */
+    public void setPollingPolicy(RadioPollingPolicy pollingPolicy) {
+        if (pollingPolicy == null) {
+            throw new IllegalArgumentException("Polling policy can not be null");
         }
+        this.mPollingPolicy = pollingPolicy;
+    }
+
+    public RadioPollingPolicy getPollingPolicy() {
+        return mPollingPolicy;
+    }
+
+    /**
+     * @return scheduler of the outgoing packets, e.g. to set the setpoint max age or read its counters
+     */
+    public OutgoingPacketScheduler getOutgoingScheduler() {
+        return mOutQueue;
+    }
+
+    /**
+     * @return number of received packets dropped because the in queue was full
+     */
+    public long getInQueueDropCount() {
+        return mInQueue.getDropCount();
     }
 
     /*
@@ -192,6 +320,8 @@ public class RadioDriver extends CrtpDriver {
             this.mCradio.disconnect();
             this.mCradio = null;
         }
+        // nobody drains the out queue anymore, this also wakes up senders waiting for a free slot
+        mOutQueue.clear();
         notifyDisconnected();
     }
 
@@ -314,6 +444,11 @@ public class RadioDriver extends CrtpDriver {
         private final static int RETRYCOUNT_BEFORE_DISCONNECT = 10;
         private int mRetryBeforeDisconnect;
 
+        // reusable exact-length transmit buffers, indexed by packet size
+        private final PacketSerializer mSerializer = new PacketSerializer();
+        // reused for every exchange
+        private final RadioAck mAck = new RadioAck();
+
         /**
          * Create the object
          */
@@ -329,9 +464,7 @@ public class RadioDriver extends CrtpDriver {
          */
         public void run() {
             byte[] dataOut = Crazyradio.NULL_PACKET;
-
-            double waitTime = 0;
-            int emptyCtr = 0;
+            RadioPollingPolicy policy = null;
 
             while(mCradio != null && !Thread.currentThread().isInterrupted()) {
                 try {
@@ -346,10 +479,10 @@ public class RadioDriver extends CrtpDriver {
                                                  "Exception:%s\n\n%s" % (e,
                                                  traceback.format_exc()))
                     */
-                    RadioAck ackStatus = mCradio.sendPacket(dataOut);
+                    RadioAck ackStatus = mAck;
 
                     // Analyze the data packet
-                    if (ackStatus == null) {
+                    if (!mCradio.sendPacket(dataOut, ackStatus)) {
                         notifyConnectionLost("Dongle communication error (ackStatus == null)");
                         mLogger.warn("Dongle communication error (ackStatus == null)");
                         continue;
@@ -369,31 +502,30 @@ public class RadioDriver extends CrtpDriver {
                     }
                     this.mRetryBeforeDisconnect = RETRYCOUNT_BEFORE_DISCONNECT;
 
-                    byte[] data = ackStatus.getData();
+                    boolean receivedData = ackStatus.getDataLength() > 0;
 
                     // if there is a copter in range, the packet is analyzed and the next packet to send is prepared
-                    if (data != null && data.length > 0) {
-                        CrtpPacket inPacket = new CrtpPacket(data);
-                        mInQueue.put(inPacket);
-
-                        waitTime = 0;
-                        emptyCtr = 0;
-                    } else {
-                        emptyCtr += 1;
-                        if (emptyCtr > 10) {
-                            emptyCtr = 10;
-                            // Relaxation time if the last 10 packets where empty
-                            waitTime = 0.01;
-                        } else {
-                            waitTime = 0;
+                    if (receivedData) {
+                        // released by the receiver after dispatching
+                        CrtpPacket inPacket = CrtpPacketPool.acquire(ackStatus.getBuffer(), ackStatus.getDataOffset(), ackStatus.getDataLength());
+                        CrtpPacket dropped = mInQueue.offer(inPacket);
+                        if (dropped != null) {
+                            CrtpPacketPool.release(dropped);
                         }
                     }
 
-                    // get the next packet to send after relaxation (wait 10ms)
-                    CrtpPacket outPacket = mOutQueue.poll((long) waitTime, TimeUnit.SECONDS);
+                    if (policy != mPollingPolicy) {
+                        policy = mPollingPolicy;
+                        policy.reset();
+                        policy.getStats().resume();
+                    }
+                    policy.getStats().recordExchange(System.nanoTime(), receivedData);
 
+                    // get the next packet to send, the policy decides how long to wait for one
+                    CrtpPacket outPacket = policy.nextPacket(mOutQueue, receivedData, dataOut != Crazyradio.NULL_PACKET);
                     if (outPacket != null) {
-                        dataOut = outPacket.toByteArray();
+                        dataOut = mSerializer.serialize(outPacket);
+                        CrtpPacketPool.release(outPacket);
                     } else {
                         dataOut = Crazyradio.NULL_PACKET;
                     }
@@ -0,0 +1,181 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import java.util.concurrent.TimeUnit;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.OutgoingPacketScheduler;
+
+/**
+ * Decides how long the radio thread waits for an outgoing packet before it polls the Crazyflie again.
+ *
+ * The Crazyflie can only send data in acks, so if there is nothing to send the radio
+ * has to poll with empty packets. Polling often gives low downlink latency, polling rarely saves CPU and power.
+ * An outgoing packet always ends the wait immediately.
+ *
+ * The policy of a {@link RadioDriver} can be changed at runtime with {@link RadioDriver#setPollingPolicy(RadioPollingPolicy)}.
+ */
+public abstract class RadioPollingPolicy {
+
+    private final PollingStats mStats = new PollingStats();
+
+    /**
+     * Poll as fast as possible, spinning up to 100us for outgoing packets between polls
+     */
+    public static RadioPollingPolicy lowLatency() {
+        return new LowLatencyPolicy(100);
+    }
+
+    /**
+     * Poll immediately while data is flowing, back off exponentially from 0.25ms to 10ms when idle
+     */
+    public static RadioPollingPolicy balanced() {
+        return new BalancedPolicy(250, 10000);
+    }
+
+    /**
+     * Poll every 20ms when idle
+     */
+    public static RadioPollingPolicy powerSave() {
+        return new PowerSavePolicy(20);
+    }
+
+    /**
+     * Get the next packet to send. Called by the radio thread after every successful exchange.
+     *
+     * @param outQueue outgoing packets
+     * @param receivedData true if the last ack contained data
+     * @param sentData true if the last exchange sent a packet (not just a poll)
+     * @return the next packet or null to poll with an empty packet
+     * @throws InterruptedException if the radio thread was interrupted
+     */
+    protected abstract CrtpPacket nextPacket(OutgoingPacketScheduler outQueue, boolean receivedData, boolean sentData) throws InterruptedException;
+
+    /**
+     * Called when the policy becomes active
+     */
+    protected void reset() {
+        // nothing to do by default
+    }
+
+    /**
+     * Wait for an outgoing packet with the radio thread parked
+     */
+    protected final CrtpPacket park(OutgoingPacketScheduler outQueue, long timeoutUs) throws InterruptedException {
+        long start = System.nanoTime();
+        CrtpPacket packet = outQueue.poll(timeoutUs, TimeUnit.MICROSECONDS);
+        mStats.recordParked(System.nanoTime() - start);
+        return packet;
+    }
+
+    /**
+     * Wait for an outgoing packet with the radio thread spinning
+     */
+    protected final CrtpPacket spin(OutgoingPacketScheduler outQueue, long timeoutUs) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+        CrtpPacket packet = outQueue.poll();
+        while (packet == null && System.nanoTime() < deadline) {
+            Thread.yield();
+            packet = outQueue.poll();
+        }
+        return packet;
+    }
+
+    public PollingStats getStats() {
+        return mStats;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + mStats;
+    }
+
+    private static final class LowLatencyPolicy extends RadioPollingPolicy {
+
+        private final long mSpinBudgetUs;
+
+        LowLatencyPolicy(long spinBudgetUs) {
+            this.mSpinBudgetUs = spinBudgetUs;
+        }
+
+        @Override
+        protected CrtpPacket nextPacket(OutgoingPacketScheduler outQueue, boolean receivedData, boolean sentData) {
+            if (receivedData) {
+                // the Crazyflie might have more data, poll again right away
+                return outQueue.poll();
+            }
+            return spin(outQueue, mSpinBudgetUs);
+        }
+    }
+
+    private static final class BalancedPolicy extends RadioPollingPolicy {
+
+        private final long mMinWaitUs;
+        private final long mMaxWaitUs;
+        private long mWaitUs = 0;
+
+        BalancedPolicy(long minWaitUs, long maxWaitUs) {
+            this.mMinWaitUs = minWaitUs;
+            this.mMaxWaitUs = maxWaitUs;
+        }
+
+        @Override
+        protected void reset() {
+            mWaitUs = 0;
+        }
+
+        @Override
+        protected CrtpPacket nextPacket(OutgoingPacketScheduler outQueue, boolean receivedData, boolean sentData) throws InterruptedException {
+            if (receivedData || sentData) {
+                // traffic in either direction, a reply or more data is likely
+                mWaitUs = 0;
+                return outQueue.poll();
+            }
+            mWaitUs = (mWaitUs == 0) ? mMinWaitUs : Math.min(mWaitUs * 2, mMaxWaitUs);
+            return park(outQueue, mWaitUs);
+        }
+    }
+
+    private static final class PowerSavePolicy extends RadioPollingPolicy {
+
+        private final long mIntervalUs;
+
+        PowerSavePolicy(long intervalMs) {
+            this.mIntervalUs = TimeUnit.MILLISECONDS.toMicros(intervalMs);
+        }
+
+        @Override
+        protected CrtpPacket nextPacket(OutgoingPacketScheduler outQueue, boolean receivedData, boolean sentData) throws InterruptedException {
+            if (receivedData) {
+                return outQueue.poll();
+            }
+            return park(outQueue, mIntervalUs);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import java.util.List;
+
+/**
+ * Receives the results of a {@link ChannelScanner} while the scan is running.
+ *
+ * The callbacks are called on the scanning thread.
+ */
+public interface ScanListener {
+
+    /**
+     * Called as soon as a Crazyflie answered on a channel.
+     * The scan can be stopped with {@link ChannelScanner#cancel()} to connect right away.
+     *
+     * @param connectionData channel and data rate of the Crazyflie
+     */
+    void channelFound(ConnectionData connectionData);
+
+    /**
+     * Called when the scan is finished, cancelled or stopped early
+     *
+     * @param result all channels that were found
+     */
+    void scanFinished(List<ConnectionData> result);
+
+}
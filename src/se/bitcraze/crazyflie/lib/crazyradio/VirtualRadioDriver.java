@@ -0,0 +1,302 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpDriver;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacketPool;
+import se.bitcraze.crazyflie.lib.crtp.OutgoingPacketScheduler;
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer;
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer.OverflowPolicy;
+
+/**
+ * Link to one Crazyflie of a {@link MultiplexedRadioDriver}.
+ *
+ * Every virtual driver has its own queues, the radio thread of the multiplexer
+ * exchanges packets with all connected virtual drivers in turn.
+ * Virtual drivers are created with {@link MultiplexedRadioDriver#addCopter(ConnectionData, byte[], int)}.
+ */
+public class VirtualRadioDriver extends CrtpDriver {
+
+    final Logger mLogger = LoggerFactory.getLogger(this.getClass().getSimpleName());
+
+    private final static int RETRYCOUNT_BEFORE_DISCONNECT = 10;
+    private final static long RATE_WINDOW_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final MultiplexedRadioDriver mMultiplexer;
+    private final ConnectionData mConnectionData;
+    private final byte[] mAddress;
+    private final int mWeight;
+
+    private final OutgoingPacketScheduler mOutQueue;
+    private final SpscRingBuffer<CrtpPacket> mInQueue;
+
+    private volatile boolean mConnected = false;
+
+    // only used by the radio thread
+    /* package private */ int mCurrentWeight = 0;
+    private int mRetryBeforeDisconnect = RETRYCOUNT_BEFORE_DISCONNECT;
+    private long mWindowStart = 0;
+    private long mWindowAcks = 0;
+    private final PacketSerializer mSerializer = new PacketSerializer();
+    // sent again on every turn until it's acked, null if nothing is pending
+    private byte[] mDataOut = null;
+
+    private volatile long mExchangeCount = 0;
+    private volatile long mAckCount = 0;
+    private volatile long mSentCount = 0;
+    private volatile long mReceivedCount = 0;
+    private volatile float mPacketRate = 0;
+
+    /* package private */ VirtualRadioDriver(MultiplexedRadioDriver multiplexer, ConnectionData connectionData, byte[] address, int weight) {
+        this.mMultiplexer = multiplexer;
+        this.mConnectionData = connectionData;
+        this.mAddress = address.clone();
+        this.mWeight = weight;
+        this.mOutQueue = new OutgoingPacketScheduler(RadioDriver.DEFAULT_OUT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+        this.mInQueue = new SpscRingBuffer<CrtpPacket>(RadioDriver.DEFAULT_IN_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Override
+    public void connect() {
+        if (mConnected) {
+            mLogger.error("Virtual radio link already open");
+            return;
+        }
+        notifyConnectionRequested();
+        mRetryBeforeDisconnect = RETRYCOUNT_BEFORE_DISCONNECT;
+        mDataOut = null;
+        mConnected = true;
+        mMultiplexer.attach(this);
+    }
+
+    @Override
+    public void disconnect() {
+        mLogger.debug("disconnect()");
+        if (mConnected) {
+            mConnected = false;
+            mMultiplexer.detach(this);
+            // the radio thread doesn't serve this link anymore, this also wakes up senders waiting for a free slot
+            mOutQueue.clear();
+        }
+        notifyDisconnected();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public void sendPacket(CrtpPacket packet) {
+        if (!mConnected) {
+            CrtpPacketPool.release(packet);
+            return;
+        }
+        try {
+            // dropped or replaced by a newer setpoint
+            CrtpPacket dropped = this.mOutQueue.offer(packet, RadioDriver.SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (dropped != null) {
+                CrtpPacketPool.release(dropped);
+            }
+            if (dropped == packet) {
+                notifyConnectionLost("VirtualRadioDriver: Could not send packet to copter");
+                mLogger.warn("Out queue full for " + RadioDriver.SEND_TIMEOUT_MS + " ms, packet dropped (" + mConnectionData + ")");
+            }
+        } catch (InterruptedException e) {
+            mLogger.error("InterruptedException: " + e.getMessage());
+            CrtpPacketPool.release(packet);
+        }
+    }
+
+    @Override
+    public CrtpPacket receivePacket(int time) {
+        try {
+            return mInQueue.poll((long) time, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            mLogger.error("InterruptedException: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public ConnectionData getConnectionData() {
+        return mConnectionData;
+    }
+
+    /**
+     * @return a copy of the radio address of the Crazyflie
+     */
+    public byte[] getAddress() {
+        return mAddress.clone();
+    }
+
+    /**
+     * @return channel, data rate and address, e.g. radio/80/2/E7E7E7E701
+     */
+    @Override
+    public String getLinkId() {
+        return RadioDriver.getLinkId(mConnectionData, mAddress);
+    }
+
+    public int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * @return scheduler of the outgoing packets, e.g. to set the setpoint max age or read its counters
+     */
+    public OutgoingPacketScheduler getOutgoingScheduler() {
+        return mOutQueue;
+    }
+
+    /**
+     * @return number of exchanges with this Crazyflie, acked or not
+     */
+    public long getExchangeCount() {
+        return mExchangeCount;
+    }
+
+    /**
+     * @return number of acked exchanges
+     */
+    public long getAckCount() {
+        return mAckCount;
+    }
+
+    /**
+     * @return number of packets sent to this Crazyflie (without polls)
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return number of packets received from this Crazyflie
+     */
+    public long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return acked exchanges per second, measured over the last second
+     */
+    public float getPacketRate() {
+        return mPacketRate;
+    }
+
+    /* package private */ byte[] getAddressInternal() {
+        return mAddress;
+    }
+
+    /**
+     * Get the data to send on this turn. A packet that has not been acked yet is sent again,
+     * the next packet is only taken from the queue after it has been acked. Called by the radio thread.
+     *
+     * @return serialized packet, null if there is nothing to send
+     */
+    /* package private */ byte[] nextDataOut() {
+        if (mDataOut == null) {
+            CrtpPacket outPacket = mOutQueue.poll();
+            if (outPacket != null) {
+                mDataOut = mSerializer.serialize(outPacket);
+                CrtpPacketPool.release(outPacket);
+            }
+        }
+        return mDataOut;
+    }
+
+    /**
+     * Handle the result of an exchange. Called by the radio thread.
+     *
+     * @param ackStatus ack of the exchange
+     * @param sentData true if a packet was sent (not just a poll)
+     * @param now System.nanoTime() of the exchange
+     * @return true if the ack contained data
+     * @throws InterruptedException if the radio thread was interrupted while the in queue was full
+     */
+    /* package private */ boolean handleAck(RadioAck ackStatus, boolean sentData, long now) throws InterruptedException {
+        mExchangeCount++;
+        notifyLinkQualityUpdated((10 - ackStatus.getRetry()) * 10);
+
+        if (!ackStatus.isAck()) {
+            this.mRetryBeforeDisconnect--;
+            if (this.mRetryBeforeDisconnect == 0) {
+                notifyConnectionLost("Too many packets lost");
+                mLogger.warn("Too many packets lost (" + mConnectionData + ")");
+            }
+            updateRate(now);
+            return false;
+        }
+        this.mRetryBeforeDisconnect = RETRYCOUNT_BEFORE_DISCONNECT;
+        mAckCount++;
+        mWindowAcks++;
+        if (sentData) {
+            mSentCount++;
+            mDataOut = null;
+        }
+
+        boolean receivedData = ackStatus.getDataLength() > 0;
+        if (receivedData) {
+            mReceivedCount++;
+            // released by the receiver after dispatching
+            CrtpPacket inPacket = CrtpPacketPool.acquire(ackStatus.getBuffer(), ackStatus.getDataOffset(), ackStatus.getDataLength());
+            CrtpPacket dropped = mInQueue.offer(inPacket);
+            if (dropped != null) {
+                CrtpPacketPool.release(dropped);
+            }
+        }
+        updateRate(now);
+        return receivedData;
+    }
+
+    /* package private */ void communicationError(String msg) {
+        notifyConnectionLost(msg);
+    }
+
+    private void updateRate(long now) {
+        if (mWindowStart == 0) {
+            mWindowStart = now;
+        } else if (now - mWindowStart >= RATE_WINDOW_NS) {
+            mPacketRate = mWindowAcks * 1e9f / (now - mWindowStart);
+            mWindowStart = now;
+            mWindowAcks = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualRadioDriver [" + mConnectionData + ", weight: " + mWeight + "]";
+    }
+
+}
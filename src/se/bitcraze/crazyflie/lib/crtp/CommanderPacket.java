@@ -33,6 +33,9 @@ import java.nio.ByteBuffer;
  * Packet used for sending control set-points for the roll/pitch/yaw/thrust regulators.
  */
 public class CommanderPacket extends CrtpPacket {
+
+    private static final int DATA_BYTE_COUNT = 3 * 4 + 1 * 2; // 3 floats with size 4, 1 char (= uint16_t) with size 2
+
     private final float mRoll;
     private final float mPitch;
     private final float mYaw;
@@ -76,17 +79,43 @@ public class CommanderPacket extends CrtpPacket {
         this(roll, pitch, yaw, thrust, false);
     }
 
+    /**
+     * Lease a pooled commander packet instead of allocating a new one (e.g. for the periodic set-point thread).
+     *
+     * @param roll (Deg.)
+     * @param pitch (Deg.)
+     * @param yaw (Deg./s)
+     * @param thrust (0-65535)
+     * @param clientXmode if true, then roll and pitch values are recalculated before sending them to the Crazyflie
+     * @return pooled packet, ownership is transferred to the caller
+     */
+    public static PooledCrtpPacket obtain(float roll, float pitch, float yaw, char thrust, boolean clientXmode) {
+        PooledCrtpPacket packet = CrtpPacketPool.acquire(0, CrtpPort.COMMANDER);
+        ByteBuffer buffer = packet.preparePayload(DATA_BYTE_COUNT);
+        if (clientXmode) {
+            //offset by 45 degrees
+            serialize(buffer, 0.707f * (roll - pitch), 0.707f * (roll + pitch), yaw, thrust);
+        } else {
+            serialize(buffer, roll, pitch, yaw, thrust);
+        }
+        return packet;
+    }
+
+    private static void serialize(ByteBuffer buffer, float roll, float pitch, float yaw, char thrust) {
+        buffer.putFloat(roll);
+        buffer.putFloat(-pitch); //invert axis
+        buffer.putFloat(yaw);
+        buffer.putChar(thrust);
+    }
+
     @Override
     protected void serializeData(ByteBuffer buffer) {
-        buffer.putFloat(mRoll);
-        buffer.putFloat(-mPitch); //invert axis
-        buffer.putFloat(mYaw);
-        buffer.putChar(mThrust);
+        serialize(buffer, mRoll, mPitch, mYaw, mThrust);
     }
 
     @Override
     protected int getDataByteCount() {
-        return 3 * 4 + 1 * 2; // 3 floats with size 4, 1 char (= uint16_t) with size 2
+        return DATA_BYTE_COUNT;
     }
 
     @Override
@@ -82,6 +82,24 @@ public abstract class CrtpDriver {
      */
     public abstract CrtpPacket receivePacket(int wait);
 
+    /**
+     * Check whether the log and param TOCs can be fetched over this link during connection setup.
+     *
+     * @return <code>true</code> by default, links that can't fetch TOCs return <code>false</code>
+     */
+    public boolean supportsTocFetch() {
+        return true;
+    }
+
+    /**
+     * Identifies the Crazyflie at the other end of the link, e.g. to cache its param values.
+     *
+     * @return link id, the driver name by default for links that can't tell Crazyflies apart
+     */
+    public String getLinkId() {
+        return getClass().getSimpleName();
+    }
+
     /* CONNECTION LISTENER */
 
     public void addConnectionListener(ConnectionListener listener) {
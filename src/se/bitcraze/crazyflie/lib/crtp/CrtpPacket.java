@@ -34,7 +34,8 @@ import java.util.Arrays;
 /**
  * Packet of data which can be sent/received from/to the Crazyflie. All packet
  * implementations must be immutable to avoid issues with modifying packets via
- * references, e.g. in a send queue.
+ * references, e.g. in a send queue. The only exception is {@link PooledCrtpPacket},
+ * which is leased from the {@link CrtpPacketPool} and reference counted instead.
  */
 public class CrtpPacket {
 
@@ -43,6 +44,21 @@ public class CrtpPacket {
      */
     public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
 
+    /**
+     * Max size of a serialized packet (header + payload) that fits into one radio packet.
+     */
+    public static final int MAX_PACKET_SIZE = 32;
+
+    /**
+     * Per thread scratch buffer used by {@link #writeTo(byte[], int)}
+     */
+    private static final ThreadLocal<ByteBuffer> sSerializationBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(MAX_PACKET_SIZE).order(BYTE_ORDER);
+        }
+    };
+
     /**
      * NULL packet. Header is 0xFF without any data.
      */
@@ -57,11 +73,55 @@ public class CrtpPacket {
         }
     };
 
+    /**
+     * Header of a CRTP packet. Headers are immutable, use {@link #valueOf(byte)} and
+     * {@link #valueOf(int, CrtpPort)} to get a shared instance instead of allocating a new one.
+     */
     public static class Header {
 
-        private int mChannel;
-        private CrtpPort mPort;
-        private boolean isNullPacketHeader = false;
+        private final int mChannel;
+        private final CrtpPort mPort;
+        private final boolean isNullPacketHeader;
+
+        // interned headers for all possible header bytes, indexed by (header & 0xFF)
+        private static final Header[] sHeadersByByte = new Header[256];
+        // interned headers for all ports and channels 0-3, indexed by [port.ordinal()][channel]
+        private static final Header[][] sHeadersByPort = new Header[CrtpPort.values().length][4];
+
+        static {
+            for (int i = 0; i < sHeadersByByte.length; i++) {
+                sHeadersByByte[i] = new Header((byte) i);
+            }
+            for (CrtpPort port : CrtpPort.values()) {
+                for (int channel = 0; channel < 4; channel++) {
+                    sHeadersByPort[port.ordinal()][channel] = new Header(channel, port);
+                }
+            }
+        }
+
+        /**
+         * Get the shared header instance for a raw header byte.
+         *
+         * @param header raw header byte
+         * @return the header
+         */
+        public static Header valueOf(byte header) {
+            return sHeadersByByte[header & 0xFF];
+        }
+
+        /**
+         * Get the shared header instance for a channel and port.
+         *
+         * @param channel channel of the header
+         * @param port port of the header
+         * @return the header
+         */
+        public static Header valueOf(int channel, CrtpPort port) {
+            if (port == null || channel < 0 || channel > 3) {
+                return new Header(channel, port);
+            }
+            return sHeadersByPort[port.ordinal()][channel];
+        }
 
         public int getChannel() {
             return mChannel;
@@ -75,6 +135,7 @@ public class CrtpPacket {
             if(header != -1){
                 this.mPort = CrtpPort.getByNumber((byte) (header >> 4));
                 this.mChannel = header & 0x03;
+                this.isNullPacketHeader = false;
             }else{
                 isNullPacketHeader = true;
                 this.mPort = CrtpPort.UNKNOWN;
@@ -86,6 +147,7 @@ public class CrtpPacket {
         public Header(int channel, CrtpPort port){
             this.mChannel = channel;
             this.mPort = port;
+            this.isNullPacketHeader = false;
         }
 
         public byte getByte(){
@@ -151,7 +213,7 @@ public class CrtpPacket {
      * @param port port to set in the header.
      */
     public CrtpPacket(int channel, CrtpPort port) {
-        this.mPacketHeader = new Header(channel, port);
+        this.mPacketHeader = Header.valueOf(channel, port);
         this.mPacketPayload = new byte[0];
         this.mSerializedPacket = null;
     }
@@ -163,7 +225,7 @@ public class CrtpPacket {
      * @param packetPayload payload of the packet.
      */
     public CrtpPacket(byte packetHeader, byte[] packetPayload) {
-        this.mPacketHeader = new Header(packetHeader);
+        this.mPacketHeader = Header.valueOf(packetHeader);
         this.mPacketPayload = packetPayload;
         this.mSerializedPacket = null;
     }
@@ -174,7 +236,7 @@ public class CrtpPacket {
      * @param packetData
      */
     public CrtpPacket(byte[] packetData) {
-        this.mPacketHeader = new Header(packetData[0]);
+        this.mPacketHeader = Header.valueOf(packetData[0]);
         this.mPacketPayload = Arrays.copyOfRange(packetData, 1, packetData.length);
         this.mSerializedPacket = null;
     }
@@ -240,6 +302,46 @@ public class CrtpPacket {
         return mSerializedPacket;
     }
 
+    /**
+     * Get the number of bytes of the serialized packet (header + data).
+     *
+     * @return size of the serialized packet
+     */
+    public int getSerializedSize() {
+        return getDataByteCount() + 1;
+    }
+
+    /**
+     * Serialize the packet (header + data) into a caller supplied buffer, starting at its current position.
+     * The byte order of the buffer is set to {@link #BYTE_ORDER}.
+     *
+     * @param buffer the target buffer
+     * @return number of bytes written
+     */
+    public int writeTo(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.order(BYTE_ORDER);
+        buffer.put(getHeaderByte());
+        serializeData(buffer);
+        return buffer.position() - start;
+    }
+
+    /**
+     * Serialize the packet (header + data) into a caller supplied array without allocating.
+     * A thread local scratch buffer is used, so the packet must not exceed {@link #MAX_PACKET_SIZE}.
+     *
+     * @param target the target array
+     * @param offset start position in the target array
+     * @return number of bytes written
+     */
+    public int writeTo(byte[] target, int offset) {
+        ByteBuffer buffer = sSerializationBuffer.get();
+        buffer.clear();
+        int length = writeTo(buffer);
+        System.arraycopy(buffer.array(), 0, target, offset, length);
+        return length;
+    }
+
     @Override
     public String toString() {
         return "CrtpPacket: port: " + this.getHeader().getPort() + " channel: " + this.getHeader().getChannel();
@@ -257,9 +359,9 @@ public class CrtpPacket {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + Arrays.hashCode(mExpectedReply);
-        result = prime * result + ((mPacketHeader == null) ? 0 : mPacketHeader.hashCode());
-        result = prime * result + Arrays.hashCode(mPacketPayload);
+        result = prime * result + Arrays.hashCode(getExpectedReply());
+        result = prime * result + ((getHeader() == null) ? 0 : getHeader().hashCode());
+        result = prime * result + Arrays.hashCode(getPayload());
         return result;
     }
 
@@ -275,17 +377,17 @@ public class CrtpPacket {
             return false;
         }
         CrtpPacket other = (CrtpPacket) obj;
-        if (!Arrays.equals(mExpectedReply, other.mExpectedReply)) {
+        if (!Arrays.equals(getExpectedReply(), other.getExpectedReply())) {
             return false;
         }
-        if (mPacketHeader == null) {
-            if (other.mPacketHeader != null) {
+        if (getHeader() == null) {
+            if (other.getHeader() != null) {
                 return false;
             }
-        } else if (!mPacketHeader.equals(other.mPacketHeader)) {
+        } else if (!getHeader().equals(other.getHeader())) {
             return false;
         }
-        if (!Arrays.equals(mPacketPayload, other.mPacketPayload)) {
+        if (!Arrays.equals(getPayload(), other.getPayload())) {
             return false;
         }
         return true;
@@ -0,0 +1,157 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+/**
+ * Pool of {@link PooledCrtpPacket}s for the high rate packet paths (commander set-points, radio RX).
+ *
+ * When the pool is empty a new packet is allocated, so a packet that is never released
+ * (e.g. one handed to a driver that does not know about pooling) only costs an allocation.
+ */
+public final class CrtpPacketPool {
+
+    /**
+     * Max number of idle packets kept by the pool
+     */
+    public static final int CAPACITY = 128;
+
+    private static final Object sLock = new Object();
+    private static final PooledCrtpPacket[] sFreePackets = new PooledCrtpPacket[CAPACITY];
+    private static int sFreeCount = 0;
+    private static long sAllocationCount = 0;
+
+    private CrtpPacketPool() {
+    }
+
+    /**
+     * Lease an empty packet from the pool. The caller owns one reference.
+     *
+     * @return empty packet with a NULL packet header
+     */
+    public static PooledCrtpPacket acquire() {
+        PooledCrtpPacket packet = null;
+        synchronized (sLock) {
+            if (sFreeCount > 0) {
+                sFreeCount--;
+                packet = sFreePackets[sFreeCount];
+                sFreePackets[sFreeCount] = null;
+            } else {
+                sAllocationCount++;
+            }
+        }
+        if (packet == null) {
+            packet = new PooledCrtpPacket();
+        }
+        packet.lease();
+        packet.setHeader((byte) 0xFF);
+        return packet;
+    }
+
+    /**
+     * Lease an empty packet from the pool and set its header.
+     *
+     * @param channel channel to set in the header.
+     * @param port port to set in the header.
+     * @return empty packet
+     */
+    public static PooledCrtpPacket acquire(int channel, CrtpPort port) {
+        PooledCrtpPacket packet = acquire();
+        packet.setHeader(channel, port);
+        return packet;
+    }
+
+    /**
+     * Lease a packet from the pool and fill it with raw packet data (header + payload).
+     *
+     * @param packetData raw packet data
+     * @param offset start of the packet in packetData
+     * @param length number of bytes including the header
+     * @return filled packet
+     */
+    public static PooledCrtpPacket acquire(byte[] packetData, int offset, int length) {
+        PooledCrtpPacket packet = acquire();
+        packet.setHeader(packetData[offset]);
+        packet.setPayload(packetData, offset + 1, length - 1);
+        return packet;
+    }
+
+    /**
+     * Add a reference to the packet if it is a pooled packet, otherwise do nothing.
+     *
+     * @param packet
+     */
+    public static void retain(CrtpPacket packet) {
+        if (packet instanceof PooledCrtpPacket) {
+            ((PooledCrtpPacket) packet).retain();
+        }
+    }
+
+    /**
+     * Drop a reference to the packet if it is a pooled packet, otherwise do nothing.
+     *
+     * @param packet
+     */
+    public static void release(CrtpPacket packet) {
+        if (packet instanceof PooledCrtpPacket) {
+            ((PooledCrtpPacket) packet).release();
+        }
+    }
+
+    /* package private */ static void recycle(PooledCrtpPacket packet) {
+        synchronized (sLock) {
+            if (sFreeCount < CAPACITY) {
+                sFreePackets[sFreeCount] = packet;
+                sFreeCount++;
+            }
+        }
+    }
+
+    /**
+     * Get the number of idle packets in the pool
+     *
+     * @return number of idle packets
+     */
+    public static int getFreeCount() {
+        synchronized (sLock) {
+            return sFreeCount;
+        }
+    }
+
+    /**
+     * Get the number of packets that had to be allocated because the pool was empty.
+     * This number stops growing once the pool has warmed up.
+     *
+     * @return number of allocated packets
+     */
+    public static long getAllocationCount() {
+        synchronized (sLock) {
+            return sAllocationCount;
+        }
+    }
+
+}
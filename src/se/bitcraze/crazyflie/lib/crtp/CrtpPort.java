@@ -37,6 +37,7 @@ public enum CrtpPort {
     COMMANDER(3),
     MEMORY(4),
     LOGGING(5),
+    LOCALIZATION(6),
     COMMANDER_GENERIC(7),
     DEBUGDRIVER(14),
     LINKCTRL(15),
@@ -45,6 +46,19 @@ public enum CrtpPort {
 
     private byte mNumber;
 
+    // port lookup table indexed by (number & 0xFF)
+    private static final CrtpPort[] sPortsByNumber = new CrtpPort[256];
+
+    static {
+        for (CrtpPort p : CrtpPort.values()) {
+            int index = p.getNumber() & 0xFF;
+            // keep the first match to be consistent with the declaration order (ALL vs. UNKNOWN)
+            if (sPortsByNumber[index] == null) {
+                sPortsByNumber[index] = p;
+            }
+        }
+    }
+
     private CrtpPort(int number) {
         this.mNumber = (byte) number;
     }
@@ -66,11 +80,6 @@ public enum CrtpPort {
      * @return the port or <code>null</code> if no port with the specified number exists.
      */
     public static CrtpPort getByNumber(byte number) {
-        for (CrtpPort p : CrtpPort.values()) {
-            if (p.getNumber() == number) {
-                return p;
-            }
-        }
-        return null;
+        return sPortsByNumber[number & 0xFF];
     }
 }
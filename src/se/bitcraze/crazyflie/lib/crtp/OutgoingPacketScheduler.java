@@ -0,0 +1,398 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer.OverflowPolicy;
+
+/**
+ * Schedules outgoing packets of a link driver in three lanes.
+ *
+ * <ul>
+ * <li>CONTROL: log/param settings, link control, everything that is not a setpoint or bulk traffic</li>
+ * <li>SETPOINT: commander packets. Only the newest packet per port/channel is kept,
+ * a new setpoint replaces the one that has not been sent yet. Setpoints older than
+ * the max age are dropped instead of being sent.</li>
+ * <li>BULK: TOC downloads, memory access, console and debug traffic</li>
+ * </ul>
+ *
+ * Lanes are served by priority CONTROL, SETPOINT, BULK. A setpoint is never sent twice in a
+ * row while other lanes have packets waiting, so a sender flooding setpoints can not starve the
+ * other lanes, while a fresh setpoint waits for at most one other packet.
+ *
+ * Any number of threads may add packets, but only one thread (the radio thread) may take them.
+ */
+public final class OutgoingPacketScheduler {
+
+    public enum Lane {
+        CONTROL,
+        SETPOINT,
+        BULK
+    }
+
+    public static final long DEFAULT_SETPOINT_MAX_AGE_MS = 100;
+
+    private static final int SPIN_TRIES = 64;
+    private static final int YIELD_TRIES = 8;
+    private static final int TOC_CHANNEL = 0;
+
+    private final SpscRingBuffer<CrtpPacket> mControlLane;
+    private final SpscRingBuffer<CrtpPacket> mBulkLane;
+    private final OverflowPolicy mOverflowPolicy;
+    private final Object mControlLock = new Object();
+    private final Object mBulkLock = new Object();
+
+    // setpoint slots indexed by normalized header
+    private final AtomicReferenceArray<CrtpPacket> mSetpointSlots = new AtomicReferenceArray<CrtpPacket>(256);
+    private final AtomicLongArray mSetpointTimes = new AtomicLongArray(256);
+    // headers that have been used for setpoints, only grows
+    private volatile int[] mSetpointKeys = new int[0];
+    private int mNextSetpointKey = 0;
+    private boolean mLastWasSetpoint = false;
+
+    private volatile long mSetpointMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SETPOINT_MAX_AGE_MS);
+
+    private volatile Thread mWaitingConsumer;
+
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mExpiredCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * @param capacity capacity of the control and bulk lanes
+     * @param overflowPolicy what to do when the control or bulk lane is full
+     */
+    public OutgoingPacketScheduler(int capacity, OverflowPolicy overflowPolicy) {
+        this.mControlLane = new SpscRingBuffer<CrtpPacket>(capacity, overflowPolicy);
+        this.mBulkLane = new SpscRingBuffer<CrtpPacket>(capacity, overflowPolicy);
+        this.mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns the lane a packet is scheduled in
+     *
+     * @param packet
+     * @return lane of the packet
+     */
+    public static Lane getLane(CrtpPacket packet) {
+        CrtpPacket.Header header = packet.getHeader();
+        CrtpPort port = header.getPort();
+        if (port == CrtpPort.COMMANDER || port == CrtpPort.COMMANDER_GENERIC) {
+            return Lane.SETPOINT;
+        }
+        if (port == CrtpPort.MEMORY || port == CrtpPort.CONSOLE || port == CrtpPort.DEBUGDRIVER) {
+            return Lane.BULK;
+        }
+        if ((port == CrtpPort.LOGGING || port == CrtpPort.PARAMETERS) && header.getChannel() == TOC_CHANNEL) {
+            return Lane.BULK;
+        }
+        return Lane.CONTROL;
+    }
+
+    /**
+     * Add a packet. May block if the control or bulk lane is full and the overflow policy is BLOCK.
+     *
+     * @param packet packet to send
+     * @return a packet that was dropped or replaced and should be released, or null
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    public CrtpPacket offer(CrtpPacket packet) throws InterruptedException {
+        return offer(packet, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Add a packet. If the control or bulk lane is full and the overflow policy is BLOCK, this waits
+     * at most the given time for a free slot and returns the packet itself if the lane is still full.
+     *
+     * @param packet packet to send
+     * @param timeout max time to wait for a free slot
+     * @param unit unit of the timeout
+     * @return a packet that was dropped or replaced and should be released, or null
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    public CrtpPacket offer(CrtpPacket packet, long timeout, TimeUnit unit) throws InterruptedException {
+        CrtpPacket dropped;
+        switch (getLane(packet)) {
+            case SETPOINT:
+                dropped = offerSetpoint(packet);
+                if (dropped != null) {
+                    mCoalescedCount.incrementAndGet();
+                }
+                break;
+            case BULK:
+                synchronized (mBulkLock) {
+                    dropped = mBulkLane.offer(packet, timeout, unit);
+                }
+                countDropped(dropped);
+                break;
+            default:
+                synchronized (mControlLock) {
+                    dropped = mControlLane.offer(packet, timeout, unit);
+                }
+                countDropped(dropped);
+                break;
+        }
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return dropped;
+    }
+
+    private void countDropped(CrtpPacket dropped) {
+        if (dropped != null) {
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    private CrtpPacket offerSetpoint(CrtpPacket packet) {
+        int key = packet.getHeaderByte() & 0xF3;
+        registerSetpointKey(key);
+        mSetpointTimes.set(key, System.nanoTime());
+        return mSetpointSlots.getAndSet(key, packet);
+    }
+
+    private void registerSetpointKey(int key) {
+        for (int k : mSetpointKeys) {
+            if (k == key) {
+                return;
+            }
+        }
+        synchronized (this) {
+            int[] keys = mSetpointKeys;
+            for (int k : keys) {
+                if (k == key) {
+                    return;
+                }
+            }
+            int[] newKeys = new int[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, keys.length);
+            newKeys[keys.length] = key;
+            mSetpointKeys = newKeys;
+        }
+    }
+
+    /**
+     * Take the next packet to send without waiting. Must only be called by the sending thread.
+     *
+     * Expired setpoints are released here.
+     *
+     * @return next packet or null if all lanes are empty
+     */
+    public CrtpPacket poll() {
+        CrtpPacket packet = mControlLane.poll();
+        if (packet != null) {
+            mLastWasSetpoint = false;
+            return packet;
+        }
+        // let a waiting bulk packet go first if the last packet was a setpoint
+        if (mLastWasSetpoint && !mBulkLane.isEmpty()) {
+            mLastWasSetpoint = false;
+            return mBulkLane.poll();
+        }
+        packet = pollSetpoint();
+        if (packet != null) {
+            mLastWasSetpoint = true;
+            return packet;
+        }
+        mLastWasSetpoint = false;
+        return mBulkLane.poll();
+    }
+
+    private CrtpPacket pollSetpoint() {
+        int[] keys = mSetpointKeys;
+        long now = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            // round robin over the setpoint channels
+            int index = (mNextSetpointKey + i) % keys.length;
+            int key = keys[index];
+            CrtpPacket packet = mSetpointSlots.getAndSet(key, null);
+            if (packet == null) {
+                continue;
+            }
+            if (now - mSetpointTimes.get(key) > mSetpointMaxAgeNanos) {
+                mExpiredCount.incrementAndGet();
+                CrtpPacketPool.release(packet);
+                continue;
+            }
+            mNextSetpointKey = index + 1;
+            return packet;
+        }
+        return null;
+    }
+
+    /**
+     * Take the next packet to send, waiting up to the given time if all lanes are empty.
+     * Must only be called by the sending thread.
+     *
+     * @return next packet or null if the timeout expired
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public CrtpPacket poll(long timeout, TimeUnit unit) throws InterruptedException {
+        CrtpPacket packet = poll();
+        if (packet != null || timeout <= 0) {
+            return packet;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        while (true) {
+            if (tries < SPIN_TRIES) {
+                tries++;
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                tries++;
+                Thread.yield();
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                mWaitingConsumer = Thread.currentThread();
+                // check again after publishing the waiting thread, a sender might have missed it
+                if (isEmpty()) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                mWaitingConsumer = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            packet = poll();
+            if (packet != null) {
+                return packet;
+            }
+        }
+    }
+
+    /**
+     * Release all waiting packets. Must only be called by the sending thread or when it is stopped.
+     * Senders waiting for a free slot in a full lane are woken up.
+     */
+    public void clear() {
+        CrtpPacket packet;
+        while ((packet = mControlLane.poll()) != null) {
+            CrtpPacketPool.release(packet);
+        }
+        while ((packet = mBulkLane.poll()) != null) {
+            CrtpPacketPool.release(packet);
+        }
+        for (int key : mSetpointKeys) {
+            packet = mSetpointSlots.getAndSet(key, null);
+            if (packet != null) {
+                CrtpPacketPool.release(packet);
+            }
+        }
+    }
+
+    private int getPendingSetpointCount() {
+        int count = 0;
+        for (int key : mSetpointKeys) {
+            if (mSetpointSlots.get(key) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return mControlLane.isEmpty() && mBulkLane.isEmpty() && getPendingSetpointCount() == 0;
+    }
+
+    /**
+     * @return number of packets waiting in all lanes
+     */
+    public int size() {
+        return mControlLane.size() + mBulkLane.size() + getPendingSetpointCount();
+    }
+
+    /**
+     * @return number of packets waiting in the given lane
+     */
+    public int size(Lane lane) {
+        switch (lane) {
+            case SETPOINT:
+                return getPendingSetpointCount();
+            case BULK:
+                return mBulkLane.size();
+            default:
+                return mControlLane.size();
+        }
+    }
+
+    /**
+     * @return highest number of packets that were waiting in the control and bulk lane
+     */
+    public int getMaxDepth() {
+        return Math.max(mControlLane.getMaxDepth(), mBulkLane.getMaxDepth());
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * Set the max time a setpoint may wait before it is dropped
+     *
+     * @param maxAgeMs max age in milliseconds
+     */
+    public void setSetpointMaxAge(long maxAgeMs) {
+        if (maxAgeMs <= 0) {
+            throw new IllegalArgumentException("Max age must be positive.");
+        }
+        this.mSetpointMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+    }
+
+    public long getSetpointMaxAge() {
+        return TimeUnit.NANOSECONDS.toMillis(mSetpointMaxAgeNanos);
+    }
+
+    /**
+     * @return number of setpoints that were replaced by a newer one before they were sent
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * @return number of setpoints dropped because they were older than the max age
+     */
+    public long getExpiredCount() {
+        return mExpiredCount.get();
+    }
+
+    /**
+     * @return number of control and bulk packets dropped because their lane was full (or stayed full until the timeout)
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
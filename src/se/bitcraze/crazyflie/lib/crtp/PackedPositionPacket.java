@@ -0,0 +1,91 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packet with the external positions of up to four Crazyflies, e.g. from a motion capture system.
+ *
+ * Every Crazyflie picks its own item by id (the last byte of its radio address), so the packet can be
+ * broadcast to a whole swarm. Positions are sent in millimeters.
+ */
+public final class PackedPositionPacket {
+
+    public static final int CHANNEL = 2; // EXT_POSITION_PACKED
+    public static final int MAX_ITEMS = 4;
+
+    private static final int ITEM_BYTE_COUNT = 1 + 3 * 2; // id (uint8_t), x, y, z (int16_t)
+
+    private PackedPositionPacket() {
+    }
+
+    /**
+     * Lease a pooled packet with the positions of up to {@link #MAX_ITEMS} Crazyflies.
+     *
+     * @param ids ids of the Crazyflies (last byte of the radio address)
+     * @param x (m)
+     * @param y (m)
+     * @param z (m)
+     * @param offset index of the first item
+     * @param count number of items, at most {@link #MAX_ITEMS}
+     * @return pooled packet, ownership is transferred to the caller
+     */
+    public static PooledCrtpPacket obtain(int[] ids, float[] x, float[] y, float[] z, int offset, int count) {
+        if (count < 1 || count > MAX_ITEMS) {
+            throw new IllegalArgumentException("Count must be in range 1-" + MAX_ITEMS);
+        }
+        for (int i = offset; i < offset + count; i++) {
+            checkRange(x[i]);
+            checkRange(y[i]);
+            checkRange(z[i]);
+        }
+        PooledCrtpPacket packet = CrtpPacketPool.acquire(CHANNEL, CrtpPort.LOCALIZATION);
+        ByteBuffer buffer = packet.preparePayload(count * ITEM_BYTE_COUNT);
+        for (int i = offset; i < offset + count; i++) {
+            buffer.put((byte) ids[i]);
+            buffer.putShort(toMillimeters(x[i]));
+            buffer.putShort(toMillimeters(y[i]));
+            buffer.putShort(toMillimeters(z[i]));
+        }
+        return packet;
+    }
+
+    private static void checkRange(float meters) {
+        int mm = Math.round(meters * 1000f);
+        if (mm > Short.MAX_VALUE || mm < Short.MIN_VALUE) {
+            throw new IllegalArgumentException("Position out of range: " + meters + " m");
+        }
+    }
+
+    private static short toMillimeters(float meters) {
+        return (short) Math.round(meters * 1000f);
+    }
+
+}
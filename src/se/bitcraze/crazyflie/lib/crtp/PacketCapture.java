@@ -0,0 +1,336 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records CRTP traffic into a capture file, e.g. to reproduce problems or to replay a session with a {@code ReplayDriver} (test sources).
+ *
+ * File format (little endian):
+ * <pre>
+ * header:  "CFCP" (4 bytes), version (1 byte), reserved (3 bytes)
+ * record:  time delta to the previous record in ns (unsigned LEB128 varint),
+ *          direction (bit 7, 1 = outbound) | packet length (bits 0-5) (1 byte),
+ *          packet (header + payload)
+ * </pre>
+ * Timestamps are taken from {@link System#nanoTime()}, the first delta is relative to the creation of the capture.
+ *
+ * Records are collected in a buffer and appended to the file in batches when the buffer is full,
+ * at least once per second while packets are recorded, and on {@link #flush()} and {@link #close()}.
+ * Packets can be recorded from any thread. If writing the file fails, recording stops
+ * (see {@link #isFailed()}), packets are still sent and received.
+ */
+public class PacketCapture implements Closeable {
+
+    final Logger mLogger = LoggerFactory.getLogger("PacketCapture");
+
+    public static final int VERSION = 1;
+
+    private static final byte[] MAGIC = new byte[] {'C', 'F', 'C', 'P'};
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 10 + 1 + CrtpPacket.MAX_PACKET_SIZE;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final long MAX_FLUSH_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+    private static final int DIRECTION_OUT = 0x80;
+    private static final int LENGTH_MASK = 0x3F;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private long mLastTimestamp;
+    private long mLastFlush;
+    private long mRecordCount = 0;
+    private boolean mClosed = false;
+    private boolean mFailed = false;
+
+    /**
+     * Create a new capture file, an existing file is overwritten
+     *
+     * @param file capture file
+     * @throws IOException if the file can not be written
+     */
+    public PacketCapture(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a new capture file, an existing file is overwritten
+     *
+     * @param file capture file
+     * @param bufferSize size of the write buffer in bytes
+     * @throws IOException if the file can not be written
+     */
+    public PacketCapture(File file, int bufferSize) throws IOException {
+        if (bufferSize < MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Buffer size must be at least " + MAX_RECORD_SIZE + " bytes");
+        }
+        this.mStream = new FileOutputStream(file);
+        this.mChannel = mStream.getChannel();
+        this.mBuffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.put(MAGIC);
+        mBuffer.put((byte) VERSION);
+        mBuffer.put(new byte[3]);
+        this.mLastTimestamp = System.nanoTime();
+        this.mLastFlush = mLastTimestamp;
+    }
+
+    /**
+     * Record a packet received from the Crazyflie
+     *
+     * @param packet received packet
+     */
+    public void recordInbound(CrtpPacket packet) {
+        record(packet, false, System.nanoTime());
+    }
+
+    /**
+     * Record a packet sent to the Crazyflie
+     *
+     * @param packet sent packet
+     */
+    public void recordOutbound(CrtpPacket packet) {
+        record(packet, true, System.nanoTime());
+    }
+
+    private synchronized void record(CrtpPacket packet, boolean outbound, long timestamp) {
+        if (mClosed) {
+            return;
+        }
+        int length = packet.getSerializedSize();
+        if (length > CrtpPacket.MAX_PACKET_SIZE) {
+            // can not be sent over the air either
+            return;
+        }
+        try {
+            if (mBuffer.remaining() < MAX_RECORD_SIZE) {
+                writeBuffer();
+            }
+            // timestamps of concurrent callers may be slightly out of order
+            long delta = Math.max(0, timestamp - mLastTimestamp);
+            mLastTimestamp = Math.max(timestamp, mLastTimestamp);
+            putVarint(mBuffer, delta);
+            mBuffer.put((byte) ((outbound ? DIRECTION_OUT : 0) | length));
+            packet.writeTo(mBuffer);
+            mRecordCount++;
+            if (timestamp - mLastFlush > MAX_FLUSH_INTERVAL_NS) {
+                writeBuffer();
+            }
+        } catch (IOException e) {
+            // called while sending and dispatching packets, only the capture must stop
+            mLogger.error("Could not write capture file, recording stopped: " + e.getMessage());
+            mFailed = true;
+            mClosed = true;
+            try {
+                mStream.close();
+            } catch (IOException ioe) {
+                // already failed
+            }
+        }
+    }
+
+    /**
+     * @return true if recording stopped because the capture file could not be written
+     */
+    public synchronized boolean isFailed() {
+        return mFailed;
+    }
+
+    /**
+     * @return number of recorded packets
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Write all buffered records to the file
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (!mClosed) {
+            writeBuffer();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            writeBuffer();
+        } finally {
+            mClosed = true;
+            mStream.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+        mLastFlush = System.nanoTime();
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read all records of a capture file. Incomplete records at the end of the file (e.g. after a crash) are ignored.
+     *
+     * @param file capture file
+     * @return records in the order they were recorded
+     * @throws IOException if the file can not be read or is not a capture file
+     */
+    public static List<Record> read(File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            if (buffer.remaining() < HEADER_SIZE) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            buffer.get(magic);
+            int version = buffer.get() & 0xFF;
+            if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+                throw new IOException("Not a capture file or unsupported version: " + file);
+            }
+            buffer.position(HEADER_SIZE);
+
+            List<Record> records = new ArrayList<Record>();
+            long timestamp = 0;
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                long delta = getVarint(buffer);
+                if (delta < 0 || !buffer.hasRemaining()) {
+                    break;
+                }
+                int flags = buffer.get() & 0xFF;
+                int length = flags & LENGTH_MASK;
+                if (length < 1 || length > CrtpPacket.MAX_PACKET_SIZE || buffer.remaining() < length) {
+                    buffer.position(start);
+                    break;
+                }
+                byte[] data = new byte[length];
+                buffer.get(data);
+                timestamp += delta;
+                records.add(new Record(timestamp, (flags & DIRECTION_OUT) != 0, data));
+            }
+            return records;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return the value or -1 if the varint is incomplete
+     */
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int b = buffer.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * One recorded packet
+     */
+    public static final class Record {
+
+        private final long mTimestamp;
+        private final boolean mOutbound;
+        private final byte[] mData;
+
+        Record(long timestamp, boolean outbound, byte[] data) {
+            this.mTimestamp = timestamp;
+            this.mOutbound = outbound;
+            this.mData = data;
+        }
+
+        /**
+         * @return time since the creation of the capture in ns
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public boolean isOutbound() {
+            return mOutbound;
+        }
+
+        /**
+         * @return the packet (header + payload)
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        public CrtpPacket toPacket() {
+            return new CrtpPacket(mData);
+        }
+
+        @Override
+        public String toString() {
+            return "Record: " + (mOutbound ? "OUT" : "IN") + " t: " + mTimestamp + "ns " + CrtpPacket.Header.valueOf(mData[0]);
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mutable packet that is leased from the {@link CrtpPacketPool} instead of being allocated
+ * for every transmission.
+ *
+ * A pooled packet is reference counted: {@link CrtpPacketPool#acquire()} hands out a packet
+ * with one reference and the packet goes back to the pool when the last reference is released.
+ * Passing a pooled packet to {@code Crazyflie.sendPacket()} or {@code CrtpDriver.sendPacket()}
+ * transfers the caller's reference, i.e. the caller must not touch the packet afterwards.
+ * Pooled packets handed to a {@code DataListener} are only valid during the callback.
+ *
+ * The payload is kept in one exact-length array per possible length, so that
+ * {@link #getPayload()} and {@link #toByteArray()} do not allocate in steady state.
+ */
+public final class PooledCrtpPacket extends CrtpPacket {
+
+    /**
+     * Max size of the payload (the radio can transfer 32 bytes including the header)
+     */
+    public static final int MAX_PAYLOAD_LENGTH = MAX_PACKET_SIZE - 1;
+
+    private final byte[][] mPayloads = new byte[MAX_PAYLOAD_LENGTH + 1][];
+    private final ByteBuffer[] mPayloadBuffers = new ByteBuffer[MAX_PAYLOAD_LENGTH + 1];
+    private final byte[][] mSerializedPackets = new byte[MAX_PACKET_SIZE + 1][];
+
+    private final AtomicInteger mRefCount = new AtomicInteger(0);
+
+    private byte mHeaderByte = (byte) 0xFF;
+    private Header mHeader = Header.valueOf(mHeaderByte);
+    private int mLength = 0;
+
+    /* package private */ PooledCrtpPacket() {
+        super();
+    }
+
+    /**
+     * Set the header of the packet.
+     *
+     * @param header raw header byte
+     */
+    public void setHeader(byte header) {
+        this.mHeader = Header.valueOf(header);
+        this.mHeaderByte = header;
+    }
+
+    /**
+     * Set the header of the packet.
+     *
+     * @param channel channel to set in the header.
+     * @param port port to set in the header.
+     */
+    public void setHeader(int channel, CrtpPort port) {
+        this.mHeader = Header.valueOf(channel, port);
+        this.mHeaderByte = mHeader.getByte();
+    }
+
+    /**
+     * Copy the given bytes into the payload of the packet.
+     *
+     * @param data source array
+     * @param offset start of the payload in the source array
+     * @param length number of bytes to copy
+     */
+    public void setPayload(byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, payloadArray(length), 0, length);
+        this.mLength = length;
+    }
+
+    /**
+     * Set the payload length and return a buffer (little endian, position 0) that can be used to fill in
+     * exactly <code>length</code> bytes of payload.
+     *
+     * @param length payload length
+     * @return buffer backed by the payload of the packet
+     */
+    public ByteBuffer preparePayload(int length) {
+        byte[] payload = payloadArray(length);
+        ByteBuffer buffer = mPayloadBuffers[length];
+        if (buffer == null) {
+            buffer = ByteBuffer.wrap(payload).order(BYTE_ORDER);
+            mPayloadBuffers[length] = buffer;
+        }
+        buffer.clear();
+        this.mLength = length;
+        return buffer;
+    }
+
+    private byte[] payloadArray(int length) {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload length must be in range 0-" + MAX_PAYLOAD_LENGTH + " (was " + length + ")");
+        }
+        byte[] payload = mPayloads[length];
+        if (payload == null) {
+            payload = new byte[length];
+            mPayloads[length] = payload;
+        }
+        return payload;
+    }
+
+    @Override
+    public byte getHeaderByte() {
+        return mHeaderByte;
+    }
+
+    @Override
+    public Header getHeader() {
+        return mHeader;
+    }
+
+    @Override
+    public byte[] getPayload() {
+        return payloadArray(mLength);
+    }
+
+    @Override
+    protected void serializeData(ByteBuffer buffer) {
+        buffer.put(getPayload(), 0, mLength);
+    }
+
+    @Override
+    protected int getDataByteCount() {
+        return mLength;
+    }
+
+    @Override
+    public int writeTo(byte[] target, int offset) {
+        target[offset] = mHeaderByte;
+        System.arraycopy(getPayload(), 0, target, offset + 1, mLength);
+        return mLength + 1;
+    }
+
+    /**
+     * Convert the packet to a byte array suitable for transmission.
+     * The returned array is owned by the packet and is overwritten when the packet is reused.
+     *
+     * @return byte array containing the header and packet data.
+     */
+    @Override
+    public byte[] toByteArray() {
+        int size = mLength + 1;
+        byte[] serializedPacket = mSerializedPackets[size];
+        if (serializedPacket == null) {
+            serializedPacket = new byte[size];
+            mSerializedPackets[size] = serializedPacket;
+        }
+        writeTo(serializedPacket, 0);
+        return serializedPacket;
+    }
+
+    /**
+     * Add a reference to this packet, e.g. when it is kept in a resend queue.
+     */
+    public void retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            mRefCount.getAndDecrement();
+            throw new IllegalStateException("Packet has already been released to the pool.");
+        }
+    }
+
+    /**
+     * Drop a reference to this packet. The packet is returned to the pool when no references are left.
+     */
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            setExpectedReply(null);
+            CrtpPacketPool.recycle(this);
+        } else if (refCount < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("Packet has already been released to the pool.");
+        }
+    }
+
+    /* package private */ void lease() {
+        mRefCount.set(1);
+        mLength = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PooledCrtpPacket: port: " + this.getHeader().getPort() + " channel: " + this.getHeader().getChannel() + " length: " + mLength;
+    }
+
+}
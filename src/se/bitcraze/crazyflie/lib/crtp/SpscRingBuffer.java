@@ -0,0 +1,291 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, preallocated ring buffer for one producer and one consumer thread.
+ *
+ * Neither side takes a lock and no memory is allocated per element. Callers with more than one
+ * producer thread have to serialize {@link #offer(Object)} themselves.
+ * When the buffer is full the {@link OverflowPolicy} decides whether the producer waits or which
+ * element is dropped. Dropped elements are returned to the producer, so pooled packets can be released.
+ *
+ * Waiting threads spin briefly, then yield and finally park until the other side wakes them up
+ * or the timeout expires. The radio thread usually finds an element within a few spins.
+ *
+ * @param <E> element type
+ */
+public final class SpscRingBuffer<E> {
+
+    public enum OverflowPolicy {
+        /** wait until the consumer frees a slot */
+        BLOCK,
+        /** drop the oldest element in the buffer */
+        DROP_OLDEST,
+        /** drop the element that should be added */
+        DROP_NEWEST
+    }
+
+    private static final int SPIN_TRIES = 64;
+    private static final int YIELD_TRIES = 8;
+
+    private final Object[] mBuffer;
+    private final int mMask;
+    private final OverflowPolicy mOverflowPolicy;
+
+    // next index to read, only advanced with CAS because DROP_OLDEST lets the producer consume too
+    private final AtomicLong mHead = new AtomicLong();
+    // next index to write
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile Thread mWaitingConsumer;
+    private volatile Thread mWaitingProducer;
+
+    private final AtomicLong mDropCount = new AtomicLong();
+    private volatile int mMaxDepth;
+
+    /**
+     * @param capacity max number of elements, rounded up to the next power of two
+     * @param overflowPolicy what to do when the buffer is full
+     */
+    public SpscRingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("OverflowPolicy can not be null");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mBuffer = new Object[size];
+        this.mMask = size - 1;
+        this.mOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Add an element. Depending on the overflow policy this blocks or drops an element when the buffer is full.
+     *
+     * @param element element to add
+     * @return the dropped element or null if nothing was dropped
+     * @throws InterruptedException if interrupted while waiting for a free slot (BLOCK only)
+     */
+    public E offer(E element) throws InterruptedException {
+        return offer(element, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Add an element. With the BLOCK policy this waits at most the given time for a free slot
+     * and returns the element itself if the buffer is still full, the other policies never wait.
+     *
+     * @param element element to add
+     * @param timeout max time to wait for a free slot (BLOCK only)
+     * @param unit unit of the timeout
+     * @return the dropped element or null if nothing was dropped
+     * @throws InterruptedException if interrupted while waiting for a free slot (BLOCK only)
+     */
+    public E offer(E element, long timeout, TimeUnit unit) throws InterruptedException {
+        if (element == null) {
+            throw new IllegalArgumentException("Element can not be null");
+        }
+        E dropped = null;
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            switch (mOverflowPolicy) {
+                case DROP_NEWEST:
+                    mDropCount.incrementAndGet();
+                    return element;
+                case DROP_OLDEST:
+                    dropped = pollInternal();
+                    if (dropped != null) {
+                        mDropCount.incrementAndGet();
+                    }
+                    break;
+                default:
+                    if (!awaitFreeSlot(tail, timeout, unit)) {
+                        mDropCount.incrementAndGet();
+                        return element;
+                    }
+                    break;
+            }
+        }
+        mBuffer[(int) tail & mMask] = element;
+        // volatile write, pairs with the read of mWaitingConsumer below
+        mTail.set(tail + 1);
+
+        int depth = (int) (tail + 1 - mHead.get());
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return dropped;
+    }
+
+    private boolean awaitFreeSlot(long tail, long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        int tries = 0;
+        while (tail - mHead.get() > mMask) {
+            if (tries < SPIN_TRIES) {
+                tries++;
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                tries++;
+                Thread.yield();
+            } else {
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                if (remaining <= 0) {
+                    return false;
+                }
+                mWaitingProducer = Thread.currentThread();
+                if (tail - mHead.get() > mMask) {
+                    LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)));
+                }
+                mWaitingProducer = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove the oldest element without waiting
+     *
+     * @return the oldest element or null if the buffer is empty
+     */
+    public E poll() {
+        E element = pollInternal();
+        if (element != null) {
+            Thread producer = mWaitingProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+        return element;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E pollInternal() {
+        while (true) {
+            long head = mHead.get();
+            if (head == mTail.get()) {
+                return null;
+            }
+            E element = (E) mBuffer[(int) head & mMask];
+            // fails if the producer dropped this element in the meantime
+            if (mHead.compareAndSet(head, head + 1)) {
+                return element;
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest element, waiting up to the given time if the buffer is empty
+     *
+     * @return the oldest element or null if the timeout expired
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        if (element != null || timeout <= 0) {
+            return element;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        while (true) {
+            if (tries < SPIN_TRIES) {
+                tries++;
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                tries++;
+                Thread.yield();
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                mWaitingConsumer = Thread.currentThread();
+                // check again after publishing the waiting thread, the producer might have missed it
+                if (mHead.get() == mTail.get()) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                mWaitingConsumer = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            element = poll();
+            if (element != null) {
+                return element;
+            }
+        }
+    }
+
+    /**
+     * @return current number of elements
+     */
+    public int size() {
+        // read head first, so the result is never negative
+        long head = mHead.get();
+        return (int) (mTail.get() - head);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * @return number of elements dropped because the buffer was full or the wait for a free slot timed out
+     */
+    public long getDropCount() {
+        return mDropCount.get();
+    }
+
+    /**
+     * @return highest number of elements that were in the buffer at the same time
+     */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+}
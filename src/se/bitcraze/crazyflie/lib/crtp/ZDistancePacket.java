@@ -11,6 +11,9 @@ import java.nio.ByteBuffer;
  */
 
 public class ZDistancePacket extends CrtpPacket {
+
+    private static final int DATA_BYTE_COUNT = 1 + 4 * 4; // 1 byte (type), 4 floats with size 4
+
     private final float mRoll;
     private final float mPitch;
     private final float mYawrate;
@@ -33,18 +36,37 @@ public class ZDistancePacket extends CrtpPacket {
         this.mZDistance = zDistance;
     }
 
+    /**
+     * Lease a pooled zDistance packet instead of allocating a new one.
+     *
+     * @param roll (Deg.)
+     * @param pitch (Deg.)
+     * @param yaw (Deg./s)
+     * @param zDistance (m)
+     * @return pooled packet, ownership is transferred to the caller
+     */
+    public static PooledCrtpPacket obtain(float roll, float pitch, float yaw, float zDistance) {
+        PooledCrtpPacket packet = CrtpPacketPool.acquire(0, CrtpPort.COMMANDER_GENERIC);
+        serialize(packet.preparePayload(DATA_BYTE_COUNT), roll, pitch, yaw, zDistance);
+        return packet;
+    }
+
+    private static void serialize(ByteBuffer buffer, float roll, float pitch, float yawrate, float zDistance) {
+        buffer.put((byte) 0x02);
+        buffer.putFloat(roll);
+        buffer.putFloat(-pitch); //invert axis
+        buffer.putFloat(yawrate);
+        buffer.putFloat(zDistance);
+    }
+
     @Override
     protected void serializeData(ByteBuffer buffer) {
-        buffer.put((byte) 0x02);
-        buffer.putFloat(mRoll);
-        buffer.putFloat(-mPitch); //invert axis
-        buffer.putFloat(mYawrate);
-        buffer.putFloat(mZDistance);
+        serialize(buffer, mRoll, mPitch, mYawrate, mZDistance);
     }
 
     @Override
     protected int getDataByteCount() {
-        return 1 + 4 * 4; // 1 byte (type), 4 floats with size 4, 1 byte (type)
+        return DATA_BYTE_COUNT;
     }
 
     @Override
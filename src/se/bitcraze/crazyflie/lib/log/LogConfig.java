@@ -27,13 +27,9 @@
 
 package se.bitcraze.crazyflie.lib.log;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
-import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
 import se.bitcraze.crazyflie.lib.toc.VariableType;
 
 
@@ -60,6 +56,9 @@ public class LogConfig {
     private boolean mStarted = false;
     private boolean mValid = false;
 
+    // compiled on first use, reset when the variables change
+    private LogDecoder mDecoder;
+
     /**
      * Create a log configuration
      *
@@ -90,6 +89,7 @@ public class LogConfig {
         LogVariable newLogVariable = new LogVariable(name, type);
         if (!logVariables.contains(newLogVariable)) {
             logVariables.add(newLogVariable);
+            this.mDecoder = null;
         }
     }
 
@@ -102,6 +102,7 @@ public class LogConfig {
         LogVariable newLogVariable = new LogVariable(name);
         if (!logVariables.contains(newLogVariable)) {
             logVariables.add(newLogVariable);
+            this.mDecoder = null;
         }
     }
 
@@ -116,6 +117,7 @@ public class LogConfig {
         LogVariable newLogVariable = new LogVariable(name, type, LogVariable.MEM_TYPE, address);
         if (!logVariables.contains(newLogVariable)) {
             logVariables.add(newLogVariable);
+            this.mDecoder = null;
         }
     }
 
@@ -223,31 +225,19 @@ public class LogConfig {
     }
 
     /**
-     * Unpack received logging data so it represent real values according to the configuration in the entry
-     * @return
+     * Returns the decoder for the log data of this configuration
      */
-    // def unpack_log_data(self, log_data, timestamp):
-    public Map<String, Number> unpackLogData(byte[] logData) {
-        ByteBuffer logVariablesRaw = ByteBuffer.wrap(logData).order(CrtpPacket.BYTE_ORDER);
-        Map<String, Number> logDataMap = new ConcurrentHashMap<String, Number>();
-        for(LogVariable logVariable : this.getLogVariables()) {
-            Number parsedValue = logVariable.getVariableType().parse(logVariablesRaw);
-            logDataMap.put(logVariable.getName(), parsedValue);
-            //TODO: write to logger?
+    /* package private */ LogDecoder getDecoder() {
+        if (mDecoder == null) {
+            mDecoder = new LogDecoder(this);
         }
-        //TODO: timestamps and callback
-        return logDataMap;
-        /*
-        ret_data = {}
-        data_index = 0
-        for var in self.variables:
-            size = LogTocElement.get_size_from_id(var.fetch_as)
-            name = var.name
-            unpackstring = LogTocElement.get_unpack_string_from_id(var.fetch_as)
-            value = struct.unpack(unpackstring, log_data[data_index:data_index + size])[0]
-            data_index += size
-            ret_data[name] = value
-        self.data_received_cb.call(timestamp, ret_data, self)
-        */
+        return mDecoder;
+    }
+
+    /**
+     * Discard the decoder, e.g. after variable types have been resolved
+     */
+    /* package private */ void invalidateDecoder() {
+        this.mDecoder = null;
     }
 }
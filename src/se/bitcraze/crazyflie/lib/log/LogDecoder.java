@@ -0,0 +1,133 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.log;
+
+import java.util.List;
+
+import se.bitcraze.crazyflie.lib.toc.VariableType;
+
+/**
+ * Precomputed decoding plan for the log data of one {@link LogConfig}.
+ *
+ * Offsets and types of all variables are resolved once, decoding a packet
+ * reads the little endian values directly from the payload into a reused {@link LogRecord}.
+ */
+final class LogDecoder {
+
+    private final VariableType[] mTypes;
+    private final int[] mOffsets;
+    private final int mDataSize;
+    private final LogRecord mRecord;
+
+    LogDecoder(LogConfig logConfig) {
+        List<LogVariable> logVariables = logConfig.getLogVariables();
+        int size = logVariables.size();
+        this.mTypes = new VariableType[size];
+        this.mOffsets = new int[size];
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            VariableType type = logVariables.get(i).getVariableType();
+            if (type == null) {
+                throw new IllegalStateException("LogVariable " + logVariables.get(i).getName() + " has no VariableType.");
+            }
+            switch (type) {
+                case UINT8_T:
+                case UINT16_T:
+                case UINT32_T:
+                case INT8_T:
+                case INT16_T:
+                case INT32_T:
+                case FLOAT:
+                    break;
+                default:
+                    throw new IllegalStateException("VariableType " + type.name() + " is not supported for logging.");
+            }
+            mTypes[i] = type;
+            mOffsets[i] = offset;
+            offset += type.getSize();
+        }
+        this.mDataSize = offset;
+        this.mRecord = new LogRecord(logConfig, logVariables);
+    }
+
+    /**
+     * Number of bytes of log data
+     */
+    int getDataSize() {
+        return mDataSize;
+    }
+
+    /**
+     * Decode the log data of a packet
+     *
+     * @param data array containing the log data
+     * @param offset offset of the first variable in data
+     * @param timestamp timestamp of the packet
+     * @return the reused record with the decoded values
+     */
+    LogRecord decode(byte[] data, int offset, int timestamp) {
+        if (data.length - offset < mDataSize) {
+            throw new IllegalStateException("Log data too short (" + (data.length - offset) + " bytes, expected " + mDataSize + ").");
+        }
+        LogRecord record = mRecord;
+        record.setTimestamp(timestamp);
+        for (int i = 0; i < mTypes.length; i++) {
+            int pos = offset + mOffsets[i];
+            switch (mTypes[i]) {
+                case UINT8_T:
+                    record.setInt(i, data[pos] & 0xFF);
+                    break;
+                case UINT16_T:
+                    record.setInt(i, readShort(data, pos) & 0xFFFF);
+                    break;
+                case INT8_T:
+                    record.setInt(i, data[pos]);
+                    break;
+                case INT16_T:
+                    record.setInt(i, readShort(data, pos));
+                    break;
+                case FLOAT:
+                    record.setFloat(i, Float.intBitsToFloat(readInt(data, pos)));
+                    break;
+                default:
+                    // UINT32_T and INT32_T
+                    record.setInt(i, readInt(data, pos));
+                    break;
+            }
+        }
+        return record;
+    }
+
+    private static short readShort(byte[] data, int pos) {
+        return (short) ((data[pos] & 0xFF) | (data[pos + 1] << 8));
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16 | data[pos + 3] << 24;
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+
+package se.bitcraze.crazyflie.lib.log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.bitcraze.crazyflie.lib.toc.Toc;
+import se.bitcraze.crazyflie.lib.toc.TocElement;
+import se.bitcraze.crazyflie.lib.toc.VariableType;
+
+/**
+ * Distributes log variables with a desired period over as few log configs as possible.
+ *
+ * Periods are rounded down to the 10ms resolution of the firmware. The variables of each period
+ * are bin-packed (first fit decreasing) into blocks that fill one log data packet.
+ * The blocks are created, started and stopped through {@link Logg}, and their data is delivered
+ * as one stream to the {@link LogRecordListener}s of the planner.
+ *
+ * Usage: add the variables, then {@link #start()} after the connection setup has finished.
+ */
+public class LogPlanner {
+
+    final Logger mLogger = LoggerFactory.getLogger("LogPlanner");
+
+    // 30 bytes payload - log config id - 3 bytes timestamp
+    public static final int MAX_BLOCK_SIZE = 26;
+    // see Logg.create()
+    public static final int MAX_BLOCK_VARIABLES = 13;
+    // max number of log configs in the firmware
+    public static final int MAX_BLOCKS = 16;
+    // the period is sent as uint8 in 10ms units, see Logg.addConfig()
+    public static final int MIN_PERIOD_MS = 10;
+    public static final int MAX_PERIOD_MS = 2540;
+
+    private final Logg mLogg;
+    private final String mName;
+
+    // complete name -> requested variable, in the order they were added
+    private final Map<String, PlannedVariable> mVariables = new LinkedHashMap<String, PlannedVariable>();
+
+    private volatile List<LogConfig> mBlocks = null;
+    private float mPlannedPacketRate;
+    private float mNaivePacketRate;
+    private int mNaiveBlockCount;
+
+    private final Set<LogRecordListener> mLogRecordListeners = new CopyOnWriteArraySet<LogRecordListener>();
+    private final Map<String, Number> mLatestValues = new ConcurrentHashMap<String, Number>();
+    private volatile int mLatestTimestamp = -1;
+    private volatile boolean mRunning = false;
+
+    private final LogRecordListener mRecordForwarder = new LogRecordListener() {
+        public void logRecordReceived(LogRecord record) {
+            List<LogConfig> blocks = mBlocks;
+            if (blocks == null || !containsBlock(blocks, record.getLogConfig())) {
+                return;
+            }
+            for (int i = 0; i < record.getVariableCount(); i++) {
+                mLatestValues.put(record.getName(i), record.getNumber(i));
+            }
+            mLatestTimestamp = record.getTimestamp();
+            for (LogRecordListener listener : mLogRecordListeners) {
+                listener.logRecordReceived(record);
+            }
+        }
+    };
+
+    private final LogListener mBlockListener = new LogAdapter() {
+        @Override
+        public void logConfigError(LogConfig logConfig) {
+            List<LogConfig> blocks = mBlocks;
+            if (blocks != null && containsBlock(blocks, logConfig)) {
+                mLogger.warn("Planned log config " + logConfig.getName() + " failed: " + logConfig.getErrMsg());
+            }
+        }
+    };
+
+    /**
+     * @param logg Logg of a connected Crazyflie
+     * @param name prefix for the names of the planned log configs
+     */
+    public LogPlanner(Logg logg, String name) {
+        if (logg == null) {
+            throw new IllegalArgumentException("Logg is null!");
+        }
+        this.mLogg = logg;
+        this.mName = name;
+    }
+
+    /**
+     * Add a variable with the type from the log TOC. If the variable was already added,
+     * the shorter period is used.
+     *
+     * @param name complete name of the variable (group.name)
+     * @param periodInMs desired period, rounded down to a multiple of 10ms
+     */
+    public void addVariable(String name, int periodInMs) {
+        addVariable(name, null, periodInMs);
+    }
+
+    /**
+     * Add a variable. If the variable was already added, the shorter period is used.
+     *
+     * @param name complete name of the variable (group.name)
+     * @param type type to fetch the variable as, null for the type from the log TOC
+     * @param periodInMs desired period, rounded down to a multiple of 10ms
+     */
+    public synchronized void addVariable(String name, VariableType type, int periodInMs) {
+        if (mRunning) {
+            throw new IllegalStateException("Stop the planner before adding variables");
+        }
+        if (periodInMs < MIN_PERIOD_MS || periodInMs > MAX_PERIOD_MS + 9) {
+            throw new IllegalArgumentException("Period must be between " + MIN_PERIOD_MS + " and " + MAX_PERIOD_MS + "ms");
+        }
+        PlannedVariable variable = mVariables.get(name);
+        if (variable == null) {
+            mVariables.put(name, new PlannedVariable(name, type, periodInMs));
+        } else {
+            variable.mPeriodInMs = Math.min(variable.mPeriodInMs, periodInMs);
+            if (type != null) {
+                variable.mType = type;
+            }
+        }
+        mBlocks = null;
+    }
+
+    /**
+     * Distribute the variables over log configs. Called by {@link #start()} if necessary.
+     *
+     * @return the planned log configs
+     */
+    public synchronized List<LogConfig> plan() {
+        if (mVariables.isEmpty()) {
+            throw new IllegalStateException("No variables added to log planner " + mName);
+        }
+        resolveTypes();
+
+        // planned: grouped by the period the firmware can do, bin-packed
+        Map<Integer, List<PlannedVariable>> periodClasses = new TreeMap<Integer, List<PlannedVariable>>();
+        for (PlannedVariable variable : mVariables.values()) {
+            int period = roundPeriod(variable.mPeriodInMs);
+            List<PlannedVariable> periodClass = periodClasses.get(period);
+            if (periodClass == null) {
+                periodClass = new ArrayList<PlannedVariable>();
+                periodClasses.put(period, periodClass);
+            }
+            periodClass.add(variable);
+        }
+        List<LogConfig> blocks = new ArrayList<LogConfig>();
+        float packetRate = 0;
+        for (Map.Entry<Integer, List<PlannedVariable>> periodClass : periodClasses.entrySet()) {
+            List<List<PlannedVariable>> bins = packFirstFitDecreasing(periodClass.getValue());
+            for (int i = 0; i < bins.size(); i++) {
+                LogConfig logConfig = new LogConfig(mName + "-" + periodClass.getKey() + "ms-" + i, periodClass.getKey());
+                for (PlannedVariable variable : bins.get(i)) {
+                    logConfig.addVariable(variable.mName, variable.mType);
+                }
+                blocks.add(logConfig);
+                packetRate += 1000f / periodClass.getKey();
+            }
+        }
+
+        // naive: one log config per requested period, filled in the order the variables were added
+        Map<Integer, int[]> naiveBlocks = new HashMap<Integer, int[]>();
+        mNaiveBlockCount = 0;
+        mNaivePacketRate = 0;
+        for (PlannedVariable variable : mVariables.values()) {
+            // [size, count] of the log config that is currently filled
+            int[] current = naiveBlocks.get(variable.mPeriodInMs);
+            int size = variable.mType.getSize();
+            if (current == null || current[0] + size > MAX_BLOCK_SIZE || current[1] == MAX_BLOCK_VARIABLES) {
+                current = new int[2];
+                naiveBlocks.put(variable.mPeriodInMs, current);
+                mNaiveBlockCount++;
+                mNaivePacketRate += 1000f / roundPeriod(variable.mPeriodInMs);
+            }
+            current[0] += size;
+            current[1]++;
+        }
+
+        this.mPlannedPacketRate = packetRate;
+        this.mBlocks = Collections.unmodifiableList(blocks);
+        mLogger.info("Planned " + mVariables.size() + " variables in " + blocks.size() + " log configs, "
+                + packetRate + " packets/s (naive: " + mNaiveBlockCount + " log configs, " + mNaivePacketRate + " packets/s)");
+        return mBlocks;
+    }
+
+    /**
+     * Create and start the planned log configs. If a log config can not be created,
+     * the ones created so far are deleted again before the exception is thrown.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            mLogger.warn("Log planner " + mName + " is already started");
+            return;
+        }
+        List<LogConfig> blocks = (mBlocks != null) ? mBlocks : plan();
+        if (blocks.size() + mLogg.getLogConfigs().size() > MAX_BLOCKS) {
+            throw new IllegalStateException("Planned log configs (" + blocks.size() + ") and existing log configs ("
+                    + mLogg.getLogConfigs().size() + ") exceed the maximum of " + MAX_BLOCKS);
+        }
+        mLogg.addLogRecordListener(mRecordForwarder);
+        mLogg.addLogListener(mBlockListener);
+        List<LogConfig> added = new ArrayList<LogConfig>();
+        try {
+            for (LogConfig logConfig : blocks) {
+                mLogg.addConfig(logConfig);
+                if (!logConfig.isValid()) {
+                    throw new IllegalStateException("Planned log config " + logConfig.getName() + " is not valid");
+                }
+                added.add(logConfig);
+                // starts the log config after it was created
+                mLogg.create(logConfig);
+            }
+        } catch (RuntimeException e) {
+            mLogger.warn("Starting log planner " + mName + " failed, deleting " + added.size() + " log configs");
+            for (LogConfig logConfig : added) {
+                mLogg.delete(logConfig);
+            }
+            mLogg.removeLogRecordListener(mRecordForwarder);
+            mLogg.removeLogListener(mBlockListener);
+            throw e;
+        }
+        mRunning = true;
+    }
+
+    /**
+     * Stop and delete the planned log configs
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        for (LogConfig logConfig : mBlocks) {
+            if (logConfig.isAdded()) {
+                mLogg.stop(logConfig);
+                mLogg.delete(logConfig);
+            }
+        }
+        mLogg.removeLogRecordListener(mRecordForwarder);
+        mLogg.removeLogListener(mBlockListener);
+        mRunning = false;
+    }
+
+    /**
+     * @return true if all planned log configs have been started
+     */
+    public boolean isStarted() {
+        List<LogConfig> blocks = mBlocks;
+        if (!mRunning || blocks == null) {
+            return false;
+        }
+        for (LogConfig logConfig : blocks) {
+            if (!logConfig.isStarted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the planned log configs, or null if not planned yet
+     */
+    public List<LogConfig> getLogConfigs() {
+        return mBlocks;
+    }
+
+    /**
+     * @return log data packets per second of the planned log configs
+     */
+    public float getPlannedPacketRate() {
+        return mPlannedPacketRate;
+    }
+
+    /**
+     * @return log data packets per second if every requested period had its own log configs,
+     * filled in the order the variables were added
+     */
+    public float getNaivePacketRate() {
+        return mNaivePacketRate;
+    }
+
+    public int getNaiveBlockCount() {
+        return mNaiveBlockCount;
+    }
+
+    /**
+     * @param name complete name of the variable
+     * @return last received value of the variable, or null if none was received yet
+     */
+    public Number getLatestValue(String name) {
+        return mLatestValues.get(name);
+    }
+
+    /**
+     * @return copy of the last received values of all variables (complete name -> value)
+     */
+    public Map<String, Number> getLatestValues() {
+        return new HashMap<String, Number>(mLatestValues);
+    }
+
+    /**
+     * @return timestamp of the last received log data, -1 if none was received yet
+     */
+    public int getLatestTimestamp() {
+        return mLatestTimestamp;
+    }
+
+    /**
+     * Add a listener for the log data of all planned log configs
+     */
+    public void addLogRecordListener(LogRecordListener logRecordListener) {
+        mLogRecordListeners.add(logRecordListener);
+    }
+
+    /**
+     * Remove the log record listener
+     */
+    public void removeLogRecordListener(LogRecordListener logRecordListener) {
+        mLogRecordListeners.remove(logRecordListener);
+    }
+
+    private void resolveTypes() {
+        Toc toc = mLogg.getToc();
+        for (PlannedVariable variable : mVariables.values()) {
+            if (variable.mType == null) {
+                TocElement tocElement = (toc != null) ? toc.getElementByCompleteName(variable.mName) : null;
+                if (tocElement == null) {
+                    throw new IllegalStateException("Log variable " + variable.mName + " is not in the TOC");
+                }
+                variable.mType = tocElement.getCtype();
+            }
+        }
+    }
+
+    /* package private */ static int roundPeriod(int periodInMs) {
+        return Math.min(MAX_PERIOD_MS, Math.max(MIN_PERIOD_MS, periodInMs / 10 * 10));
+    }
+
+    private static List<List<PlannedVariable>> packFirstFitDecreasing(List<PlannedVariable> variables) {
+        List<PlannedVariable> sorted = new ArrayList<PlannedVariable>(variables);
+        // stable, so equally sized variables keep the order they were added in
+        Collections.sort(sorted, new Comparator<PlannedVariable>() {
+            public int compare(PlannedVariable v1, PlannedVariable v2) {
+                return v2.mType.getSize() - v1.mType.getSize();
+            }
+        });
+        List<List<PlannedVariable>> bins = new ArrayList<List<PlannedVariable>>();
+        List<Integer> binSizes = new ArrayList<Integer>();
+        for (PlannedVariable variable : sorted) {
+            int size = variable.mType.getSize();
+            int bin = 0;
+            while (bin < bins.size() && (binSizes.get(bin) + size > MAX_BLOCK_SIZE || bins.get(bin).size() == MAX_BLOCK_VARIABLES)) {
+                bin++;
+            }
+            if (bin == bins.size()) {
+                bins.add(new ArrayList<PlannedVariable>());
+                binSizes.add(0);
+            }
+            bins.get(bin).add(variable);
+            binSizes.set(bin, binSizes.get(bin) + size);
+        }
+        return bins;
+    }
+
+    private static boolean containsBlock(List<LogConfig> blocks, LogConfig logConfig) {
+        for (LogConfig block : blocks) {
+            if (block == logConfig) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class PlannedVariable {
+        final String mName;
+        VariableType mType;
+        int mPeriodInMs;
+
+        PlannedVariable(String name, VariableType type, int periodInMs) {
+            this.mName = name;
+            this.mType = type;
+            this.mPeriodInMs = periodInMs;
+        }
+    }
+
+}
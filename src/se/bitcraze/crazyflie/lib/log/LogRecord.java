@@ -0,0 +1,176 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import se.bitcraze.crazyflie.lib.toc.VariableType;
+
+/**
+ * Decoded values of one log data packet.
+ *
+ * Values are stored in primitive slots addressed by the index of the variable
+ * in {@link LogConfig#getLogVariables()}. Integer variables use the int slots
+ * (UINT32_T values are stored as raw bits, use {@link #getLong(int)}),
+ * FLOAT variables use the float slots.
+ *
+ * The record is reused for every packet of its log config, so it is only
+ * valid during the {@link LogRecordListener#logRecordReceived(LogRecord)} callback.
+ */
+public final class LogRecord {
+
+    private final LogConfig mLogConfig;
+    private final String[] mNames;
+    private final VariableType[] mTypes;
+    private final int[] mIntValues;
+    private final float[] mFloatValues;
+    private int mTimestamp;
+
+    /* package private */ LogRecord(LogConfig logConfig, List<LogVariable> logVariables) {
+        this.mLogConfig = logConfig;
+        int size = logVariables.size();
+        this.mNames = new String[size];
+        this.mTypes = new VariableType[size];
+        this.mIntValues = new int[size];
+        this.mFloatValues = new float[size];
+        for (int i = 0; i < size; i++) {
+            mNames[i] = logVariables.get(i).getName();
+            mTypes[i] = logVariables.get(i).getVariableType();
+        }
+    }
+
+    /* package private */ void setTimestamp(int timestamp) {
+        this.mTimestamp = timestamp;
+    }
+
+    /* package private */ void setInt(int index, int value) {
+        mIntValues[index] = value;
+    }
+
+    /* package private */ void setFloat(int index, float value) {
+        mFloatValues[index] = value;
+    }
+
+    public LogConfig getLogConfig() {
+        return mLogConfig;
+    }
+
+    public int getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getVariableCount() {
+        return mNames.length;
+    }
+
+    public String getName(int index) {
+        return mNames[index];
+    }
+
+    public VariableType getType(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * Returns the index of the variable with the given name
+     *
+     * @param name complete name of the variable
+     * @return index of the variable or -1 if the log config does not contain it
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < mNames.length; i++) {
+            if (mNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean isFloat(int index) {
+        return mTypes[index] == VariableType.FLOAT;
+    }
+
+    /**
+     * @return the value of an integer variable, FLOAT values are truncated
+     */
+    public int getInt(int index) {
+        return isFloat(index) ? (int) mFloatValues[index] : mIntValues[index];
+    }
+
+    /**
+     * @return the value of an integer variable, UINT32_T values are returned unsigned
+     */
+    public long getLong(int index) {
+        if (isFloat(index)) {
+            return (long) mFloatValues[index];
+        }
+        return (mTypes[index] == VariableType.UINT32_T) ? (mIntValues[index] & 0xFFFFFFFFL) : mIntValues[index];
+    }
+
+    /**
+     * @return the value of a variable as float
+     */
+    public float getFloat(int index) {
+        return isFloat(index) ? mFloatValues[index] : getLong(index);
+    }
+
+    /**
+     * Returns the value boxed with the same types as {@link VariableType#parse(java.nio.ByteBuffer)}
+     *
+     * @return the boxed value of the variable
+     */
+    public Number getNumber(int index) {
+        switch (mTypes[index]) {
+            case UINT32_T:
+                return getLong(index);
+            case INT8_T:
+                return (byte) mIntValues[index];
+            case INT16_T:
+                return (short) mIntValues[index];
+            case FLOAT:
+                return mFloatValues[index];
+            default:
+                return mIntValues[index];
+        }
+    }
+
+    /**
+     * Copy the values into a new map (variable name -> value)
+     *
+     * @return map with boxed values
+     */
+    public Map<String, Number> toMap() {
+        Map<String, Number> map = new HashMap<String, Number>(mNames.length * 2);
+        for (int i = 0; i < mNames.length; i++) {
+            map.put(mNames[i], getNumber(i));
+        }
+        return map;
+    }
+}
@@ -72,10 +72,11 @@ public class Logg {
     private int mLogConfigIdCounter = 0;
 
     private Set<LogListener> mLogListeners = new CopyOnWriteArraySet<LogListener>();
+    private Set<LogRecordListener> mLogRecordListeners = new CopyOnWriteArraySet<LogRecordListener>();
 
     private static Map<Integer, String> mErrCodes = new HashMap<Integer, String>();
 
-    private final Header loggHeader = new Header(CHAN_SETTINGS, CrtpPort.LOGGING);
+    private final Header loggHeader = Header.valueOf(CHAN_SETTINGS, CrtpPort.LOGGING);
 
     /*
      * These codes can be decoded using os.stderror, but
@@ -178,6 +179,7 @@ public class Logg {
                 }
             }
         }
+        logConfig.invalidateDecoder();
         /*
          * Now check that all the added variables are in the TOC and that
          * the total size constraint of a data packet with logging data is not ???
@@ -211,7 +213,8 @@ public class Logg {
             // logconf.cf = self.cf         -> not necessary in Java
 
             // set log config ID
-            logConfig.setId((mLogConfigIdCounter + 1) % 255);
+            mLogConfigIdCounter = (mLogConfigIdCounter + 1) % 255;
+            logConfig.setId(mLogConfigIdCounter);
 
             mLogConfigs.add(logConfig);
             // TODO: self.block_added_cb.call(logconf)
@@ -261,7 +264,8 @@ public class Logg {
         byte[] payload = packet.getPayload();
 
         if (channel == CHAN_SETTINGS) {
-            int id = payload[1];
+            // ids go up to 254
+            int id = payload[1] & 0xFF;
             int errorStatus = payload[2];
             LogConfig logConfig = findLogConfig(id);
 
@@ -363,40 +367,40 @@ public class Logg {
                 }
             }
         } else if (channel == CHAN_LOGDATA) {
+            // id (1) | timestamp (3) | log data
+            if (payload.length < 4) {
+                mLogger.warn("Dropping log data packet with only " + payload.length + " bytes");
+                return;
+            }
             // TODO: fix payload offset
-            int id = payload[0];
+            int id = payload[0] & 0xFF;
             LogConfig logConfig = findLogConfig(id);
 
             if (logConfig != null) {
-                Map<String, Number> logDataMap = new HashMap<String, Number>();
-                int timestamp = parseLogData(payload, logConfig, logDataMap);
-                notifyLogDataReceived(logConfig, logDataMap, timestamp);
+                int timestamp = parseTimestamp(payload[1], payload[2], payload[3]);
+                LogRecord record;
+                try {
+                    // logdata = packet.data[4:]
+                    record = logConfig.getDecoder().decode(payload, 4, timestamp);
+                } catch (IllegalStateException ise) {
+                    mLogger.warn("Could not decode log data (ID: " + id + "): " + ise.getMessage());
+                    return;
+                }
+                notifyLogRecordReceived(record);
+                // Map based listeners get a copy of the record
+                if (!mLogListeners.isEmpty()) {
+                    notifyLogDataReceived(logConfig, record.toMap(), timestamp);
+                }
             } else {
                 mLogger.warn("Error no LogEntry to handle id=" + id);
             }
         }
     }
 
-    /* package private */ static int parseLogData(byte[] payload, LogConfig logConfig, Map<String, Number> logDataMap) {
-        //get timestamp
-        int timestamp = parseTimestamp(payload[1], payload[2], payload[3]);
-        // logdata = packet.data[4:]
-        int offset = 4;
-        byte[] logData = new byte[payload.length-offset];
-        System.arraycopy(payload, offset, logData, 0, logData.length);
-
-        logDataMap.putAll(logConfig.unpackLogData(logData));
-        LoggerFactory.getLogger("Logging").debug("Unpacked log data (ID: " + logConfig.getId() + ") with time stamp " + timestamp);
-        //TODO: what to do with the unpacked data?
-        return timestamp;
-    }
-
     // timestamps = struct.unpack("<BBB", packet.data[1:4])
     // timestamp = (timestamps[0] | timestamps[1] << 8 | timestamps[2] << 16)
     /* package private */ static int parseTimestamp(byte data1, byte data2, byte data3) {
-        //allocate 4 bytes for an int
-        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{data1, data2, data3, 0}).order(CrtpPacket.BYTE_ORDER);
-        return buffer.getInt();
+        return (data1 & 0xFF) | (data2 & 0xFF) << 8 | (data3 & 0xFF) << 16;
     }
 
 
@@ -616,6 +620,20 @@ public class Logg {
         mLogListeners.remove(logListener);
     }
 
+    /**
+     * Add a listener for log data as primitive records
+     */
+    public void addLogRecordListener(LogRecordListener logRecordListener) {
+        mLogRecordListeners.add(logRecordListener);
+    }
+
+    /**
+     * Remove the log record listener
+     */
+    public void removeLogRecordListener(LogRecordListener logRecordListener) {
+        mLogRecordListeners.remove(logRecordListener);
+    }
+
     private void notifyLogAdded(LogConfig logConfig) {
         for(LogListener ll : this.mLogListeners) {
             ll.logConfigAdded(logConfig);
@@ -634,6 +652,12 @@ public class Logg {
         }
     }
 
+    private void notifyLogRecordReceived(LogRecord record) {
+        for(LogRecordListener lrl : this.mLogRecordListeners) {
+            lrl.logRecordReceived(record);
+        }
+    }
+
     private void notifyLogDataReceived(LogConfig logConfig, Map<String, Number> data, int timestamp) {
         for(LogListener ll : this.mLogListeners) {
             ll.logDataReceived(logConfig, data, timestamp);
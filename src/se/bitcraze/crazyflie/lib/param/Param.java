@@ -28,9 +28,19 @@
 package se.bitcraze.crazyflie.lib.param;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -64,8 +74,19 @@ public class Param {
 
     private Thread mParamUpdaterThread;
     private ParamUpdaterThread mPut;
-    private Map<String, Map<String, Number>> mValues = new HashMap<String, Map<String, Number>>();
+    private final ParamWriteCoalescer mWriteCoalescer;
+    // replaced when the TOC has been fetched
+    private volatile ParamValueStore mValueStore;
     private boolean mHaveUpdated = false;
+    private volatile int mReadWindowSize = ParamBulkReader.DEFAULT_WINDOW_SIZE;
+    // bulk reads that may still be running, cancelled on disconnect
+    private final List<ParamBulkReader> mBulkReaders = new ArrayList<ParamBulkReader>();
+
+    private volatile ParamValueCache mValueCache;
+    private volatile String mLinkId;
+    // complete name -> ms since epoch
+    private final Map<String, Long> mLastUsed = new ConcurrentHashMap<String, Long>();
+    private volatile Set<String> mVisibleParams = Collections.emptySet();
 
     // TODO: use only one map for both
     // TODO: ParamListener already contains group/completeName
@@ -92,6 +113,15 @@ public class Param {
         this.mCrazyflie = crazyflie;
 
         this.mToc = new Toc(); // Avoid NPE
+        this.mValueStore = new ParamValueStore(mToc.getElements());
+
+        // created before the updater thread, which sends the deferred writes
+        mWriteCoalescer = new ParamWriteCoalescer(mCrazyflie, new Runnable() {
+            @Override
+            public void run() {
+                mPut.wakeUp();
+            }
+        });
 
         // self.param_updater = None
         // self.param_updater = _ParamUpdater(self.cf, self._param_updated)
@@ -108,6 +138,9 @@ public class Param {
             @Override
             public void disconnected() {
                 mPut.close();
+                mWriteCoalescer.close();
+                cancelBulkReads();
+                saveValueCache();
                 if (mParamUpdaterThread != null) {
                     mParamUpdaterThread.interrupt();
                 }
@@ -121,9 +154,133 @@ public class Param {
      * Request an update of all the parameters in the TOC
      */
     public void requestUpdateOfAllParams() {
-        for (TocElement tocElement : mToc.getElements()) {
-            requestParamUpdate(tocElement.getCompleteName());
+        readAllParams();
+    }
+
+    /**
+     * Read the values of all the parameters in the TOC with pipelined requests.
+     * The read is cancelled when the link disconnects.
+     *
+     * @return future that completes with all values (complete name -> value)
+     */
+    public Future<Map<String, Number>> readAllParams() {
+        ParamBulkReader bulkReader = new ParamBulkReader(mCrazyflie, getElementsInPriorityOrder());
+        bulkReader.setWindowSize(mReadWindowSize);
+        synchronized (mBulkReaders) {
+            // forget the finished ones
+            Iterator<ParamBulkReader> iterator = mBulkReaders.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getFuture().isDone()) {
+                    iterator.remove();
+                }
+            }
+            mBulkReaders.add(bulkReader);
+        }
+        return bulkReader.start();
+    }
+
+    /**
+     * Cancel the bulk reads that are still running, their futures throw a CancellationException
+     */
+    private void cancelBulkReads() {
+        synchronized (mBulkReaders) {
+            for (ParamBulkReader bulkReader : mBulkReaders) {
+                bulkReader.getFuture().cancel(false);
+            }
+            mBulkReaders.clear();
+        }
+    }
+
+    /**
+     * Show the last known values of this Crazyflie as provisional values and read all values again
+     * in the background. The values are saved to the cache when all have been read and on disconnect.
+     *
+     * Must be called after the TOC has been fetched.
+     *
+     * @param valueCache cache with the values of earlier connections
+     * @param linkId identifies the Crazyflie, see {@link se.bitcraze.crazyflie.lib.crtp.CrtpDriver#getLinkId()}
+     * @return future of the background read, see {@link #readAllParams()}
+     */
+    public Future<Map<String, Number>> restoreValues(ParamValueCache valueCache, String linkId) {
+        this.mValueCache = valueCache;
+        this.mLinkId = linkId;
+        int loaded = valueCache.load(mToc.getCrc(), linkId, mValueStore, mLastUsed);
+        mLogger.debug("Restored {} cached param values.", loaded);
+        return readAllParams();
+    }
+
+    private void saveValueCache() {
+        ParamValueCache valueCache = mValueCache;
+        if (valueCache != null) {
+            valueCache.save(mToc.getCrc(), mLinkId, mValueStore, mLastUsed);
+        }
+    }
+
+    /**
+     * Set the params that are currently shown, they are read first by {@link #readAllParams()}.
+     * Params with a listener are read first as well, followed by the recently used ones.
+     *
+     * @param completeNames complete names (group.name)
+     */
+    public void setVisibleParams(Collection<String> completeNames) {
+        this.mVisibleParams = Collections.unmodifiableSet(new HashSet<String>(completeNames));
+    }
+
+    /**
+     * TOC elements ordered by priority: visible params, recently used params (most recent first), all others
+     */
+    private List<TocElement> getElementsInPriorityOrder() {
+        List<TocElement> elements = new ArrayList<TocElement>(mToc.getElements());
+        final Set<String> visibleParams = mVisibleParams;
+        final Map<String, Long> lastUsed = new HashMap<String, Long>(mLastUsed);
+        // stable, keeps the TOC order within the same priority
+        Collections.sort(elements, new Comparator<TocElement>() {
+            @Override
+            public int compare(TocElement e1, TocElement e2) {
+                boolean visible1 = isVisible(e1, visibleParams);
+                boolean visible2 = isVisible(e2, visibleParams);
+                if (visible1 != visible2) {
+                    return visible1 ? -1 : 1;
+                }
+                Long used1 = lastUsed.get(e1.getCompleteName());
+                Long used2 = lastUsed.get(e2.getCompleteName());
+                long time1 = (used1 != null) ? used1 : 0;
+                long time2 = (used2 != null) ? used2 : 0;
+                return (time1 < time2) ? 1 : ((time1 == time2) ? 0 : -1);
+            }
+        });
+        return elements;
+    }
+
+    private boolean isVisible(TocElement element, Set<String> visibleParams) {
+        return visibleParams.contains(element.getCompleteName())
+                || mUpdateListeners.containsKey(element.getCompleteName())
+                || mGroupUpdateListeners.containsKey(element.getGroup());
+    }
+
+    /**
+     * @param completeName
+     * @return true if the value has been read from the Crazyflie, false if it's provisional or unknown
+     */
+    public boolean isConfirmed(String completeName) {
+        ParamValueStore valueStore = mValueStore;
+        return valueStore.isConfirmed(valueStore.getIdent(completeName));
+    }
+
+    /**
+     * Set the number of read requests that are in flight at the same time in {@link #readAllParams()}
+     *
+     * @param windowSize number of outstanding requests (1 = one read after the other)
+     */
+    public void setReadWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1.");
         }
+        this.mReadWindowSize = windowSize;
+    }
+
+    public int getReadWindowSize() {
+        return mReadWindowSize;
     }
 
     /**
@@ -140,59 +297,60 @@ public class Param {
 
         return True
         */
-        for (TocElement tocElement : mToc.getElements()) {
-            if (mValues.get(tocElement.getGroup()) == null) {
-                return false;
-            } else {
-                if (mValues.get(tocElement.getGroup()).get(tocElement.getName()) == null) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return mValueStore.isComplete();
     }
 
     /**
      * Callback with data for an updated parameter
      */
     public void paramUpdated(CrtpPacket packet) {
-        int varId = packet.getPayload()[0];
-        TocElement tocElement = mToc.getElementById(varId);
-        if (tocElement != null) {
-            //s = struct.unpack(element.pytype, pk.data[1:])[0]
-            //s = s.__str__()
-            // TODO: probably does not work as intended, use System.arrayCopy instead
-            ByteBuffer payload = ByteBuffer.wrap(packet.getPayload(), 1, packet.getPayload().length-1);
-            Number number = tocElement.getCtype().parse(payload);
-
+        int varId = packet.getPayload()[0] & 0x00ff;
+        ParamValueStore valueStore = mValueStore;
+        //s = struct.unpack(element.pytype, pk.data[1:])[0]
+        ByteBuffer payload = ByteBuffer.wrap(packet.getPayload(), 1, packet.getPayload().length-1);
+        // Save the value for synchronous access
+        if (valueStore.update(varId, payload)) {
+            TocElement tocElement = valueStore.getElement(varId);
             String completeName = tocElement.getCompleteName();
 
-            // Save the value for synchronous access
-            if (!mValues.containsKey(tocElement.getGroup())) {
-                mValues.put(tocElement.getGroup(), new HashMap<String, Number>());
-            }
-            mValues.get(tocElement.getGroup()).put(tocElement.getName(), number);
-
             // This will only be called once
-            if (checkIfAllUpdated() && !mHaveUpdated) {
+            if (!mHaveUpdated && valueStore.isComplete()) {
                 mHaveUpdated = true;
                 // self.all_updated.call()
+                saveValueCache();
             }
 //                mLogger.debug("Updated parameter " + completeName);
 
-            if (mUpdateListeners.containsKey(completeName)) {
-                mUpdateListeners.get(completeName).updated(completeName, number);
-            }
-            if (mGroupUpdateListeners.containsKey(tocElement.getGroup())) {
-                mGroupUpdateListeners.get(tocElement.getGroup()).updated(completeName, number);
+            ParamListener listener = mUpdateListeners.get(completeName);
+            ParamListener groupListener = mGroupUpdateListeners.get(tocElement.getGroup());
+            if (listener != null || groupListener != null) {
+                Number number = valueStore.getNumber(varId);
+                if (listener != null) {
+                    listener.updated(completeName, number);
+                }
+                if (groupListener != null) {
+                    groupListener.updated(completeName, number);
+                }
             }
         } else {
             mLogger.debug("Variable id {} not found in TOC", varId);
         }
     }
 
+    /**
+     * @return copy of the values that have been read, by group and name
+     */
     public Map<String, Map<String, Number>> getValuesMap() {
-        return mValues;
+        return mValueStore.snapshot().toMap();
+    }
+
+    /**
+     * Values indexed by TOC ident, for lock-free access and snapshots
+     *
+     * @return value store of the current TOC
+     */
+    public ParamValueStore getValueStore() {
+        return mValueStore;
     }
 
     /**
@@ -233,8 +391,17 @@ public class Param {
     // def refresh_toc(self, refresh_done_callback, toc_cache):
     public void refreshToc(TocFetchFinishedListener listener, TocCache tocCache) {
        this.mToc = new Toc();
+       this.mValueStore = new ParamValueStore(mToc.getElements());
+       this.mHaveUpdated = false;
        // toc_fetcher = TocFetcher(self.cf, ParamTocElement, CRTPPort.PARAM, self.toc, refresh_done_callback, toc_cache)
        TocFetcher tocFetcher = new TocFetcher(mCrazyflie, CrtpPort.PARAMETERS, mToc, tocCache);
+       // must be notified before the listener, which may already read values
+       tocFetcher.addTocFetchFinishedListener(new TocFetchFinishedListener(CrtpPort.PARAMETERS) {
+           @Override
+           public void tocFetchFinished() {
+               mValueStore = new ParamValueStore(mToc.getElements());
+           }
+       });
        tocFetcher.addTocFetchFinishedListener(listener);
        tocFetcher.start();
     }
@@ -261,7 +428,8 @@ public class Param {
     public void requestParamUpdate(String completeName) {
         // self.param_updater.request_param_update(self.toc.get_element_id(complete_name))
         int elementId = mToc.getElementId(completeName);
-        Header header = new Header(READ_CHANNEL, CrtpPort.PARAMETERS);
+        mLastUsed.put(completeName, System.currentTimeMillis());
+        Header header = Header.valueOf(READ_CHANNEL, CrtpPort.PARAMETERS);
         CrtpPacket requestPacket = new CrtpPacket(header.getByte(), new byte[]{(byte) elementId});
         mPut.addParamRequest(requestPacket);
     }
@@ -274,45 +442,77 @@ public class Param {
      */
     //TODO: is Number the right data type for value?
     public void setValue(String completeName, Number value) {
+        setValue(completeName, value, null);
+    }
+
+    /**
+     * Set the value for the supplied parameter.
+     *
+     * Only one write per parameter is in flight, a value that has not been sent yet is replaced
+     * by a newer one (last write wins).
+     *
+     * @param completeName
+     * @param value
+     * @param listener notified with the value that was actually written, may be null
+     */
+    public void setValue(String completeName, Number value, ParamWriteListener listener) {
         TocElement tocElement = mToc.getElementByCompleteName(completeName);
         if (tocElement == null) {
             mLogger.warn("Cannot set value for {}, it's not in the TOC!", completeName);
         } else if (tocElement.getAccess() == TocElement.RO_ACCESS) {
             mLogger.debug("{} is read only, not trying to set value", completeName);
         } else {
-            //TODO: extract into method
-            Header header = new Header(WRITE_CHANNEL, CrtpPort.PARAMETERS);
             //pk.data = struct.pack('<B', varid)
             //pk.data += struct.pack(element.pytype, eval(value))
             //TODO: value.byteValue() might not be the right method to use, because it can involve rounding or truncation!
             byte[] parse = tocElement.getCtype().parse(value);
-            ByteBuffer bb = ByteBuffer.allocate(parse.length+1);
-            bb.put((byte) tocElement.getIdent());
-            bb.put(parse);
-            CrtpPacket packet = new CrtpPacket(header.getByte(), bb.array());
+            mLastUsed.put(completeName, System.currentTimeMillis());
             //self.param_updater.request_param_setvalue(pk)
-            mPut.addParamRequest(packet);
+            mWriteCoalescer.write(tocElement, parse, listener);
         }
     }
 
+    /**
+     * Limit how often a parameter is written, e.g. while a value is changed with a slider.
+     * Values set in between replace each other, only the newest one is sent.
+     *
+     * @param completeName
+     * @param intervalMs min interval between two writes in ms, 0 for no limit
+     */
+    public void setMinWriteInterval(String completeName, int intervalMs) {
+        mWriteCoalescer.setMinInterval(completeName, intervalMs);
+    }
+
+    public int getMinWriteInterval(String completeName) {
+        return mWriteCoalescer.getMinInterval(completeName);
+    }
+
+    /**
+     * @return number of values that were replaced by a newer value before they were sent
+     */
+    public int getCoalescedWriteCount() {
+        return mWriteCoalescer.getCoalescedCount();
+    }
+
     /**
      * Get the value for the supplied parameter
      *
      * @param completeName
-     * @return
+     * @return the value, -1 if the parameter is not in the TOC, -2 if it has not been read yet
      */
     public Number getValue(String completeName) {
-        TocElement tocElement = mToc.getElementByCompleteName(completeName);
-        if (tocElement == null) {
+        ParamValueStore valueStore = mValueStore;
+        int ident = valueStore.getIdent(completeName);
+        if (ident == -1) {
             mLogger.warn("Cannot get value for {}, it's not in the TOC!", completeName);
             return -1;
         }
-        if (getValuesMap().size() > 0) {
-            return getValuesMap().get(tocElement.getGroup()).get(tocElement.getName());
-        } else {
-            mLogger.warn("Parameters values map is empty!");
+        Number value = valueStore.getNumber(ident);
+        if (value == null) {
+            mLogger.warn("Value of {} has not been read yet!", completeName);
             return -2;
         }
+        return value;
     }
 
     /**
@@ -362,6 +562,13 @@ public class Param {
             mRequestQueue.clear();
         }
 
+        /**
+         * Wake up the thread to send deferred writes
+         */
+        public void wakeUp() {
+            mRequestQueue.offer(CrtpPacket.NULL_PACKET);
+        }
+
         /**
          * Place a param request (update request or set value) on the queue.
          *
@@ -416,7 +623,9 @@ public class Param {
                 try {
                     packet = null;
                     // pk = self.request_queue.get() # Wait for request update
-                    packet = mRequestQueue.poll((long) 100, TimeUnit.MILLISECONDS);
+                    long writeDelay = mWriteCoalescer.sendDueWrites();
+                    long timeout = writeDelay == -1 ? 100000000L : Math.min(writeDelay, 100000000L);
+                    packet = mRequestQueue.poll(timeout, TimeUnit.NANOSECONDS);
 
                     // self.wait_lock.acquire()
                     // if self.cf.link:
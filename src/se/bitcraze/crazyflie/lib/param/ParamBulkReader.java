@@ -0,0 +1,379 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+
+package se.bitcraze.crazyflie.lib.param;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.bitcraze.crazyflie.lib.crazyflie.Crazyflie;
+import se.bitcraze.crazyflie.lib.crazyflie.DataListener;
+import se.bitcraze.crazyflie.lib.crazyflie.RequestFailedListener;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket.Header;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
+import se.bitcraze.crazyflie.lib.toc.TocElement;
+
+/**
+ * Reads the values of many parameters with pipelined requests.
+ *
+ * Up to {@link #getWindowSize()} read requests are in flight at the same time, a new request is
+ * only sent when the reply of an outstanding one has arrived. Replies are matched by variable id,
+ * so duplicate replies (e.g. caused by resends) do not open the window any further.
+ * Requests that the Crazyflie resend queue gave up are requested again, up to {@link #MAX_RETRIES} times
+ * per parameter. If a parameter still gets no reply the read fails.
+ *
+ * The values are also delivered to {@link Param}, like the replies of single reads.
+ */
+public class ParamBulkReader {
+
+    private final Logger mLogger = LoggerFactory.getLogger("ParamBulkReader");
+
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+    /** how often a read is requested again after the resend queue gave up on it */
+    public static final int MAX_RETRIES = 3;
+
+    private static final int READ_CHANNEL = 1;
+
+    private final Crazyflie mCrazyflie;
+    private final TocElement[] mElements;
+    // TOC element by ident, null if not requested
+    private final TocElement[] mElementsById;
+    private final Number[] mValues;
+    // retries by ident
+    private final int[] mRetries;
+    private final Header mReadHeader = Header.valueOf(READ_CHANNEL, CrtpPort.PARAMETERS);
+
+    private int mWindowSize = DEFAULT_WINDOW_SIZE;
+    private int mNextIndex = 0;
+    private int mReceivedCount = 0;
+    private int mRetryCount = 0;
+    private long mStartTime;
+    private long mDuration = -1;
+    private boolean mStarted = false;
+    // requests created while holding the lock, sent after leaving it
+    private List<TocElement> mOutbox = new ArrayList<TocElement>();
+
+    private final ReadFuture mFuture = new ReadFuture();
+
+    private final DataListener mDataListener = new DataListener(CrtpPort.PARAMETERS) {
+        @Override
+        public void dataReceived(CrtpPacket packet) {
+            newPacketReceived(packet);
+        }
+    };
+
+    private final RequestFailedListener mRequestFailedListener = new RequestFailedListener(CrtpPort.PARAMETERS) {
+        @Override
+        public void requestFailed(CrtpPacket packet, int attempts) {
+            retryFailedRequest(packet);
+        }
+    };
+
+    /**
+     * @param crazyflie connected Crazyflie
+     * @param elements TOC elements of the parameters to read
+     */
+    public ParamBulkReader(Crazyflie crazyflie, List<TocElement> elements) {
+        this.mCrazyflie = crazyflie;
+        this.mElements = elements.toArray(new TocElement[elements.size()]);
+        int maxIdent = -1;
+        for (TocElement element : mElements) {
+            maxIdent = Math.max(maxIdent, element.getIdent());
+        }
+        this.mElementsById = new TocElement[maxIdent + 1];
+        this.mValues = new Number[maxIdent + 1];
+        this.mRetries = new int[maxIdent + 1];
+        for (TocElement element : mElements) {
+            mElementsById[element.getIdent()] = element;
+        }
+    }
+
+    /**
+     * Set the number of read requests that are in flight at the same time.
+     *
+     * @param windowSize number of outstanding requests (1 = one read after the other)
+     */
+    public synchronized void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1.");
+        }
+        this.mWindowSize = windowSize;
+    }
+
+    public synchronized int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Start reading
+     *
+     * @return future that completes with the values of all parameters (complete name -> value),
+     * get() throws an ExecutionException if a parameter could not be read
+     */
+    public Future<Map<String, Number>> start() {
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("Bulk read has already been started");
+            }
+            mStarted = true;
+            if (mFuture.isCancelled()) {
+                // cancelled before it was started
+                return mFuture;
+            }
+            mStartTime = System.nanoTime();
+            if (mElements.length == 0) {
+                finish();
+                return mFuture;
+            }
+            mCrazyflie.addDataListener(mDataListener);
+            mCrazyflie.addRequestFailedListener(mRequestFailedListener);
+            while (mNextIndex < mElements.length && mNextIndex < mWindowSize) {
+                requestValue(mElements[mNextIndex++]);
+            }
+        }
+        sendRequests();
+        return mFuture;
+    }
+
+    /**
+     * @return future of the read, completes with the values of all parameters (complete name -> value)
+     */
+    public Future<Map<String, Number>> getFuture() {
+        return mFuture;
+    }
+
+    /**
+     * @return number of values received so far
+     */
+    public synchronized int getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return number of requests that were sent again after the resend queue gave up
+     */
+    public synchronized int getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * @return time from start() until all values were received in ms, -1 if not finished
+     */
+    public synchronized long getDuration() {
+        return mDuration;
+    }
+
+    /* package private */ void newPacketReceived(CrtpPacket packet) {
+        byte[] payload = packet.getPayload();
+        if (packet.getHeader().getChannel() != READ_CHANNEL || payload.length < 2) {
+            return;
+        }
+        synchronized (this) {
+            handleValue(payload);
+        }
+        sendRequests();
+    }
+
+    private void handleValue(byte[] payload) {
+        if (mFuture.isDone()) {
+            return;
+        }
+        int ident = payload[0] & 0x00ff;
+        if (ident >= mElementsById.length || mElementsById[ident] == null || mValues[ident] != null) {
+            // not requested or a duplicate reply
+            return;
+        }
+        TocElement element = mElementsById[ident];
+        mValues[ident] = element.getCtype().parse(ByteBuffer.wrap(payload, 1, payload.length - 1));
+        mReceivedCount++;
+        if (mNextIndex < mElements.length) {
+            // one slot in the window became free
+            requestValue(mElements[mNextIndex++]);
+        }
+        if (mReceivedCount == mElements.length) {
+            finish();
+        }
+    }
+
+    private void retryFailedRequest(CrtpPacket packet) {
+        byte[] payload = packet.getPayload();
+        if (packet.getHeader().getChannel() != READ_CHANNEL || payload.length == 0) {
+            return;
+        }
+        synchronized (this) {
+            retryRequest(payload[0] & 0x00ff);
+        }
+        sendRequests();
+    }
+
+    private void retryRequest(int ident) {
+        if (mFuture.isDone() || ident >= mElementsById.length || mElementsById[ident] == null || mValues[ident] != null) {
+            return;
+        }
+        TocElement element = mElementsById[ident];
+        if (mRetries[ident] >= MAX_RETRIES) {
+            mLogger.error("Read request for param {} failed {} times, giving up.", element.getCompleteName(), mRetries[ident] + 1);
+            stopListening();
+            mOutbox.clear();
+            mFuture.failed(new IllegalStateException("No reply for param " + element.getCompleteName()));
+            return;
+        }
+        mLogger.warn("Read request for param {} failed, requesting again.", element.getCompleteName());
+        mRetries[ident]++;
+        mRetryCount++;
+        requestValue(element);
+    }
+
+    /**
+     * Queue a read request, it's sent by {@link #sendRequests()} after the lock is released.
+     */
+    private void requestValue(TocElement element) {
+        mOutbox.add(element);
+    }
+
+    /**
+     * Send the queued read requests. Must not be called while holding the lock, sending may block
+     * when the out queue of the driver is full.
+     */
+    private void sendRequests() {
+        List<TocElement> elements;
+        synchronized (this) {
+            if (mOutbox.isEmpty()) {
+                return;
+            }
+            elements = mOutbox;
+            mOutbox = new ArrayList<TocElement>();
+        }
+        for (TocElement element : elements) {
+            CrtpPacket packet = new CrtpPacket(mReadHeader.getByte(), new byte[] {(byte) element.getIdent()});
+            packet.setExpectedReply(new byte[] {(byte) element.getIdent()});
+            mCrazyflie.sendPacket(packet);
+        }
+    }
+
+    private void finish() {
+        stopListening();
+        mDuration = (System.nanoTime() - mStartTime) / 1000000L;
+        Map<String, Number> values = new HashMap<String, Number>(mElements.length * 2);
+        for (TocElement element : mElements) {
+            values.put(element.getCompleteName(), mValues[element.getIdent()]);
+        }
+        mLogger.debug("Read {} params in {}ms ({} retries).", new Object[] {mElements.length, mDuration, mRetryCount});
+        mFuture.complete(values);
+    }
+
+    private synchronized boolean cancel() {
+        if (mFuture.isDone()) {
+            return false;
+        }
+        stopListening();
+        mOutbox.clear();
+        mFuture.cancelled();
+        return true;
+    }
+
+    private void stopListening() {
+        mCrazyflie.removeDataListener(mDataListener);
+        mCrazyflie.removeRequestFailedListener(mRequestFailedListener);
+    }
+
+    /**
+     * Completes when all values have been received or a read failed
+     */
+    private class ReadFuture implements Future<Map<String, Number>> {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile Map<String, Number> mResult;
+        private volatile Throwable mFailure;
+        private volatile boolean mCancelled = false;
+
+        void complete(Map<String, Number> result) {
+            this.mResult = result;
+            mDone.countDown();
+        }
+
+        void cancelled() {
+            this.mCancelled = true;
+            mDone.countDown();
+        }
+
+        void failed(Throwable failure) {
+            this.mFailure = failure;
+            mDone.countDown();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return ParamBulkReader.this.cancel();
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        public Map<String, Number> get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return getResult();
+        }
+
+        public Map<String, Number> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException("Bulk read not finished after " + timeout + " " + unit);
+            }
+            return getResult();
+        }
+
+        private Map<String, Number> getResult() throws ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException("Bulk read was cancelled");
+            }
+            if (mFailure != null) {
+                throw new ExecutionException("Bulk read failed", mFailure);
+            }
+            return mResult;
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.param;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.bitcraze.crazyflie.lib.toc.TocElement;
+
+/**
+ * Persists the last known parameter values per param TOC CRC and Crazyflie, so they can be shown
+ * as provisional values right after connecting, before they have been read again.
+ *
+ * One file per (CRC, link id), since the TOC CRC only identifies the firmware, not the values
+ * stored on a specific Crazyflie.
+ *
+ * <pre>
+ * header:  magic "CFPV" (4) | version (1) | reserved (3) | CRC (4) | number of values (2)
+ * value:   ident (2) | raw bits (8) | last used (4, seconds since epoch, 0 = never)
+ * </pre>
+ *
+ * All values are little endian. The raw bits are stored as in {@link ParamValueStore}.
+ */
+public class ParamValueCache {
+
+    final Logger mLogger = LoggerFactory.getLogger("ParamValueCache");
+
+    private static final String VALUE_CACHE_DIR = "paramValues";
+    private static final String FILE_EXTENSION = ".bin";
+
+    private static final byte[] MAGIC = {'C', 'F', 'P', 'V'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 14;
+    private static final int ENTRY_SIZE = 14;
+
+    private final File mCacheDir;
+
+    /**
+     * @param cacheDir base cache dir, the values are stored in a sub directory
+     */
+    public ParamValueCache(File cacheDir) {
+        this.mCacheDir = (cacheDir != null) ? new File(cacheDir, VALUE_CACHE_DIR) : new File(VALUE_CACHE_DIR);
+    }
+
+    /**
+     * @param crc CRC of the param TOC
+     * @param linkId identifies the Crazyflie, see {@link se.bitcraze.crazyflie.lib.crtp.CrtpDriver#getLinkId()}
+     * @return cache file for the given TOC and Crazyflie
+     */
+    File getFile(int crc, String linkId) {
+        // only keep characters that are safe in file names
+        String id = linkId.replaceAll("[^A-Za-z0-9_.-]", "_");
+        return new File(mCacheDir, String.format("%08X", crc) + "_" + id + FILE_EXTENSION);
+    }
+
+    /**
+     * Load the cached values as provisional values into the store
+     *
+     * @param crc CRC of the param TOC
+     * @param linkId identifies the Crazyflie
+     * @param store value store of the TOC with the given CRC
+     * @param lastUsed filled with the last use of the params (complete name -> ms since epoch)
+     * @return number of values that have been loaded
+     */
+    /* package private */ synchronized int load(int crc, String linkId, ParamValueStore store, Map<String, Long> lastUsed) {
+        File file = getFile(crc, linkId);
+        if (!file.exists()) {
+            mLogger.debug("No param value cache file for CRC " + String.format("0x%08X", crc));
+            return 0;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // read the whole file
+                }
+                buffer.flip();
+                return decode(buffer, crc, store, lastUsed);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ioe) {
+            mLogger.error("Error while reading param value cache file " + file.getName() + ": " + ioe.getMessage());
+            return 0;
+        }
+    }
+
+    private int decode(ByteBuffer buffer, int crc, ParamValueStore store, Map<String, Long> lastUsed) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (byte b : MAGIC) {
+                if (buffer.get() != b) {
+                    throw new IOException("Not a param value cache file.");
+                }
+            }
+            int version = buffer.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported param value cache version " + version + ".");
+            }
+            buffer.position(buffer.position() + 3);
+            int fileCrc = buffer.getInt();
+            if (fileCrc != crc) {
+                throw new IOException(String.format("CRC mismatch, expected 0x%08X but file has 0x%08X.", crc, fileCrc));
+            }
+            int noOfValues = buffer.getShort() & 0xFFFF;
+            int loaded = 0;
+            for (int i = 0; i < noOfValues; i++) {
+                int ident = buffer.getShort() & 0xFFFF;
+                long bits = buffer.getLong();
+                long used = buffer.getInt() & 0xFFFFFFFFL;
+                // values that have already been read from the Crazyflie are newer
+                if (store.contains(ident) && !store.isConfirmed(ident)) {
+                    store.updateBits(ident, bits, false);
+                    loaded++;
+                }
+                TocElement element = store.getElement(ident);
+                if (element != null && used > 0 && !lastUsed.containsKey(element.getCompleteName())) {
+                    lastUsed.put(element.getCompleteName(), used * 1000L);
+                }
+            }
+            return loaded;
+        } catch (RuntimeException re) {
+            // BufferUnderflowException etc. for truncated files
+            throw new IOException("Corrupt param value cache file: " + re.toString());
+        }
+    }
+
+    /**
+     * Save all values of the store that have been set. The file is written to a temporary file first
+     * and then renamed, so a failed write does not leave a corrupt cache file behind.
+     *
+     * @param crc CRC of the param TOC
+     * @param linkId identifies the Crazyflie
+     * @param store value store of the TOC with the given CRC
+     * @param lastUsed last use of the params (complete name -> ms since epoch)
+     * @return true if the file has been written
+     */
+    /* package private */ synchronized boolean save(int crc, String linkId, ParamValueStore store, Map<String, Long> lastUsed) {
+        int count = 0;
+        for (int ident = 0; ident < store.getIdentLimit(); ident++) {
+            if (store.isSet(ident)) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put(new byte[3]);
+        buffer.putInt(crc);
+        buffer.putShort((short) count);
+        // values may be set concurrently, only write the ones that have been counted
+        int written = 0;
+        for (int ident = 0; ident < store.getIdentLimit() && written < count; ident++) {
+            if (!store.isSet(ident)) {
+                continue;
+            }
+            written++;
+            Long used = lastUsed.get(store.getElement(ident).getCompleteName());
+            buffer.putShort((short) ident);
+            buffer.putLong(store.getBits(ident));
+            buffer.putInt(used != null ? (int) (used / 1000L) : 0);
+        }
+        buffer.flip();
+
+        File file = getFile(crc, linkId);
+        try {
+            file.getParentFile().mkdirs();
+            File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                FileChannel channel = fos.getChannel();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                fos.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not replace " + file.getName() + ".");
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tmpFile.getName() + ".");
+            }
+            mLogger.debug("Saved {} param values to {}", count, file.getName());
+            return true;
+        } catch (IOException ioe) {
+            mLogger.error("Could not save param values to file " + file.getName() + ".\n" + ioe.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Delete all cached values
+     */
+    public synchronized void clear() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_EXTENSION) && !file.delete()) {
+                mLogger.warn("Could not delete param value cache file " + file.getName());
+            }
+        }
+    }
+
+}
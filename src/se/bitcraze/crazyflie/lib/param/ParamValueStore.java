@@ -0,0 +1,502 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+
+package se.bitcraze.crazyflie.lib.param;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.toc.TocElement;
+import se.bitcraze.crazyflie.lib.toc.VariableType;
+
+/**
+ * Parameter values indexed by TOC ident.
+ *
+ * Every value is stored as 64 raw bits in a primitive slot: integers sign-extended (unsigned types
+ * zero-extended), FLOAT and DOUBLE as their IEEE bits. Each slot also has a version (number of
+ * updates) and the System.nanoTime() of its last update.
+ *
+ * Values read from the Crazyflie are confirmed. Values set locally (written values that have not
+ * been echoed yet, values restored from {@link ParamValueCache}) are provisional until they are read back.
+ *
+ * Writers are serialized, readers never lock. Consistent reads of several slots (snapshots) use a
+ * sequence counter and retry if a write happened in between. Snapshots are immutable and reused
+ * as long as no value has changed.
+ */
+public final class ParamValueStore {
+
+    private final TocElement[] mElementsById;
+    private final VariableType[] mTypes;
+    // complete name -> ident, never modified after construction
+    private final Map<String, Integer> mIdents;
+    private final int mElementCount;
+
+    private final AtomicLongArray mBits;
+    private final AtomicLongArray mVersions;
+    private final AtomicLongArray mTimestamps;
+    // CONFIRMED and EVER_CONFIRMED flags
+    private final AtomicIntegerArray mStates;
+
+    private static final int CONFIRMED = 1;
+    private static final int EVER_CONFIRMED = 2;
+
+    // odd while a write is in progress
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mConfirmedCount = new AtomicLong();
+    private final Object mWriteLock = new Object();
+    private volatile Snapshot mLastSnapshot;
+
+    /**
+     * @param elements TOC elements of the parameters
+     */
+    public ParamValueStore(List<TocElement> elements) {
+        int maxIdent = -1;
+        for (TocElement element : elements) {
+            maxIdent = Math.max(maxIdent, element.getIdent());
+        }
+        int size = maxIdent + 1;
+        this.mElementsById = new TocElement[size];
+        this.mTypes = new VariableType[size];
+        Map<String, Integer> idents = new HashMap<String, Integer>(elements.size() * 2);
+        for (TocElement element : elements) {
+            // elements with an unknown type can not be decoded
+            if (element.getCtype() != null) {
+                mElementsById[element.getIdent()] = element;
+                mTypes[element.getIdent()] = element.getCtype();
+                idents.put(element.getCompleteName(), element.getIdent());
+            }
+        }
+        this.mIdents = Collections.unmodifiableMap(idents);
+        this.mElementCount = idents.size();
+        this.mBits = new AtomicLongArray(size);
+        this.mVersions = new AtomicLongArray(size);
+        this.mTimestamps = new AtomicLongArray(size);
+        this.mStates = new AtomicIntegerArray(size);
+    }
+
+    /**
+     * @return number of parameters in the store
+     */
+    public int getElementCount() {
+        return mElementCount;
+    }
+
+    /**
+     * @param completeName complete name (group.name)
+     * @return ident of the parameter, -1 if it is not in the store
+     */
+    public int getIdent(String completeName) {
+        Integer ident = mIdents.get(completeName);
+        return (ident != null) ? ident : -1;
+    }
+
+    /**
+     * @return highest ident + 1
+     */
+    /* package private */ int getIdentLimit() {
+        return mElementsById.length;
+    }
+
+    /**
+     * @return TOC element of the parameter, null if the ident is not in the store
+     */
+    public TocElement getElement(int ident) {
+        return contains(ident) ? mElementsById[ident] : null;
+    }
+
+    public boolean contains(int ident) {
+        return ident >= 0 && ident < mElementsById.length && mElementsById[ident] != null;
+    }
+
+    /**
+     * @return true if the value has been set at least once
+     */
+    public boolean isSet(int ident) {
+        return contains(ident) && mVersions.get(ident) > 0;
+    }
+
+    /**
+     * @return true if the current value has been read from the Crazyflie
+     */
+    public boolean isConfirmed(int ident) {
+        return contains(ident) && (mStates.get(ident) & CONFIRMED) != 0;
+    }
+
+    /**
+     * @return true if all values have been read from the Crazyflie at least once
+     */
+    public boolean isComplete() {
+        return mConfirmedCount.get() == mElementCount;
+    }
+
+    /**
+     * @return number of updates of the value, 0 if it has never been set
+     */
+    public long getVersion(int ident) {
+        return mVersions.get(ident);
+    }
+
+    /**
+     * @return System.nanoTime() of the last update of the value, 0 if it has never been set
+     */
+    public long getTimestamp(int ident) {
+        return mTimestamps.get(ident);
+    }
+
+    /**
+     * @return number of updates of all values
+     */
+    public long getVersion() {
+        return mSequence.get() >> 1;
+    }
+
+    public int getInt(int ident) {
+        return (int) getLong(ident);
+    }
+
+    /**
+     * @return the value as long, FLOAT and DOUBLE values are truncated
+     */
+    public long getLong(int ident) {
+        return toLong(mTypes[ident], mBits.get(ident));
+    }
+
+    public float getFloat(int ident) {
+        return (float) getDouble(ident);
+    }
+
+    public double getDouble(int ident) {
+        return toDouble(mTypes[ident], mBits.get(ident));
+    }
+
+    /**
+     * Returns the value boxed with the same types as {@link VariableType#parse(ByteBuffer)}
+     *
+     * @return the boxed value, null if the ident is not in the store or has never been set
+     */
+    public Number getNumber(int ident) {
+        if (!isSet(ident)) {
+            return null;
+        }
+        return toNumber(mTypes[ident], mBits.get(ident));
+    }
+
+    /**
+     * @param completeName complete name (group.name)
+     * @return the boxed value, null if the parameter is not in the store or has never been set
+     */
+    public Number getNumber(String completeName) {
+        return getNumber(getIdent(completeName));
+    }
+
+    /**
+     * Set a value from the raw bytes of a param packet
+     *
+     * @param ident ident of the parameter
+     * @param buffer buffer positioned at the value
+     * @return false if the ident is not in the store
+     */
+    /* package private */ boolean update(int ident, ByteBuffer buffer) {
+        if (!contains(ident)) {
+            return false;
+        }
+        buffer.order(CrtpPacket.BYTE_ORDER);
+        long bits;
+        switch (mTypes[ident]) {
+            case UINT8_T:
+                bits = buffer.get() & 0xffL;
+                break;
+            case UINT16_T:
+                bits = buffer.getShort() & 0xffffL;
+                break;
+            case UINT32_T:
+                bits = buffer.getInt() & 0xffffffffL;
+                break;
+            case INT8_T:
+                bits = buffer.get();
+                break;
+            case INT16_T:
+                bits = buffer.getShort();
+                break;
+            case INT32_T:
+            case FLOAT:
+                bits = buffer.getInt();
+                break;
+            default:
+                bits = buffer.getLong();
+                break;
+        }
+        write(ident, bits, true);
+        return true;
+    }
+
+    /**
+     * Set a provisional value, e.g. to show a written value before the Crazyflie has confirmed it
+     *
+     * @param ident ident of the parameter
+     * @param value new value, converted to the type of the parameter
+     * @return false if the ident is not in the store
+     */
+    public boolean update(int ident, Number value) {
+        if (!contains(ident)) {
+            return false;
+        }
+        long bits;
+        switch (mTypes[ident]) {
+            case FLOAT:
+                bits = Float.floatToRawIntBits(value.floatValue());
+                break;
+            case DOUBLE:
+                bits = Double.doubleToRawLongBits(value.doubleValue());
+                break;
+            case UINT8_T:
+                bits = value.longValue() & 0xffL;
+                break;
+            case UINT16_T:
+                bits = value.longValue() & 0xffffL;
+                break;
+            case UINT32_T:
+                bits = value.longValue() & 0xffffffffL;
+                break;
+            case INT8_T:
+                bits = value.byteValue();
+                break;
+            case INT16_T:
+                bits = value.shortValue();
+                break;
+            case INT32_T:
+                bits = value.intValue();
+                break;
+            default:
+                bits = value.longValue();
+                break;
+        }
+        write(ident, bits, false);
+        return true;
+    }
+
+    /**
+     * Set the raw bits of a value, as returned by {@link #getBits(int)}
+     *
+     * @return false if the ident is not in the store
+     */
+    /* package private */ boolean updateBits(int ident, long bits, boolean confirmed) {
+        if (!contains(ident)) {
+            return false;
+        }
+        write(ident, bits, confirmed);
+        return true;
+    }
+
+    /**
+     * @return the raw 64 bits of the value
+     */
+    /* package private */ long getBits(int ident) {
+        return mBits.get(ident);
+    }
+
+    private void write(int ident, long bits, boolean confirmed) {
+        synchronized (mWriteLock) {
+            mSequence.incrementAndGet();
+            mBits.set(ident, bits);
+            mVersions.incrementAndGet(ident);
+            int state = mStates.get(ident);
+            if (confirmed) {
+                if ((state & EVER_CONFIRMED) == 0) {
+                    mConfirmedCount.incrementAndGet();
+                }
+                mStates.set(ident, CONFIRMED | EVER_CONFIRMED);
+            } else {
+                mStates.set(ident, state & ~CONFIRMED);
+            }
+            mTimestamps.set(ident, System.nanoTime());
+            mSequence.incrementAndGet();
+        }
+    }
+
+    /**
+     * Take a consistent copy of all values. Returns the previous snapshot if nothing has changed since.
+     *
+     * @return immutable snapshot
+     */
+    public Snapshot snapshot() {
+        Snapshot last = mLastSnapshot;
+        if (last != null && last.mSequence == mSequence.get()) {
+            return last;
+        }
+        int size = mTypes.length;
+        long[] bits = new long[size];
+        long[] versions = new long[size];
+        long[] timestamps = new long[size];
+        long sequence;
+        while (true) {
+            sequence = mSequence.get();
+            if ((sequence & 1) != 0) {
+                // a write is in progress
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < size; i++) {
+                bits[i] = mBits.get(i);
+                versions[i] = mVersions.get(i);
+                timestamps[i] = mTimestamps.get(i);
+            }
+            if (mSequence.get() == sequence) {
+                break;
+            }
+        }
+        Snapshot snapshot = new Snapshot(sequence, bits, versions, timestamps);
+        mLastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    private static long toLong(VariableType type, long bits) {
+        if (type == VariableType.FLOAT || type == VariableType.DOUBLE) {
+            return (long) toDouble(type, bits);
+        }
+        return bits;
+    }
+
+    private static double toDouble(VariableType type, long bits) {
+        if (type == VariableType.FLOAT) {
+            return Float.intBitsToFloat((int) bits);
+        } else if (type == VariableType.DOUBLE) {
+            return Double.longBitsToDouble(bits);
+        }
+        return bits;
+    }
+
+    private static Number toNumber(VariableType type, long bits) {
+        switch (type) {
+            case UINT32_T:
+            case UINT64_T:
+            case INT64_T:
+                return bits;
+            case INT8_T:
+                return (byte) bits;
+            case INT16_T:
+                return (short) bits;
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return (int) bits;
+        }
+    }
+
+    /**
+     * Immutable copy of all values of a {@link ParamValueStore}
+     */
+    public final class Snapshot {
+
+        private final long mSequence;
+        private final long[] mBits;
+        private final long[] mVersions;
+        private final long[] mTimestamps;
+
+        private Snapshot(long sequence, long[] bits, long[] versions, long[] timestamps) {
+            this.mSequence = sequence;
+            this.mBits = bits;
+            this.mVersions = versions;
+            this.mTimestamps = timestamps;
+        }
+
+        /**
+         * @return number of updates of all values at the time of the snapshot
+         */
+        public long getVersion() {
+            return mSequence >> 1;
+        }
+
+        public boolean isSet(int ident) {
+            return contains(ident) && mVersions[ident] > 0;
+        }
+
+        public long getVersion(int ident) {
+            return mVersions[ident];
+        }
+
+        public long getTimestamp(int ident) {
+            return mTimestamps[ident];
+        }
+
+        public int getInt(int ident) {
+            return (int) getLong(ident);
+        }
+
+        public long getLong(int ident) {
+            return toLong(mTypes[ident], mBits[ident]);
+        }
+
+        public float getFloat(int ident) {
+            return (float) getDouble(ident);
+        }
+
+        public double getDouble(int ident) {
+            return toDouble(mTypes[ident], mBits[ident]);
+        }
+
+        public Number getNumber(int ident) {
+            return isSet(ident) ? toNumber(mTypes[ident], mBits[ident]) : null;
+        }
+
+        public Number getNumber(String completeName) {
+            return getNumber(getIdent(completeName));
+        }
+
+        /**
+         * @return values that have been set, by group and name
+         */
+        public Map<String, Map<String, Number>> toMap() {
+            Map<String, Map<String, Number>> map = new HashMap<String, Map<String, Number>>();
+            for (int ident = 0; ident < mBits.length; ident++) {
+                if (!isSet(ident)) {
+                    continue;
+                }
+                TocElement element = mElementsById[ident];
+                Map<String, Number> group = map.get(element.getGroup());
+                if (group == null) {
+                    group = new HashMap<String, Number>();
+                    map.put(element.getGroup(), group);
+                }
+                group.put(element.getName(), toNumber(mTypes[ident], mBits[ident]));
+            }
+            return map;
+        }
+    }
+
+}
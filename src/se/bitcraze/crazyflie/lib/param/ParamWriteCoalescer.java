@@ -0,0 +1,424 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.param;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.bitcraze.crazyflie.lib.crazyflie.Crazyflie;
+import se.bitcraze.crazyflie.lib.crazyflie.DataListener;
+import se.bitcraze.crazyflie.lib.crazyflie.RequestFailedListener;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket.Header;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
+import se.bitcraze.crazyflie.lib.toc.TocElement;
+
+/**
+ * Coalesces parameter writes with last-write-wins per parameter.
+ *
+ * Only one write per parameter is in flight at a time. Values that are set while a write is in flight
+ * replace each other, only the newest one is sent once the Crazyflie has echoed the previous write.
+ * Optionally, a minimum interval between two writes of the same parameter can be set.
+ *
+ * The write listeners of replaced values are completed together with the value that was actually written.
+ *
+ * A write is completed by the echo of exactly the written value. If there is none, the resend queue
+ * gives up and the write fails. In-flight writes time out after {@link #WRITE_TIMEOUT_MS} in any case.
+ */
+class ParamWriteCoalescer {
+
+    private final Logger mLogger = LoggerFactory.getLogger("ParamWriteCoalescer");
+
+    private static final int WRITE_CHANNEL = 2;
+    private static final int MAX_IDENTS = 256;
+
+    /**
+     * Longer than the resend queue takes to give up a request with the default retry policy
+     */
+    static final long WRITE_TIMEOUT_MS = 30000;
+    private static final long WRITE_TIMEOUT_NS = WRITE_TIMEOUT_MS * 1000000L;
+
+    private final Crazyflie mCrazyflie;
+    private final Runnable mWakeUp;
+    private final Header mWriteHeader = Header.valueOf(WRITE_CHANNEL, CrtpPort.PARAMETERS);
+
+    // by ident
+    private final PendingWrite[] mPending = new PendingWrite[MAX_IDENTS];
+    private final PendingWrite[] mInFlight = new PendingWrite[MAX_IDENTS];
+    private final long[] mLastSent = new long[MAX_IDENTS];
+    // min interval in ns by complete name, survives TOC refreshes
+    private final Map<String, Long> mMinIntervals = new ConcurrentHashMap<String, Long>();
+
+    private int mPendingCount = 0;
+    private int mInFlightCount = 0;
+    private int mRequestedCount = 0;
+    private int mSentCount = 0;
+    private int mCoalescedCount = 0;
+
+    private final DataListener mDataListener = new DataListener(CrtpPort.PARAMETERS) {
+        @Override
+        public void dataReceived(CrtpPacket packet) {
+            writeAcknowledged(packet);
+        }
+    };
+
+    private final RequestFailedListener mRequestFailedListener = new RequestFailedListener(CrtpPort.PARAMETERS) {
+        @Override
+        public void requestFailed(CrtpPacket packet, int attempts) {
+            writeFailed(packet);
+        }
+    };
+
+    /**
+     * @param crazyflie connected Crazyflie
+     * @param wakeUp called when a write has been deferred by the rate limit, {@link #sendDueWrites()} must
+     *               be called by then within {@link #getNextDueDelay()}
+     */
+    ParamWriteCoalescer(Crazyflie crazyflie, Runnable wakeUp) {
+        this.mCrazyflie = crazyflie;
+        this.mWakeUp = wakeUp;
+        mCrazyflie.addDataListener(mDataListener);
+        mCrazyflie.addRequestFailedListener(mRequestFailedListener);
+    }
+
+    /**
+     * Set the minimum interval between two writes of a parameter
+     *
+     * @param completeName complete name of the parameter (group.name)
+     * @param intervalMs min interval in ms, 0 to disable the rate limit
+     */
+    void setMinInterval(String completeName, int intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("Interval must not be negative.");
+        }
+        if (intervalMs == 0) {
+            mMinIntervals.remove(completeName);
+        } else {
+            mMinIntervals.put(completeName, intervalMs * 1000000L);
+        }
+    }
+
+    int getMinInterval(String completeName) {
+        Long interval = mMinIntervals.get(completeName);
+        return interval == null ? 0 : (int) (interval / 1000000L);
+    }
+
+    /**
+     * Queue a write, replacing a write of the same parameter that has not been sent yet.
+     *
+     * @param element TOC element of the parameter
+     * @param value the value as bytes
+     * @param listener notified with the value that was written, may be null
+     */
+    void write(TocElement element, byte[] value, ParamWriteListener listener) {
+        CrtpPacket packet;
+        boolean deferred;
+        synchronized (this) {
+            int ident = element.getIdent();
+            mRequestedCount++;
+            PendingWrite pending = mPending[ident];
+            if (pending == null) {
+                pending = new PendingWrite(element, value);
+                mPending[ident] = pending;
+                mPendingCount++;
+            } else {
+                pending.mElement = element;
+                pending.mValue = value;
+                mCoalescedCount++;
+            }
+            if (listener != null) {
+                pending.mListeners.add(listener);
+            }
+            packet = prepareSend(ident, System.nanoTime());
+            deferred = packet == null && mInFlight[ident] == null;
+        }
+        if (packet != null) {
+            mCrazyflie.sendPacket(packet);
+        } else if (deferred) {
+            mWakeUp.run();
+        }
+    }
+
+    /**
+     * Send the writes whose rate limit has expired and fail the in-flight writes that have timed out
+     *
+     * @return delay until the next deferred write is due in ns, -1 if there is none
+     */
+    long sendDueWrites() {
+        List<PendingWrite> timedOut = null;
+        List<CrtpPacket> packets = null;
+        long delay;
+        synchronized (this) {
+            if (mPendingCount == 0 && mInFlightCount == 0) {
+                return -1;
+            }
+            long now = System.nanoTime();
+            for (int ident = 0; ident < MAX_IDENTS; ident++) {
+                PendingWrite inFlight = mInFlight[ident];
+                if (inFlight != null && now - inFlight.mSentTime > WRITE_TIMEOUT_NS) {
+                    mInFlight[ident] = null;
+                    mInFlightCount--;
+                    if (timedOut == null) {
+                        timedOut = new ArrayList<PendingWrite>();
+                    }
+                    timedOut.add(inFlight);
+                }
+                if (mPending[ident] != null) {
+                    CrtpPacket packet = prepareSend(ident, now);
+                    if (packet != null) {
+                        if (packets == null) {
+                            packets = new ArrayList<CrtpPacket>();
+                        }
+                        packets.add(packet);
+                    }
+                }
+            }
+            delay = getNextDueDelay(now);
+        }
+        if (packets != null) {
+            for (CrtpPacket packet : packets) {
+                mCrazyflie.sendPacket(packet);
+            }
+        }
+        if (timedOut != null) {
+            for (PendingWrite write : timedOut) {
+                mLogger.warn("Writing param {} timed out.", write.mElement.getCompleteName());
+                write.failed();
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * @return delay until the next deferred write is due in ns, -1 if there is none
+     */
+    synchronized long getNextDueDelay() {
+        return getNextDueDelay(System.nanoTime());
+    }
+
+    private long getNextDueDelay(long now) {
+        long delay = -1;
+        if (mPendingCount == 0) {
+            return delay;
+        }
+        for (int ident = 0; ident < MAX_IDENTS; ident++) {
+            // pending writes behind an in-flight write are sent when the echo arrives
+            if (mPending[ident] != null && mInFlight[ident] == null) {
+                long due = Math.max(0, mLastSent[ident] + getMinIntervalNs(mPending[ident].mElement) - now);
+                delay = delay == -1 ? due : Math.min(delay, due);
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Stop listening to the Crazyflie and drop all queued and in-flight writes,
+     * their listeners are notified about the failure
+     */
+    void close() {
+        mCrazyflie.removeDataListener(mDataListener);
+        mCrazyflie.removeRequestFailedListener(mRequestFailedListener);
+        List<PendingWrite> dropped = new ArrayList<PendingWrite>();
+        synchronized (this) {
+            for (int ident = 0; ident < MAX_IDENTS; ident++) {
+                if (mInFlight[ident] != null) {
+                    dropped.add(mInFlight[ident]);
+                    mInFlight[ident] = null;
+                }
+                if (mPending[ident] != null) {
+                    dropped.add(mPending[ident]);
+                    mPending[ident] = null;
+                }
+            }
+            mPendingCount = 0;
+            mInFlightCount = 0;
+        }
+        for (PendingWrite write : dropped) {
+            write.failed();
+        }
+    }
+
+    /**
+     * @return number of writes that have been requested
+     */
+    synchronized int getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /**
+     * @return number of writes that have been sent to the Crazyflie
+     */
+    synchronized int getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return number of writes that replaced a queued value before it was sent
+     */
+    synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Move the pending write of the given parameter in flight if nothing is in flight and the rate limit allows it.
+     * Must be called while holding the lock, the caller sends the returned packet after releasing it.
+     *
+     * @return the packet to send or null if the write has not been moved in flight
+     */
+    private CrtpPacket prepareSend(int ident, long now) {
+        PendingWrite pending = mPending[ident];
+        if (pending == null || mInFlight[ident] != null) {
+            return null;
+        }
+        long minInterval = getMinIntervalNs(pending.mElement);
+        if (minInterval > 0 && mLastSent[ident] != 0 && now - mLastSent[ident] < minInterval) {
+            return null;
+        }
+        mPending[ident] = null;
+        mPendingCount--;
+        mInFlight[ident] = pending;
+        mInFlightCount++;
+        pending.mSentTime = now;
+        // 0 is used as "never sent"
+        mLastSent[ident] = now == 0 ? 1 : now;
+        mSentCount++;
+
+        ByteBuffer bb = ByteBuffer.allocate(pending.mValue.length + 1);
+        bb.put((byte) ident);
+        bb.put(pending.mValue);
+        CrtpPacket packet = new CrtpPacket(mWriteHeader.getByte(), bb.array());
+        // the echo of exactly this value completes the write, the resend queue compares the complete
+        // expected reply, so a late echo of an earlier value does not remove this request from it
+        packet.setExpectedReply(bb.array().clone());
+        return packet;
+    }
+
+    private long getMinIntervalNs(TocElement element) {
+        Long interval = mMinIntervals.get(element.getCompleteName());
+        return interval == null ? 0 : interval;
+    }
+
+    private void writeAcknowledged(CrtpPacket packet) {
+        byte[] payload = packet.getPayload();
+        if (packet.getHeader().getChannel() != WRITE_CHANNEL || payload.length < 2) {
+            return;
+        }
+        PendingWrite completed;
+        CrtpPacket next;
+        boolean deferred;
+        synchronized (this) {
+            int ident = payload[0] & 0x00ff;
+            completed = mInFlight[ident];
+            // ignore late echoes of earlier writes (e.g. caused by resends)
+            if (completed == null || !completed.matches(payload)) {
+                return;
+            }
+            mInFlight[ident] = null;
+            mInFlightCount--;
+            next = prepareSend(ident, System.nanoTime());
+            deferred = next == null && mPending[ident] != null;
+        }
+        if (next != null) {
+            mCrazyflie.sendPacket(next);
+        } else if (deferred) {
+            mWakeUp.run();
+        }
+        TocElement element = completed.mElement;
+        completed.written(element.getCtype().parse(ByteBuffer.wrap(payload, 1, payload.length - 1)));
+    }
+
+    private void writeFailed(CrtpPacket packet) {
+        byte[] payload = packet.getPayload();
+        if (packet.getHeader().getChannel() != WRITE_CHANNEL || payload.length < 2) {
+            return;
+        }
+        PendingWrite failed;
+        CrtpPacket next;
+        boolean deferred;
+        synchronized (this) {
+            int ident = payload[0] & 0x00ff;
+            failed = mInFlight[ident];
+            if (failed == null || !failed.matches(payload)) {
+                return;
+            }
+            mInFlight[ident] = null;
+            mInFlightCount--;
+            next = prepareSend(ident, System.nanoTime());
+            deferred = next == null && mPending[ident] != null;
+        }
+        mLogger.warn("Writing param {} failed.", failed.mElement.getCompleteName());
+        if (next != null) {
+            mCrazyflie.sendPacket(next);
+        } else if (deferred) {
+            mWakeUp.run();
+        }
+        failed.failed();
+    }
+
+    private static class PendingWrite {
+
+        private TocElement mElement;
+        private byte[] mValue;
+        private long mSentTime;
+        private final List<ParamWriteListener> mListeners = new ArrayList<ParamWriteListener>(1);
+
+        PendingWrite(TocElement element, byte[] value) {
+            this.mElement = element;
+            this.mValue = value;
+        }
+
+        /**
+         * @return true if the payload (ident + value) carries the value of this write
+         */
+        boolean matches(byte[] payload) {
+            return payload.length == mValue.length + 1
+                    && Arrays.equals(mValue, Arrays.copyOfRange(payload, 1, payload.length));
+        }
+
+        void written(Number value) {
+            for (ParamWriteListener listener : mListeners) {
+                listener.paramWritten(mElement.getCompleteName(), value);
+            }
+        }
+
+        void failed() {
+            for (ParamWriteListener listener : mListeners) {
+                listener.paramWriteFailed(mElement.getCompleteName());
+            }
+        }
+    }
+
+}
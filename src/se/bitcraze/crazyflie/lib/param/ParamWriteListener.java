@@ -0,0 +1,55 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.param;
+
+/**
+ * Listener for the completion of a parameter write.
+ *
+ * Writes to the same parameter are coalesced, so a listener may be completed with a newer value
+ * than the one it was registered with.
+ */
+public abstract class ParamWriteListener {
+
+    /**
+     * Called when the Crazyflie has acknowledged the write.
+     *
+     * @param completeName complete name of the parameter (group.name)
+     * @param value the value that was written, as echoed by the Crazyflie
+     */
+    public abstract void paramWritten(String completeName, Number value);
+
+    /**
+     * Called when the write was given up, e.g. after too many resends or on disconnect.
+     *
+     * @param completeName complete name of the parameter (group.name)
+     */
+    public void paramWriteFailed(String completeName) {
+    }
+
+}
@@ -28,6 +28,7 @@
 package se.bitcraze.crazyflie.lib.toc;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -39,6 +40,9 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Container for TocElements
+ *
+ * Lookups by ident, the sorted element list and the group index are built on first use
+ * and invalidated whenever the TOC changes.
  */
 public class Toc {
 
@@ -48,6 +52,9 @@ public class Toc {
 
     private Map<String, TocElement> mTocElementMap = new HashMap<String, TocElement>();
 
+    // derived views, null when they need to be rebuilt
+    private volatile Index mIndex;
+
     private final static Map<Integer, VariableType> mVariableTypeMapParam = new HashMap<Integer, VariableType>(10);
     private final static Map<Integer, VariableType> mVariableTypeMapLog = new HashMap<Integer, VariableType>(10);
 
@@ -70,8 +77,9 @@ public class Toc {
     /**
      * Clear the TOC
      */
-    public void clear() {
+    public synchronized void clear() {
         this.mTocElementMap.clear();
+        this.mIndex = null;
     }
 
     /**
@@ -79,11 +87,12 @@ public class Toc {
      *
      * @param tocElement
      */
-    public void addElement(TocElement tocElement) {
+    public synchronized void addElement(TocElement tocElement) {
         if (tocElement.getGroup().isEmpty()) {
             throw new IllegalStateException("TocElement has no group!");
         }
         mTocElementMap.put(tocElement.getCompleteName(), tocElement);
+        this.mIndex = null;
     }
 
     /**
@@ -129,10 +138,9 @@ public class Toc {
      * @return
      */
     public TocElement getElementById(int ident) {
-        for(TocElement tocElement : mTocElementMap.values()) {
-            if (tocElement.getIdent() == ident) {
-                return tocElement;
-            }
+        TocElement[] elementsById = getIndex().mElementsById;
+        if (ident >= 0 && ident < elementsById.length && elementsById[ident] != null) {
+            return elementsById[ident];
         }
         mLogger.warn("Unable to find TOC element with ID " + ident);
         return null;
@@ -141,27 +149,106 @@ public class Toc {
     /**
      * Get TocElements as list sorted by ID
      *
-     * @return list of TocElements sorted by ID
+     * @return unmodifiable list of TocElements sorted by ID
      */
-    //TODO: generate list not every time
     public List<TocElement> getElements() {
-        List<TocElement> values = new ArrayList<TocElement>(mTocElementMap.values());
-        Collections.sort(values);
-        return values;
+        return getIndex().mSortedElements;
+    }
+
+    /**
+     * Get the TocElements of a group
+     *
+     * @param group
+     * @return unmodifiable list of TocElements sorted by ID, empty if the group does not exist
+     */
+    public List<TocElement> getElementsInGroup(String group) {
+        List<TocElement> elements = getIndex().mGroups.get(group);
+        return (elements != null) ? elements : Collections.<TocElement>emptyList();
+    }
+
+    /**
+     * @return unmodifiable list of all group names, sorted by name
+     */
+    public List<String> getGroupNames() {
+        return getIndex().mGroupNames;
     }
 
+    /**
+     * @return unmodifiable view of the TOC elements by complete name
+     */
     public Map<String, TocElement> getTocElementMap() {
-        return mTocElementMap;
+        return Collections.unmodifiableMap(mTocElementMap);
     }
 
-    public void setTocElementMap(Map<String, TocElement> map) {
-        this.mTocElementMap = map;
+    /**
+     * Replace the content of the TOC with a copy of the given map
+     *
+     * @param map TOC elements by complete name
+     */
+    public synchronized void setTocElementMap(Map<String, TocElement> map) {
+        this.mTocElementMap = new HashMap<String, TocElement>(map);
+        this.mIndex = null;
     }
 
     public int getTocSize() {
         return mTocElementMap.size();
     }
 
+    private Index getIndex() {
+        Index index = mIndex;
+        if (index == null) {
+            synchronized (this) {
+                if (mIndex == null) {
+                    mIndex = new Index(mTocElementMap.values());
+                }
+                index = mIndex;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Immutable lookup structures derived from the TOC elements
+     */
+    private static final class Index {
+        private final TocElement[] mElementsById;
+        private final List<TocElement> mSortedElements;
+        private final Map<String, List<TocElement>> mGroups;
+        private final List<String> mGroupNames;
+
+        Index(Collection<TocElement> elements) {
+            List<TocElement> sorted = new ArrayList<TocElement>(elements);
+            Collections.sort(sorted);
+            this.mSortedElements = Collections.unmodifiableList(sorted);
+
+            int maxIdent = -1;
+            for (TocElement tocElement : sorted) {
+                maxIdent = Math.max(maxIdent, tocElement.getIdent());
+            }
+            this.mElementsById = new TocElement[maxIdent + 1];
+
+            Map<String, List<TocElement>> groups = new HashMap<String, List<TocElement>>();
+            for (TocElement tocElement : sorted) {
+                // keep the first element for duplicate idents, like the former linear search
+                if (mElementsById[tocElement.getIdent()] == null) {
+                    mElementsById[tocElement.getIdent()] = tocElement;
+                }
+                List<TocElement> group = groups.get(tocElement.getGroup());
+                if (group == null) {
+                    group = new ArrayList<TocElement>();
+                    groups.put(tocElement.getGroup(), group);
+                }
+                group.add(tocElement);
+            }
+            List<String> groupNames = new ArrayList<String>(groups.keySet());
+            Collections.sort(groupNames);
+            for (Entry<String, List<TocElement>> entry : groups.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            this.mGroups = groups;
+            this.mGroupNames = Collections.unmodifiableList(groupNames);
+        }
+    }
 
     private static void fillVariableTypeMapParam() {
         /*
@@ -30,20 +30,24 @@ package se.bitcraze.crazyflie.lib.toc;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonGenerationException;
-import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
 
 import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
 
@@ -52,114 +56,403 @@ import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
  *
  *  Heavily based on toccache.py
  *
+ *  TOCs are stored in a compact binary format (see {@link TocCacheFile}), one file per CRC.
+ *  The cache directories are scanned once when the cache is created, lookups go through an
+ *  in-memory CRC index. JSON cache files written by older versions are imported on startup.
+ *
+ *  The last access of every cache file is kept in memory for the LRU and max age eviction.
+ *  It's also written as the modification time of the file, so it survives a restart where
+ *  the file system allows it (File.setLastModified often fails on Android).
  *
  */
 public class TocCache {
 
     final Logger mLogger = LoggerFactory.getLogger("TocCache");
-    private List<File> mCacheFiles = new ArrayList<File>();
+    // all known cache files (binary and JSON), deleted on clear()
+    private final Set<File> mCacheFiles = new HashSet<File>();
     private File mCacheDir = null;
     private static final String PARAM_CACHE_DIR = "paramCache";
     private static final String LOG_CACHE_DIR = "logCache";
+    private static final String JSON_EXTENSION = ".json";
     private ObjectMapper mMapper = new ObjectMapper(); // can reuse, share globally
 
+    public static final int DEFAULT_MEMORY_CAPACITY = 8;
+    public static final long DEFAULT_MAX_DISK_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = TimeUnit.DAYS.toMillis(90);
+
+    private static final Map<File, TocCache> sSharedCaches = new HashMap<File, TocCache>();
+
+    // CRC -> cache file
+    private final Map<Integer, File> mLogIndex = new HashMap<Integer, File>();
+    private final Map<Integer, File> mParamIndex = new HashMap<Integer, File>();
+    // cache file -> last access (ms), initialized with the modification time of the file
+    private final Map<File, Long> mAccessTimes = new HashMap<File, Long>();
+    private boolean mSetLastModifiedFailed = false;
+
+    // hot tier: (port, CRC) -> decoded TOC, in access order
+    private final LinkedHashMap<Long, Toc> mMemoryCache = new LinkedHashMap<Long, Toc>(16, 0.75f, true);
+    private int mMemoryCapacity = DEFAULT_MEMORY_CAPACITY;
+    private long mMaxDiskSize = DEFAULT_MAX_DISK_SIZE;
+    private long mMaxAgeMs = DEFAULT_MAX_AGE_MS;
+
+    private long mMemoryHits = 0;
+    private long mDiskHits = 0;
+    private long mMisses = 0;
+    private long mMemoryEvictions = 0;
+    private long mDiskEvictions = 0;
+
     public TocCache(File cacheDir) {
         this.mCacheDir = cacheDir;
         //TODO: should it be possible to change the name of the dirs?
-        addExistingCacheFiles(LOG_CACHE_DIR);
-        addExistingCacheFiles(PARAM_CACHE_DIR);
+        addExistingCacheFiles(LOG_CACHE_DIR, mLogIndex);
+        addExistingCacheFiles(PARAM_CACHE_DIR, mParamIndex);
+        evictDiskFiles();
+    }
+
+    /**
+     * Get the process-wide cache for the given directory.
+     *
+     * @param cacheDir TOC cache files dir
+     * @return the shared cache instance
+     */
+    public static TocCache getShared(File cacheDir) {
+        File key = null;
+        if (cacheDir != null) {
+            try {
+                key = cacheDir.getCanonicalFile();
+            } catch (IOException ioe) {
+                key = cacheDir.getAbsoluteFile();
+            }
+        }
+        synchronized (sSharedCaches) {
+            TocCache tocCache = sSharedCaches.get(key);
+            if (tocCache == null) {
+                tocCache = new TocCache(cacheDir);
+                sSharedCaches.put(key, tocCache);
+            }
+            return tocCache;
+        }
     }
 
-    private void addExistingCacheFiles(String cachePath) {
-        if (cachePath != null) {
-            //use cache dir if it's not null
-            File cachePathFile = (mCacheDir != null) ? new File(mCacheDir, cachePath) : new File(cachePath);
-            if(cachePathFile.exists()) {
-                this.mCacheFiles.addAll(Arrays.asList(cachePathFile.listFiles(jsonFilter)));
+    private File getCacheDir(String subDir) {
+        //use cache dir if it's not null
+        return (mCacheDir != null) ? new File(mCacheDir, subDir) : new File(subDir);
+    }
+
+    private synchronized void addExistingCacheFiles(String cachePath, Map<Integer, File> index) {
+        File cachePathFile = getCacheDir(cachePath);
+        File[] files = cachePathFile.listFiles(cacheFileFilter);
+        if (files == null) {
+            return;
+        }
+        List<File> jsonFiles = new ArrayList<File>();
+        for (File file : files) {
+            mCacheFiles.add(file);
+            Integer crc = parseCrc(file.getName());
+            if (crc == null) {
+                continue;
+            }
+            if (file.getName().endsWith(TocCacheFile.FILE_EXTENSION)) {
+                index.put(crc, file);
+                mAccessTimes.put(file, file.lastModified());
+            } else {
+                jsonFiles.add(file);
+            }
+        }
+        // import JSON files that don't have a binary counterpart yet
+        for (File jsonFile : jsonFiles) {
+            Integer crc = parseCrc(jsonFile.getName());
+            if (!index.containsKey(crc)) {
+                importJsonFile(jsonFile, crc, cachePathFile, index);
             }
         }
     }
 
-    FilenameFilter jsonFilter = new FilenameFilter() {
+    private void importJsonFile(File jsonFile, int crc, File cacheDir, Map<Integer, File> index) {
+        try {
+            Toc toc = new Toc();
+            Map<String, TocElement> readValue = mMapper.readValue(jsonFile, new TypeReference<Map<String, TocElement>>() { });
+            toc.setTocElementMap(readValue);
+            File binFile = new File(cacheDir, getFileName(crc));
+            TocCacheFile.write(binFile, crc, toc);
+            index.put(crc, binFile);
+            mCacheFiles.add(binFile);
+            // the JSON file was last used when it was last written
+            mAccessTimes.put(binFile, jsonFile.lastModified());
+            mLogger.info("Imported JSON cache file " + jsonFile.getName());
+        } catch (IOException | IllegalArgumentException e) {
+            mLogger.error("Error while importing cache file " + jsonFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    FilenameFilter cacheFileFilter = new FilenameFilter() {
         public boolean accept(File dir, String name) {
-            return name.endsWith(".json");
+            return name.endsWith(TocCacheFile.FILE_EXTENSION) || name.endsWith(JSON_EXTENSION);
         }
     };
 
+    /**
+     * Parse the CRC from a cache file name (e.g. 1A2B3C4D.bin)
+     *
+     * @param fileName name of the cache file
+     * @return CRC or null if the file name does not contain a CRC
+     */
+    private static Integer parseCrc(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 8) {
+            return null;
+        }
+        try {
+            return (int) Long.parseLong(fileName.substring(dot - 8, dot), 16);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    private static String getFileName(int crc) {
+        return String.format("%08X", crc) + TocCacheFile.FILE_EXTENSION;
+    }
+
+    private Map<Integer, File> getIndex(CrtpPort port) {
+        return (port == CrtpPort.PARAMETERS) ? mParamIndex : mLogIndex;
+    }
+
+    private static long getMemoryKey(int crc, CrtpPort port) {
+        int portIndex = (port == CrtpPort.PARAMETERS) ? 1 : 0;
+        return ((long) portIndex << 32) | (crc & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Copy of the TOC, so users of a cached TOC can't modify the cache
+     */
+    private static Toc copyOf(Toc toc) {
+        Toc copy = new Toc();
+        copy.setCrc(toc.getCrc());
+        copy.setTocElementMap(toc.getTocElementMap());
+        return copy;
+    }
+
+    private void putInMemory(long key, Toc toc) {
+        mMemoryCache.put(key, toc);
+        trimMemory();
+    }
+
+    /**
+     * Remove least recently used TOCs until the memory tier fits its capacity
+     */
+    private void trimMemory() {
+        Iterator<Toc> iterator = mMemoryCache.values().iterator();
+        while (mMemoryCache.size() > mMemoryCapacity && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            mMemoryEvictions++;
+        }
+    }
+
     /**
      * Try to get a hit in the cache, return None otherwise
      *
+     * Looks in memory first and then on disk.
+     *
      * @param crc CRC code of the TOC
      * @param port CrtpPort of the TOC
      */
-    public Toc fetch(int crc, CrtpPort port) {
-        Toc fetchedToc = null;
-        String pattern = String.format("%08X.json", crc);
-        File hit = null;
-
-        mLogger.debug("Trying to find existing TOC cache file: " + pattern);
-
-        for (File file : mCacheFiles) {
-            if(file.getName().endsWith(pattern)) {
-                hit = file;
+    public synchronized Toc fetch(int crc, CrtpPort port) {
+        long key = getMemoryKey(crc, port);
+        Toc memoryHit = mMemoryCache.get(key);
+        if (memoryHit != null) {
+            mMemoryHits++;
+            // keep the file of a hot TOC from being evicted from the disk tier
+            File file = getIndex(port).get(crc);
+            if (file != null) {
+                touch(file);
             }
+            mLogger.debug("Found TOC for CRC " + String.format("0x%08X", crc) + " in memory.");
+            return copyOf(memoryHit);
         }
-        if (hit != null) {
-            mLogger.debug("Found TOC cache file: " + pattern);
-            try {
-                fetchedToc = new Toc();
-                Map<String, TocElement> readValue = mMapper.readValue(hit, new TypeReference<Map<String, TocElement>>() { });
-                fetchedToc.setTocElementMap(readValue);
-                mLogger.debug("Number of cached elements: " + fetchedToc.getElements().size());
-                //TODO: file leak?
-            } catch (JsonParseException jpe) {
-                mLogger.error("Error while parsing cache file " + hit.getName() + ": " + jpe.getMessage());
-                return null;
-            } catch (JsonMappingException jme) {
-                mLogger.error("Error while parsing cache file " + hit.getName() + ": " + jme.getMessage());
-                return null;
-            } catch (IOException ioe) {
-                mLogger.error("Error while parsing cache file " + hit.getName() + ": " + ioe.getMessage());
-                return null;
-            }
+
+        Map<Integer, File> index = getIndex(port);
+        File hit = index.get(crc);
+        if (hit == null) {
+            mMisses++;
+            mLogger.debug("No TOC cache file for CRC " + String.format("0x%08X", crc));
+            return null;
+        }
+        mLogger.debug("Found TOC cache file: " + hit.getName());
+        try {
+            Toc fetchedToc = TocCacheFile.read(hit, crc);
+            mLogger.debug("Number of cached elements: " + fetchedToc.getTocSize());
+            mDiskHits++;
+            touch(hit);
+            putInMemory(key, fetchedToc);
+            return copyOf(fetchedToc);
+        } catch (IOException ioe) {
+            mLogger.error("Error while parsing cache file " + hit.getName() + ": " + ioe.getMessage());
+            mMisses++;
+            // don't try this file again
+            index.remove(crc);
+            return null;
         }
-        return fetchedToc;
     }
 
     /**
      * Save a new cache to file
      */
-    public void insert (int crc, CrtpPort port,  Toc toc) {
-        String fileName = String.format("%08X.json", crc);
+    public synchronized void insert (int crc, CrtpPort port,  Toc toc) {
+        putInMemory(getMemoryKey(crc, port), copyOf(toc));
+        String fileName = getFileName(crc);
         String subDir = (port == CrtpPort.PARAMETERS) ? PARAM_CACHE_DIR : LOG_CACHE_DIR;
-        File cacheDir = (mCacheDir != null) ? new File(mCacheDir, subDir) : new File(subDir);
-        File cacheFile = new File(cacheDir, fileName);
+        File cacheFile = new File(getCacheDir(subDir), fileName);
         try {
-            if (!cacheFile.exists()) {
-                cacheFile.getParentFile().mkdirs();
-                cacheFile.createNewFile();
-            }
-            this.mMapper.enable(SerializationFeature.INDENT_OUTPUT);
-            this.mMapper.writeValue(cacheFile, toc.getTocElementMap());
-            //TODO: add "__class__" : "LogTocElement",
+            cacheFile.getParentFile().mkdirs();
+            TocCacheFile.write(cacheFile, crc, toc);
             this.mLogger.info("Saved cache to " + fileName);
+            getIndex(port).put(crc, cacheFile);
             this.mCacheFiles.add(cacheFile);
-            //TODO: file leak?
-        } catch (JsonGenerationException jge) {
-            mLogger.error("Could not save cache to file " + fileName + ".\n" + jge.getMessage());
-        } catch (JsonMappingException jme) {
-            mLogger.error("Could not save cache to file " + fileName + ".\n" + jme.getMessage());
-        } catch (IOException ioe) {
-            mLogger.error("Could not save cache to file " + fileName + ".\n" + ioe.getMessage());
+            touch(cacheFile);
+        } catch (IOException | IllegalArgumentException e) {
+            mLogger.error("Could not save cache to file " + fileName + ".\n" + e.getMessage());
+        }
+        evictDiskFiles();
+    }
+
+    /**
+     * Record an access of a cache file for the LRU eviction
+     */
+    private void touch(File file) {
+        long now = System.currentTimeMillis();
+        mAccessTimes.put(file, now);
+        if (!file.setLastModified(now) && !mSetLastModifiedFailed) {
+            // not fatal, the access time is only lost on restart
+            mSetLastModifiedFailed = true;
+            mLogger.warn("Could not set the modification time of " + file.getAbsolutePath()
+                    + ", cache file access times are not kept across restarts.");
+        }
+    }
+
+    private long getAccessTime(File file) {
+        Long accessTime = mAccessTimes.get(file);
+        return accessTime != null ? accessTime : file.lastModified();
+    }
+
+    /**
+     * Delete cache files that are older than the max age and then the least recently used
+     * files until the cache fits into the max disk size.
+     */
+    private void evictDiskFiles() {
+        long now = System.currentTimeMillis();
+        // copy entries, because deleteCacheFile modifies the index
+        List<Map.Entry<Integer, File>> entries = new ArrayList<Map.Entry<Integer, File>>();
+        for (Map.Entry<Integer, File> entry : mLogIndex.entrySet()) {
+            entries.add(new AbstractMap.SimpleEntry<Integer, File>(entry));
+        }
+        for (Map.Entry<Integer, File> entry : mParamIndex.entrySet()) {
+            entries.add(new AbstractMap.SimpleEntry<Integer, File>(entry));
+        }
+        long totalSize = 0;
+        for (Map.Entry<Integer, File> entry : entries) {
+            totalSize += entry.getValue().length();
+        }
+        // oldest first
+        Collections.sort(entries, new Comparator<Map.Entry<Integer, File>>() {
+            public int compare(Map.Entry<Integer, File> e1, Map.Entry<Integer, File> e2) {
+                return Long.valueOf(getAccessTime(e1.getValue())).compareTo(Long.valueOf(getAccessTime(e2.getValue())));
+            }
+        });
+        for (Map.Entry<Integer, File> entry : entries) {
+            File file = entry.getValue();
+            boolean expired = now - getAccessTime(file) > mMaxAgeMs;
+            if (!expired && totalSize <= mMaxDiskSize) {
+                break;
+            }
+            totalSize -= file.length();
+            deleteCacheFile(entry.getKey(), file);
         }
     }
 
-    public void clear() {
+    private void deleteCacheFile(int crc, File file) {
+        File dir = file.getParentFile();
+        mCacheFiles.remove(file);
+        mAccessTimes.remove(file);
+        if (file.delete()) {
+            mDiskEvictions++;
+            mLogger.info("Evicted cache file " + file.getName());
+        } else {
+            mLogger.error("Deleting cache file " + file.getAbsolutePath() + " failed.");
+        }
+        // imported JSON file with the same CRC
+        File jsonFile = new File(dir, String.format("%08X", crc) + JSON_EXTENSION);
+        mCacheFiles.remove(jsonFile);
+        if (jsonFile.exists() && !jsonFile.delete()) {
+            mLogger.error("Deleting cache file " + jsonFile.getAbsolutePath() + " failed.");
+        }
+        if (dir != null && dir.getName().equals(PARAM_CACHE_DIR)) {
+            mParamIndex.remove(crc);
+        } else {
+            mLogIndex.remove(crc);
+        }
+    }
+
+    /**
+     * Set the number of decoded TOCs kept in memory
+     */
+    public synchronized void setMemoryCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative.");
+        }
+        this.mMemoryCapacity = capacity;
+        trimMemory();
+    }
+
+    /**
+     * Set the budget of the disk tier. Files exceeding the budget are evicted immediately.
+     *
+     * @param maxDiskSize max total size of all cache files in bytes
+     * @param maxAgeMs max time since a cache file was last used
+     */
+    public synchronized void setDiskBudget(long maxDiskSize, long maxAgeMs) {
+        if (maxDiskSize < 0 || maxAgeMs < 0) {
+            throw new IllegalArgumentException("Disk budget must not be negative.");
+        }
+        this.mMaxDiskSize = maxDiskSize;
+        this.mMaxAgeMs = maxAgeMs;
+        evictDiskFiles();
+    }
+
+    public synchronized long getMemoryHits() {
+        return mMemoryHits;
+    }
+
+    public synchronized long getDiskHits() {
+        return mDiskHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getMemoryEvictions() {
+        return mMemoryEvictions;
+    }
+
+    public synchronized long getDiskEvictions() {
+        return mDiskEvictions;
+    }
+
+    public synchronized void clear() {
         for (File file : mCacheFiles) {
+            if (!file.exists()) {
+                continue;
+            }
             boolean delete = file.delete();
             if (!delete) {
                 mLogger.error("Deleting cache file " + file.getAbsolutePath() + " failed.");
             }
         }
+        mCacheFiles.clear();
+        mMemoryCache.clear();
+        mLogIndex.clear();
+        mParamIndex.clear();
+        mAccessTimes.clear();
     }
 }
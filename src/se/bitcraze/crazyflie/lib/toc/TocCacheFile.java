@@ -0,0 +1,272 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+package se.bitcraze.crazyflie.lib.toc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary TOC cache file format.
+ *
+ * <pre>
+ * header:  magic "CFTC" (4) | version (1) | reserved (3) | CRC (4) | number of elements (2)
+ * element: ident (2) | ctype (1, 0xFF = none) | access (1) | group length (1) | group | name length (1) | name
+ * </pre>
+ *
+ * The ctype is stored as the type code of the firmware param TOC (e.g. 0x06 = float) for log and param TOCs,
+ * so the file does not depend on the order of {@link VariableType}.
+ *
+ * All values are little endian, strings are US-ASCII without terminator.
+ * Files are read through a memory-mapped {@link FileChannel}.
+ */
+final class TocCacheFile {
+
+    public static final String FILE_EXTENSION = ".bin";
+
+    private static final byte[] MAGIC = {'C', 'F', 'T', 'C'};
+    // version 1 stored VariableType.ordinal()
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 14;
+    private static final int NO_CTYPE = 0xFF;
+
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+    private TocCacheFile() {
+    }
+
+    /**
+     * Read a TOC from a binary cache file
+     *
+     * @param file cache file
+     * @param crc expected CRC of the TOC
+     * @return the cached TOC
+     * @throws IOException if the file can not be read or is not a valid cache file for the given CRC
+     */
+    public static Toc read(File file, int crc) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, crc);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Toc decode(ByteBuffer buffer, int crc) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (byte b : MAGIC) {
+                if (buffer.get() != b) {
+                    throw new IOException("Not a TOC cache file.");
+                }
+            }
+            int version = buffer.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported TOC cache version " + version + ".");
+            }
+            buffer.position(buffer.position() + 3);
+            int fileCrc = buffer.getInt();
+            if (fileCrc != crc) {
+                throw new IOException(String.format("CRC mismatch, expected 0x%08X but file has 0x%08X.", crc, fileCrc));
+            }
+            int noOfElements = buffer.getShort() & 0xFFFF;
+
+            Map<String, TocElement> elements = new HashMap<String, TocElement>(noOfElements * 2);
+            for (int i = 0; i < noOfElements; i++) {
+                TocElement tocElement = new TocElement();
+                tocElement.setIdent(buffer.getShort() & 0xFFFF);
+                int ctype = buffer.get() & 0xFF;
+                if (ctype != NO_CTYPE) {
+                    tocElement.setCtype(fromTypeCode(ctype));
+                }
+                tocElement.setAccess(buffer.get() & 0xFF);
+                tocElement.setGroup(readString(buffer));
+                tocElement.setName(readString(buffer));
+                elements.put(tocElement.getCompleteName(), tocElement);
+            }
+
+            Toc toc = new Toc();
+            toc.setCrc(crc);
+            toc.setTocElementMap(elements);
+            return toc;
+        } catch (RuntimeException re) {
+            // BufferUnderflowException etc. for truncated files
+            throw new IOException("Corrupt TOC cache file: " + re.toString());
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.get() & 0xFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * Write a TOC to a binary cache file. The file is written to a temporary file first
+     * and then renamed, so a failed write does not leave a corrupt cache file behind.
+     *
+     * @param file cache file
+     * @param crc CRC of the TOC
+     * @param toc TOC to save
+     * @throws IOException if the file can not be written
+     */
+    public static void write(File file, int crc, Toc toc) throws IOException {
+        ByteBuffer buffer = encode(crc, toc.getElements());
+
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            fos.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace " + file.getName() + ".");
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not rename " + tmpFile.getName() + ".");
+        }
+    }
+
+    private static ByteBuffer encode(int crc, List<TocElement> elements) {
+        if (elements.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Too many TOC elements: " + elements.size());
+        }
+        byte[][] strings = new byte[elements.size() * 2][];
+        int size = HEADER_SIZE;
+        for (int i = 0; i < elements.size(); i++) {
+            TocElement tocElement = elements.get(i);
+            strings[2 * i] = toBytes(tocElement.getGroup());
+            strings[2 * i + 1] = toBytes(tocElement.getName());
+            size += 4 + 1 + strings[2 * i].length + 1 + strings[2 * i + 1].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put(new byte[3]);
+        buffer.putInt(crc);
+        buffer.putShort((short) elements.size());
+        for (int i = 0; i < elements.size(); i++) {
+            TocElement tocElement = elements.get(i);
+            buffer.putShort((short) tocElement.getIdent());
+            VariableType ctype = tocElement.getCtype();
+            buffer.put((byte) (ctype != null ? toTypeCode(ctype) : NO_CTYPE));
+            buffer.put((byte) tocElement.getAccess());
+            buffer.put((byte) strings[2 * i].length);
+            buffer.put(strings[2 * i]);
+            buffer.put((byte) strings[2 * i + 1].length);
+            buffer.put(strings[2 * i + 1]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] toBytes(String string) {
+        byte[] bytes = (string != null ? string : "").getBytes(CHARSET);
+        if (bytes.length > 0xFF) {
+            throw new IllegalArgumentException("TOC element name too long: " + string);
+        }
+        return bytes;
+    }
+    /**
+     * Map a variable type to its type code in the firmware param TOC
+     */
+    private static int toTypeCode(VariableType ctype) {
+        switch (ctype) {
+            case INT8_T:
+                return 0x00;
+            case INT16_T:
+                return 0x01;
+            case INT32_T:
+                return 0x02;
+            case INT64_T:
+                return 0x03;
+            case FLOAT:
+                return 0x06;
+            case DOUBLE:
+                return 0x07;
+            case UINT8_T:
+                return 0x08;
+            case UINT16_T:
+                return 0x09;
+            case UINT32_T:
+                return 0x0A;
+            case UINT64_T:
+                return 0x0B;
+            default:
+                throw new IllegalArgumentException("No type code for variable type " + ctype + ".");
+        }
+    }
+
+    /**
+     * Map a type code of the firmware param TOC back to the variable type
+     */
+    private static VariableType fromTypeCode(int typeCode) throws IOException {
+        switch (typeCode) {
+            case 0x00:
+                return VariableType.INT8_T;
+            case 0x01:
+                return VariableType.INT16_T;
+            case 0x02:
+                return VariableType.INT32_T;
+            case 0x03:
+                return VariableType.INT64_T;
+            case 0x06:
+                return VariableType.FLOAT;
+            case 0x07:
+                return VariableType.DOUBLE;
+            case 0x08:
+                return VariableType.UINT8_T;
+            case 0x09:
+                return VariableType.UINT16_T;
+            case 0x0A:
+                return VariableType.UINT32_T;
+            case 0x0B:
+                return VariableType.UINT64_T;
+            default:
+                throw new IOException("Unknown variable type " + typeCode + ".");
+        }
+    }
+
+}
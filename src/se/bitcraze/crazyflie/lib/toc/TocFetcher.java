@@ -29,6 +29,8 @@ package se.bitcraze.crazyflie.lib.toc;
 
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -37,6 +39,7 @@ import org.slf4j.LoggerFactory;
 
 import se.bitcraze.crazyflie.lib.crazyflie.Crazyflie;
 import se.bitcraze.crazyflie.lib.crazyflie.DataListener;
+import se.bitcraze.crazyflie.lib.crazyflie.RequestFailedListener;
 import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
 import se.bitcraze.crazyflie.lib.crtp.CrtpPacket.Header;
 import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
@@ -44,6 +47,10 @@ import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
 /**
  * Fetches TOC entries from the Crazyflie
  *
+ * Element requests are pipelined: up to {@link #getWindowSize()} requests are in flight at the same time.
+ * Replies may arrive in any order and are stored by index, lost requests are resent by the
+ * Crazyflie resend queue, so only the missing indices are requested again.
+ * A window size of 1 fetches one element after the other.
  */
 public class TocFetcher {
 
@@ -60,12 +67,23 @@ public class TocFetcher {
     public static final int CMD_TOC_ELEMENT = 0;
     public static final int CMD_TOC_INFO= 1;
 
-    private int mRequestedIndex = -1;
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+
     private int mNoOfItems = -1;
+    private int mWindowSize = DEFAULT_WINDOW_SIZE;
+
+    // received elements indexed by TOC index
+    private TocElement[] mElementSlots;
+    private int mNextIndex = 0;
+    private int mReceivedCount = 0;
+
+    // requests created while holding the lock, sent after leaving it
+    private List<CrtpPacket> mOutbox = new ArrayList<CrtpPacket>();
 
     private Set<TocFetchFinishedListener> mTocFetchFinishedListeners = new CopyOnWriteArraySet<TocFetchFinishedListener>();
 
     private DataListener mDataListener;
+    private RequestFailedListener mRequestFailedListener;
     private long tocFetchStartTime;
 
     private Header mTocHeader;
@@ -79,7 +97,26 @@ public class TocFetcher {
         this.mPort = port;
         this.mToc = tocHolder;
         this.mTocCache = tocCache;
-        this.mTocHeader = new Header(TOC_CHANNEL, this.mPort);
+        this.mTocHeader = Header.valueOf(TOC_CHANNEL, this.mPort);
+        if (crazyFlie != null) {
+            setWindowSize(crazyFlie.getTocFetchWindowSize());
+        }
+    }
+
+    /**
+     * Set the number of TOC element requests that are in flight at the same time.
+     *
+     * @param windowSize number of outstanding requests (1 = sequential fetching)
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1.");
+        }
+        this.mWindowSize = windowSize;
+    }
+
+    public int getWindowSize() {
+        return this.mWindowSize;
     }
 
     /**
@@ -99,8 +136,20 @@ public class TocFetcher {
             }
         };
         this.mCrazyflie.addDataListener(mDataListener);
+
+        // requests that did not get a reply even after resending are requested again
+        mRequestFailedListener = new RequestFailedListener(this.mPort) {
+            @Override
+            public void requestFailed(CrtpPacket packet, int attempts) {
+                retryFailedRequest(packet);
+            }
+        };
+        this.mCrazyflie.addRequestFailedListener(mRequestFailedListener);
         tocFetchStartTime = System.currentTimeMillis();
-        requestTocInfo();
+        synchronized (this) {
+            requestTocInfo();
+        }
+        sendRequests();
     }
 
     /**
@@ -108,6 +157,7 @@ public class TocFetcher {
      */
     private void tocFetchFinished() {
         this.mCrazyflie.removeDataListener(mDataListener);
+        this.mCrazyflie.removeRequestFailedListener(mRequestFailedListener);
         long tocFetchDuration = System.currentTimeMillis() - tocFetchStartTime;
         mLogger.debug("Fetching TOC (Port: {}) done in {}ms.", this.mPort, tocFetchDuration);
         this.mState = TocState.TOC_FETCH_FINISHED;
@@ -128,6 +178,13 @@ public class TocFetcher {
         if (packet.getHeader().getChannel() != TOC_CHANNEL) {
             return;
         }
+        synchronized (this) {
+            handlePacket(packet);
+        }
+        sendRequests();
+    }
+
+    private void handlePacket(CrtpPacket packet) {
         // payload = struct.pack("B" * (len(packet.datal) - 1), *packet.datal[1:])
         int offset = 1;
         byte[] payload = new byte[packet.getPayload().length-offset];
@@ -140,22 +197,13 @@ public class TocFetcher {
             }
         } else if (mState == TocState.GET_TOC_ELEMENT) {
             if (packet.getPayload()[0] == CMD_TOC_ELEMENT) {
-                // Always add new element, but only request new if it's not the last one.
-                // if self.requested_index != ord(payload[0]):
                 // Fix for TOC > 128 items (fixed by Arnaud)
                 int actualIndex = payloadBuffer.get(0) & 0x00ff;
-                if (this.mRequestedIndex != actualIndex) {
-                    /*
-                        # TODO: There might be a timing issue here with resending old
-                        #       packets while loosing new ones. Then if 7 is requested
-                        #       but 6 is send back due to timing issues with the resend
-                        #       while 7 is lost then we will never resend for 7.
-                        #       This is pretty hard to reproduce but happens...
-                     */
-                    mLogger.warn("[" + this.mPort + "]: Was expecting " + this.mRequestedIndex + " but got " + actualIndex + ".");
+                if (actualIndex >= this.mNoOfItems) {
+                    mLogger.warn("[" + this.mPort + "]: Got index " + actualIndex + ", but TOC only has " + this.mNoOfItems + " items.");
                     return;
                 }
-                handleCmdTocElement(payloadBuffer);
+                handleCmdTocElement(actualIndex, payloadBuffer);
             }
         }
     }
@@ -179,29 +227,83 @@ public class TocFetcher {
             tocFetchFinished();
         } else {
             this.mState = TocState.GET_TOC_ELEMENT;
-            this.mRequestedIndex = 0;
-            requestTocElement(this.mRequestedIndex);
+            this.mElementSlots = new TocElement[this.mNoOfItems];
+            this.mNextIndex = 0;
+            this.mReceivedCount = 0;
+            if (this.mNoOfItems == 0) {
+                tocElementsComplete();
+                return;
+            }
+            // fill the window
+            while (this.mNextIndex < Math.min(this.mWindowSize, this.mNoOfItems)) {
+                requestTocElement(this.mNextIndex);
+                this.mNextIndex++;
+            }
         }
     }
 
-    private void handleCmdTocElement(ByteBuffer payloadBuffer) {
+    private void handleCmdTocElement(int index, ByteBuffer payloadBuffer) {
+        if (mElementSlots[index] != null) {
+            // late reply to a resent request
+            mLogger.debug("[{}]: Ignoring duplicate element {}", this.mPort, index);
+            return;
+        }
         TocElement tocElement = new TocElement(mPort, payloadBuffer.array());
-        mToc.addElement(tocElement);
+        mElementSlots[index] = tocElement;
+        mReceivedCount++;
 
         mLogger.debug("Added "+ tocElement.getClass().getSimpleName() + " [" + tocElement.getIdent() + "] to TOC");
 
-        if(mRequestedIndex < (mNoOfItems - 1)) {
-            mLogger.debug("[{}]: More variables, requesting index {}", this.mPort, (this.mRequestedIndex + 1));
-            this.mRequestedIndex++;
-            requestTocElement(this.mRequestedIndex);
+        if (mNextIndex < mNoOfItems) {
+            // one slot in the window became free
+            mLogger.debug("[{}]: More variables, requesting index {}", this.mPort, this.mNextIndex);
+            requestTocElement(this.mNextIndex);
+            this.mNextIndex++;
+        }
+        if (mReceivedCount == mNoOfItems) {
+            tocElementsComplete();
+        }
+    }
+
+    private void tocElementsComplete() {
+        // No more variables in TOC
+        mLogger.info("No more variables in TOC.");
+        for (TocElement tocElement : mElementSlots) {
+            mToc.addElement(tocElement);
+        }
+        if (mTocCache != null) {
+            mTocCache.insert(mCrc, mPort, mToc);
+            tocFetchFinished();
         } else {
-            // No more variables in TOC
-            mLogger.info("No more variables in TOC.");
-            if (mTocCache != null) {
-                mTocCache.insert(mCrc, mPort, mToc);
-                tocFetchFinished();
-            } else {
-                mLogger.error("TOCCache is null!.");
+            mLogger.error("TOCCache is null!.");
+        }
+    }
+
+    /**
+     * Request again a TOC info or element that was given up by the resend queue
+     *
+     * @param packet failed request
+     */
+    private void retryFailedRequest(CrtpPacket packet) {
+        byte[] payload = packet.getPayload();
+        if (packet.getHeader().getChannel() != TOC_CHANNEL || payload.length == 0) {
+            return;
+        }
+        synchronized (this) {
+            retryRequest(payload);
+        }
+        sendRequests();
+    }
+
+    private void retryRequest(byte[] payload) {
+        if (mState == TocState.GET_TOC_INFO && payload[0] == CMD_TOC_INFO) {
+            mLogger.warn("[{}]: TOC info request failed, requesting again.", this.mPort);
+            requestTocInfo();
+        } else if (mState == TocState.GET_TOC_ELEMENT && payload[0] == CMD_TOC_ELEMENT && payload.length > 1) {
+            int index = payload[1] & 0x00ff;
+            if (index < mNoOfItems && mElementSlots[index] == null) {
+                mLogger.warn("[{}]: Request for index {} failed, requesting again.", this.mPort, index);
+                requestTocElement(index);
             }
         }
     }
@@ -226,6 +328,7 @@ public class TocFetcher {
     }
 
     /**
+     * Queue a request, it's sent by {@link #sendRequests()} after the lock is released.
      * Expected reply is the same as data, so no extra parameter necessary
      *
      * @param data that should be sent
@@ -234,6 +337,24 @@ public class TocFetcher {
         if (mCrazyflie != null && mTocHeader != null) {
             CrtpPacket packet = new CrtpPacket(mTocHeader.getByte(), data);
             packet.setExpectedReply(data);
+            mOutbox.add(packet);
+        }
+    }
+
+    /**
+     * Send the queued requests. Must not be called while holding the lock, sending may block
+     * when the out queue of the driver is full.
+     */
+    private void sendRequests() {
+        List<CrtpPacket> packets;
+        synchronized (this) {
+            if (mOutbox.isEmpty()) {
+                return;
+            }
+            packets = mOutbox;
+            mOutbox = new ArrayList<CrtpPacket>();
+        }
+        for (CrtpPacket packet : packets) {
             this.mCrazyflie.sendPacket(packet);
         }
     }
@@ -420,6 +420,18 @@ public class BleLink extends CrtpDriver {
         pid = (pid+1)%4;
     }
 
+    @Override
+    public String getLinkId() {
+        BluetoothDevice device = mDevice;
+        return (device != null) ? "ble/" + device.getAddress() : super.getLinkId();
+    }
+
+    //TODO: TOCs can't be fetched over BLE yet
+    @Override
+    public boolean supportsTocFetch() {
+        return false;
+    }
+
     @Override
     public CrtpPacket receivePacket(int time) {
         try {
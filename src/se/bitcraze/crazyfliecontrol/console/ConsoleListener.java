@@ -41,7 +41,8 @@ public class ConsoleListener extends DataListener {
     private StringBuffer consoleBuffer = new StringBuffer();
 
     public ConsoleListener() {
-        super(CrtpPort.CONSOLE);
+        // updates the UI, keep it off the incoming packet handler
+        super(CrtpPort.CONSOLE, true);
     }
 
     public void setMainActivity(MainActivity mainActivity) {
@@ -185,8 +185,9 @@ public class MainPresenter {
 
     public void sendPacket(CrtpPacket packet) {
         if (mCrazyflie != null) {
-            mCrazyflie.sendPacket(packet);
+            // log first, pooled packets are recycled once they are sent
             Log.d(LOG_TAG, "packet: " + packet);
+            mCrazyflie.sendPacket(packet);
         }
     }
 
@@ -211,9 +212,9 @@ public class MainPresenter {
 
                     if (heightHold) {
                         float targetHeight = controller.getTargetHeight();
-                        sendPacket(new ZDistancePacket(roll, pitch, yaw, targetHeight));
+                        sendPacket(ZDistancePacket.obtain(roll, pitch, yaw, targetHeight));
                     } else {
-                        sendPacket(new CommanderPacket(roll, pitch, yaw, (char) thrustAbsolute, xmode));
+                        sendPacket(CommanderPacket.obtain(roll, pitch, yaw, (char) thrustAbsolute, xmode));
                     }
                     try {
                         Thread.sleep(20);
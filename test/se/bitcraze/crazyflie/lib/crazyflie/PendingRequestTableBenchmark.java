@@ -0,0 +1,184 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyflie;
+
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
+
+/**
+ * Benchmark of {@link PendingRequestTable} with many outstanding requests, e.g. during a TOC download
+ * or a bulk param read.
+ *
+ * Every operation matches the reply of a random outstanding request and sends that request again,
+ * so the number of outstanding requests stays constant. Compares the table with the resend queue
+ * Crazyflie used before: a LinkedBlockingDeque that was scanned for every received packet and
+ * checked with contains() before every send. Run {@link #main(String[])} to print the results.
+ */
+public class PendingRequestTableBenchmark {
+
+    public static final int[] OUTSTANDING_COUNTS = {10, 100, 1000};
+    public static final long DURATION_MS = 1000;
+    public static final int ORDER_LENGTH = 4096;
+
+    // TOC item request of the param TOC (v2, 16 bit ident)
+    private static final byte CMD_TOC_ITEM_V2 = 2;
+    private static final byte TOC_HEADER = new CrtpPacket.Header(0, CrtpPort.PARAMETERS).getByte();
+
+    private final Random mRandom = new Random(42);
+    // keeps the matching from being optimized away
+    private long mSink = 0;
+
+    /**
+     * Pending requests of one benchmark run
+     */
+    private interface Target {
+        void add(CrtpPacket request, long now);
+        CrtpPacket match(CrtpPacket reply);
+    }
+
+    private static class Table implements Target {
+        final PendingRequestTable mTable = new PendingRequestTable();
+
+        public void add(CrtpPacket request, long now) {
+            mTable.add(request, now);
+        }
+
+        public CrtpPacket match(CrtpPacket reply) {
+            return mTable.match(reply);
+        }
+    }
+
+    /**
+     * Crazyflie.sendPacket() and checkReceivedPackets() before the pending request table
+     */
+    private static class ResendQueue implements Target {
+        final LinkedBlockingDeque<CrtpPacket> mResendQueue = new LinkedBlockingDeque<CrtpPacket>();
+
+        public void add(CrtpPacket request, long now) {
+            if (!mResendQueue.contains(request)) {
+                mResendQueue.add(request);
+            }
+        }
+
+        public CrtpPacket match(CrtpPacket reply) {
+            for (CrtpPacket resendQueuePacket : mResendQueue) {
+                if (isPacketMatchingExpectedReply(resendQueuePacket, reply)) {
+                    mResendQueue.remove(resendQueuePacket);
+                    return resendQueuePacket;
+                }
+            }
+            return null;
+        }
+
+        private static boolean isPacketMatchingExpectedReply(CrtpPacket resendQueuePacket, CrtpPacket packet) {
+            byte[] expectedReply = resendQueuePacket.getExpectedReply();
+            for (int i = 0; i < expectedReply.length; i++) {
+                if (expectedReply[i] != packet.getPayload()[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static CrtpPacket createRequest(int ident) {
+        byte[] payload = new byte[] {CMD_TOC_ITEM_V2, (byte) (ident & 0xFF), (byte) ((ident >> 8) & 0xFF)};
+        CrtpPacket request = new CrtpPacket(TOC_HEADER, payload);
+        request.setExpectedReply(payload.clone());
+        return request;
+    }
+
+    private static CrtpPacket createReply(int ident) {
+        // ident, type and "group\0name\0" of the TOC element
+        byte[] payload = new byte[] {CMD_TOC_ITEM_V2, (byte) (ident & 0xFF), (byte) ((ident >> 8) & 0xFF), 0x08,
+                'g', 'r', 'o', 'u', 'p', 0, 'n', 'a', 'm', 'e', 0};
+        return new CrtpPacket(TOC_HEADER, payload);
+    }
+
+    /**
+     * @return matched replies per second
+     */
+    private double run(Target target, int outstanding) {
+        CrtpPacket[] requests = new CrtpPacket[outstanding];
+        CrtpPacket[] replies = new CrtpPacket[outstanding];
+        long now = 0;
+        for (int i = 0; i < outstanding; i++) {
+            requests[i] = createRequest(i);
+            replies[i] = createReply(i);
+            target.add(requests[i], now++);
+        }
+        int[] order = new int[ORDER_LENGTH];
+        for (int i = 0; i < ORDER_LENGTH; i++) {
+            order[i] = mRandom.nextInt(outstanding);
+        }
+
+        long count = 0;
+        long matched = 0;
+        long start = System.nanoTime();
+        long end = start + DURATION_MS * 1000000L;
+        long time;
+        do {
+            for (int i = 0; i < ORDER_LENGTH; i++) {
+                int ident = order[i];
+                if (target.match(replies[ident]) != null) {
+                    matched++;
+                }
+                // the request is sent again, e.g. after a timeout
+                target.add(requests[ident], now++);
+            }
+            count += ORDER_LENGTH;
+            time = System.nanoTime();
+        } while (time < end);
+        if (matched != count) {
+            throw new IllegalStateException("Only " + matched + " of " + count + " replies matched");
+        }
+        mSink += matched;
+        return count / ((time - start) / 1e9);
+    }
+
+    private void print(String name, Target target, int outstanding) {
+        System.out.println(String.format("  %-22s %4d outstanding: %10.3f M replies/s", name, outstanding, run(target, outstanding) / 1e6));
+    }
+
+    public static void main(String[] args) {
+        PendingRequestTableBenchmark benchmark = new PendingRequestTableBenchmark();
+        System.out.println(DURATION_MS + "ms per run");
+        for (int outstanding : OUTSTANDING_COUNTS) {
+            // first run warms up the JIT
+            benchmark.run(new Table(), outstanding);
+            benchmark.run(new ResendQueue(), outstanding);
+            benchmark.print("pending request table", new Table(), outstanding);
+            benchmark.print("resend queue", new ResendQueue(), outstanding);
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.bitcraze.crazyflie.lib.usb.MockUsbInterface;
+
+public class ChannelScannerTest {
+
+    private static final byte[] DEFAULT_ADDRESS = {(byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7};
+    private static final byte[] OTHER_ADDRESS = {(byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0x01};
+
+    private MockUsbInterface mUsb;
+    private Crazyradio mRadio;
+    private ChannelScanner mScanner;
+
+    @Before
+    public void setUp() {
+        mUsb = new MockUsbInterface();
+        mRadio = new Crazyradio(mUsb);
+        mScanner = new ChannelScanner(mRadio);
+    }
+
+    @Test
+    public void cachedHitsAreProbedFirstAndEvictedWhenSilent() {
+        mUsb.setResponder(10, Crazyradio.DR_2MPS, DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        mUsb.setResponder(60, Crazyradio.DR_2MPS, DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        assertEquals(Arrays.asList(new ConnectionData(10, Crazyradio.DR_2MPS), new ConnectionData(60, Crazyradio.DR_2MPS)),
+                mScanner.scan(null, ChannelScanner.ALL));
+        assertEquals(3 * 126, mScanner.getProbeCount());
+
+        // the Crazyflie on channel 10 is switched off: its cached hit is probed once and forgotten
+        mUsb.setResponder(10, Crazyradio.DR_2MPS, DEFAULT_ADDRESS, null);
+        assertEquals(Arrays.asList(new ConnectionData(60, Crazyradio.DR_2MPS)), mScanner.scan(null, 1));
+        assertEquals(2, mScanner.getProbeCount());
+
+        int before = mUsb.getExchangeCount(10, Crazyradio.DR_2MPS, DEFAULT_ADDRESS);
+        assertEquals(Arrays.asList(new ConnectionData(60, Crazyradio.DR_2MPS)), mScanner.scan(null, 1));
+        assertEquals(1, mScanner.getProbeCount());
+        assertEquals(before, mUsb.getExchangeCount(10, Crazyradio.DR_2MPS, DEFAULT_ADDRESS));
+    }
+
+    @Test
+    public void scanStopsAfterMaxResults() {
+        mUsb.setResponder(5, Crazyradio.DR_250KPS, DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        mUsb.setResponder(100, Crazyradio.DR_2MPS, DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        long transfers = mUsb.getBulkTransferCount();
+
+        List<ConnectionData> result = mScanner.scan(null, 1);
+
+        assertEquals(Arrays.asList(new ConnectionData(5, Crazyradio.DR_250KPS)), result);
+        // channels 0-5 of the first data rate
+        assertEquals(6, mScanner.getProbeCount());
+        assertEquals(transfers + 6, mUsb.getBulkTransferCount());
+    }
+
+    @Test
+    public void onlyCrazyfliesWithTheScannedAddressAreFound() {
+        mUsb.setResponder(20, Crazyradio.DR_2MPS, DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        mUsb.setResponder(30, Crazyradio.DR_2MPS, OTHER_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        mScanner.setAddress(OTHER_ADDRESS);
+
+        assertEquals(Arrays.asList(new ConnectionData(30, Crazyradio.DR_2MPS)), mScanner.scan(null, ChannelScanner.ALL));
+    }
+
+    @Test
+    public void listenerCanCancelTheScan() {
+        mUsb.setResponder(3, Crazyradio.DR_2MPS, DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        mUsb.setResponder(50, Crazyradio.DR_2MPS, DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        mScanner.setDataRates(Crazyradio.DR_2MPS);
+        final List<ConnectionData> found = new ArrayList<ConnectionData>();
+        final List<List<ConnectionData>> finished = new ArrayList<List<ConnectionData>>();
+
+        List<ConnectionData> result = mScanner.scan(new ScanListener() {
+            public void channelFound(ConnectionData connectionData) {
+                found.add(connectionData);
+                // connect right away
+                mScanner.cancel();
+            }
+
+            public void scanFinished(List<ConnectionData> result) {
+                finished.add(result);
+            }
+        }, ChannelScanner.ALL);
+
+        List<ConnectionData> expected = Arrays.asList(new ConnectionData(3, Crazyradio.DR_2MPS));
+        assertEquals(expected, found);
+        assertEquals(expected, result);
+        assertEquals(1, finished.size());
+        assertEquals(expected, finished.get(0));
+        assertEquals(4, mScanner.getProbeCount());
+
+        // the next scan is not cancelled
+        assertEquals(2, mScanner.scan(null, ChannelScanner.ALL).size());
+    }
+
+    @Test
+    public void radioSettingsAreRestoredAfterScan() {
+        mRadio.setChannel(42);
+        mRadio.setDatarate(Crazyradio.DR_1MPS);
+        mUsb.setResponder(7, Crazyradio.DR_250KPS, OTHER_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        mScanner.setAddress(OTHER_ADDRESS);
+        mScanner.setProbeRetries(0);
+
+        assertEquals(1, mScanner.scan(null, ChannelScanner.ALL).size());
+
+        assertRadioSettings(42, Crazyradio.DR_1MPS, 3, DEFAULT_ADDRESS);
+    }
+
+    @Test
+    public void radioSettingsAreRestoredWhenScanFails() {
+        mRadio.setChannel(42);
+        mRadio.setDatarate(Crazyradio.DR_1MPS);
+        mUsb.setResponder(7, Crazyradio.DR_250KPS, OTHER_ADDRESS, new MockUsbInterface.Responder() {
+            public int respond(byte[] dataOut, byte[] ackPayload) {
+                throw new IllegalStateException("USB transfer failed");
+            }
+        });
+        mScanner.setAddress(OTHER_ADDRESS);
+        mScanner.setProbeRetries(0);
+
+        try {
+            mScanner.scan(null, ChannelScanner.ALL);
+            fail("Scan should fail");
+        } catch (IllegalStateException expected) {
+            // thrown by the responder
+        }
+
+        assertRadioSettings(42, Crazyradio.DR_1MPS, 3, DEFAULT_ADDRESS);
+    }
+
+    private void assertRadioSettings(int channel, int datarate, int arc, byte[] address) {
+        assertEquals(channel, mUsb.getChannel());
+        assertEquals(datarate, mUsb.getDatarate());
+        assertEquals(arc, mUsb.getArc());
+        assertArrayEquals(address, mUsb.getAddress());
+        // and the radio knows about it
+        assertEquals(channel, mRadio.getChannel());
+        assertEquals(datarate, mRadio.getDatarate());
+        assertEquals(arc, mRadio.getArc());
+        assertTrue(Arrays.equals(address, mRadio.getAddress()));
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crazyradio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
+import se.bitcraze.crazyflie.lib.usb.MockUsbInterface;
+
+public class MultiplexedRadioDriverTest {
+
+    private static final long TIMEOUT_MS = 10000;
+    private static final byte[] OTHER_ADDRESS = {(byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0xE7, (byte) 0x01};
+
+    private MockUsbInterface mUsb;
+    private MultiplexedRadioDriver mMultiplexer;
+
+    @Before
+    public void setUp() {
+        mUsb = new MockUsbInterface();
+        mMultiplexer = new MultiplexedRadioDriver(mUsb);
+        mMultiplexer.setIdlePollInterval(0);
+    }
+
+    @After
+    public void tearDown() {
+        for (VirtualRadioDriver copter : mMultiplexer.getCopters()) {
+            copter.disconnect();
+        }
+    }
+
+    @Test
+    public void exchangesAreSharedByWeight() throws InterruptedException {
+        int[] channels = {10, 20, 30};
+        int[] weights = {1, 2, 3};
+        for (int i = 0; i < channels.length; i++) {
+            mUsb.setResponder(channels[i], Crazyradio.DR_2MPS, MultiplexedRadioDriver.DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+            mMultiplexer.addCopter(new ConnectionData(channels[i], Crazyradio.DR_2MPS), MultiplexedRadioDriver.DEFAULT_ADDRESS, weights[i]).connect();
+        }
+
+        // only look at exchanges after all copters are attached
+        mUsb.setRecordExchanges(true);
+        int rounds = 1000;
+        int exchanges = rounds * (1 + 2 + 3);
+        awaitBulkTransfers(mUsb.getBulkTransferCount() + exchanges);
+        List<String> recorded = mUsb.getExchanges().subList(0, exchanges);
+
+        for (int i = 0; i < channels.length; i++) {
+            String key = MockUsbInterface.toKey(channels[i], Crazyradio.DR_2MPS, MultiplexedRadioDriver.DEFAULT_ADDRESS);
+            // smooth weighted round robin serves the exact share in every round of 6 exchanges
+            assertEquals("Exchanges on channel " + channels[i], rounds * weights[i], Collections.frequency(recorded, key), 1);
+        }
+
+        // smooth: the heaviest copter never waits for more than two other exchanges
+        String heaviest = MockUsbInterface.toKey(30, Crazyradio.DR_2MPS, MultiplexedRadioDriver.DEFAULT_ADDRESS);
+        for (int i = 2; i < recorded.size(); i++) {
+            assertTrue("Channel 30 starved at exchange " + i, recorded.subList(i - 2, i + 1).contains(heaviest));
+        }
+    }
+
+    @Test
+    public void unackedPacketsAreSentAgain() throws InterruptedException {
+        final List<Integer> received = new ArrayList<Integer>();
+        // drops every other packet with data, polls are always acked
+        mUsb.setResponder(80, Crazyradio.DR_2MPS, MultiplexedRadioDriver.DEFAULT_ADDRESS, new MockUsbInterface.Responder() {
+            private boolean mDrop = true;
+
+            public int respond(byte[] dataOut, byte[] ackPayload) {
+                if (dataOut.length < 2) {
+                    return 0;
+                }
+                mDrop = !mDrop;
+                if (mDrop) {
+                    return -1;
+                }
+                synchronized (received) {
+                    received.add(dataOut[1] & 0xFF);
+                }
+                return 0;
+            }
+        });
+        mUsb.setResponder(90, Crazyradio.DR_2MPS, MultiplexedRadioDriver.DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        VirtualRadioDriver lossy = mMultiplexer.addCopter(new ConnectionData(80, Crazyradio.DR_2MPS));
+        VirtualRadioDriver other = mMultiplexer.addCopter(new ConnectionData(90, Crazyradio.DR_2MPS));
+        lossy.connect();
+        other.connect();
+
+        int packets = 100;
+        for (int i = 0; i < packets; i++) {
+            lossy.sendPacket(new CrtpPacket(new CrtpPacket.Header(1, CrtpPort.PARAMETERS).getByte(), new byte[] {(byte) i}));
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (lossy.getSentCount() < packets) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Only " + lossy.getSentCount() + " of " + packets + " packets acked");
+            }
+            Thread.sleep(1);
+        }
+
+        synchronized (received) {
+            assertEquals(packets, received.size());
+            for (int i = 0; i < packets; i++) {
+                assertEquals("Packet " + i, i, (int) received.get(i));
+            }
+        }
+        assertTrue(lossy.isConnected());
+        assertTrue(lossy.getAckCount() < lossy.getExchangeCount());
+        // the other copter kept its turns while the packets were resent
+        assertTrue(other.getExchangeCount() > 0);
+    }
+
+    @Test
+    public void unchangedSettingsAreNotSent() throws InterruptedException {
+        // same channel and data rate, only the address differs
+        mUsb.setResponder(80, Crazyradio.DR_2MPS, MultiplexedRadioDriver.DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        mUsb.setResponder(80, Crazyradio.DR_2MPS, OTHER_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        int channelTransfers = mUsb.getControlTransferCount(MockUsbInterface.SET_RADIO_CHANNEL);
+        int datarateTransfers = mUsb.getControlTransferCount(MockUsbInterface.SET_DATA_RATE);
+        int addressTransfers = mUsb.getControlTransferCount(MockUsbInterface.SET_RADIO_ADDRESS);
+
+        VirtualRadioDriver first = mMultiplexer.addCopter(new ConnectionData(80, Crazyradio.DR_2MPS));
+        VirtualRadioDriver second = mMultiplexer.addCopter(new ConnectionData(80, Crazyradio.DR_2MPS), OTHER_ADDRESS, 1);
+        first.connect();
+        second.connect();
+        awaitBulkTransfers(mUsb.getBulkTransferCount() + 1000);
+        first.disconnect();
+        second.disconnect();
+
+        long exchanges = first.getExchangeCount() + second.getExchangeCount();
+        // set by the Crazyradio constructor and once by the radio thread
+        assertEquals(channelTransfers + 2, mUsb.getControlTransferCount(MockUsbInterface.SET_RADIO_CHANNEL));
+        assertEquals(datarateTransfers + 2, mUsb.getControlTransferCount(MockUsbInterface.SET_DATA_RATE));
+        // the address changes on every exchange, apart from the exchanges before the second copter was attached
+        int addressDelta = mUsb.getControlTransferCount(MockUsbInterface.SET_RADIO_ADDRESS) - addressTransfers - 1;
+        assertTrue("Address set " + addressDelta + " times for " + exchanges + " exchanges", addressDelta <= exchanges);
+        assertTrue("Address set " + addressDelta + " times for " + exchanges + " exchanges", addressDelta >= second.getExchangeCount());
+        assertEquals(3 * exchanges, mMultiplexer.getConfigTransferCount() + mMultiplexer.getSkippedConfigCount());
+        assertEquals(addressDelta + 2, mMultiplexer.getConfigTransferCount());
+    }
+
+    @Test
+    public void singleCopterIsConfiguredOnce() throws InterruptedException {
+        mUsb.setResponder(80, Crazyradio.DR_2MPS, MultiplexedRadioDriver.DEFAULT_ADDRESS, MockUsbInterface.EMPTY_ACK);
+        VirtualRadioDriver copter = mMultiplexer.addCopter(new ConnectionData(80, Crazyradio.DR_2MPS));
+        copter.connect();
+        awaitBulkTransfers(mUsb.getBulkTransferCount() + 500);
+        copter.disconnect();
+
+        assertEquals(3, mMultiplexer.getConfigTransferCount());
+        assertEquals(3 * copter.getExchangeCount() - 3, mMultiplexer.getSkippedConfigCount());
+    }
+
+    private void awaitBulkTransfers(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mUsb.getBulkTransferCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Only " + mUsb.getBulkTransferCount() + " of " + count + " bulk transfers");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+import java.util.Random;
+
+/**
+ * Decode throughput of CRTP headers.
+ *
+ * Compares the interned headers of {@link CrtpPacket.Header#valueOf(byte)} with a new header per packet
+ * and with the decoding CrtpPacket used before: a new header whose port is found by a linear scan
+ * over {@link CrtpPort#values()}. Run {@link #main(String[])} to print the results.
+ */
+public class CrtpHeaderBenchmark {
+
+    public static final int PACKET_COUNT = 4096;
+    public static final long DURATION_MS = 1000;
+    public static final int RUNS = 3;
+
+    // log data, setpoints, param and console traffic, link control and null packets of a typical link
+    private static final byte[] HEADERS = {0x52, 0x52, 0x52, 0x30, 0x30, 0x70, 0x21, 0x22, 0x00, (byte) 0xF3, (byte) 0xFF, 0x51};
+
+    private final byte[] mHeaders = new byte[PACKET_COUNT];
+    // keeps the decoding from being optimized away
+    private long mSink = 0;
+
+    public CrtpHeaderBenchmark() {
+        Random random = new Random(42);
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            mHeaders[i] = HEADERS[random.nextInt(HEADERS.length)];
+        }
+    }
+
+    /**
+     * One way to decode a header byte
+     */
+    private interface Decoder {
+        /**
+         * @return port and channel of the header added up
+         */
+        int decode(byte header);
+    }
+
+    private static class InternedDecoder implements Decoder {
+        public int decode(byte header) {
+            CrtpPacket.Header decoded = CrtpPacket.Header.valueOf(header);
+            return decoded.getPort().ordinal() + decoded.getChannel();
+        }
+    }
+
+    private static class NewHeaderDecoder implements Decoder {
+        public int decode(byte header) {
+            CrtpPacket.Header decoded = new CrtpPacket.Header(header);
+            return decoded.getPort().ordinal() + decoded.getChannel();
+        }
+    }
+
+    /**
+     * CrtpPacket.Header(byte) and CrtpPort.getByNumber before the lookup tables
+     */
+    private static class LinearScanDecoder implements Decoder {
+        public int decode(byte header) {
+            CrtpPacket.Header decoded;
+            if (header != -1) {
+                decoded = new CrtpPacket.Header(header & 0x03, getByNumber((byte) (header >> 4)));
+            } else {
+                decoded = new CrtpPacket.Header(0, CrtpPort.UNKNOWN);
+            }
+            CrtpPort port = decoded.getPort();
+            return ((port != null) ? port.ordinal() : -1) + decoded.getChannel();
+        }
+
+        private static CrtpPort getByNumber(byte number) {
+            for (CrtpPort port : CrtpPort.values()) {
+                if (port.getNumber() == number) {
+                    return port;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return decoded headers per second
+     */
+    private double run(Decoder decoder) {
+        long count = 0;
+        long sum = 0;
+        long start = System.nanoTime();
+        long end = start + DURATION_MS * 1000000L;
+        long now;
+        do {
+            for (int i = 0; i < PACKET_COUNT; i++) {
+                sum += decoder.decode(mHeaders[i]);
+            }
+            count += PACKET_COUNT;
+            now = System.nanoTime();
+        } while (now < end);
+        mSink += sum;
+        return count / ((now - start) / 1e9);
+    }
+
+    private void print(String name, Decoder decoder) {
+        System.out.println(String.format("  %-22s %8.2f M headers/s", name, run(decoder) / 1e6));
+    }
+
+    public static void main(String[] args) {
+        CrtpHeaderBenchmark benchmark = new CrtpHeaderBenchmark();
+        Decoder[] decoders = {new InternedDecoder(), new NewHeaderDecoder(), new LinearScanDecoder()};
+        System.out.println(PACKET_COUNT + " header bytes, " + DURATION_MS + "ms per run");
+        // first run warms up the JIT
+        for (Decoder decoder : decoders) {
+            benchmark.run(decoder);
+        }
+        for (int r = 0; r < RUNS; r++) {
+            benchmark.print("interned headers", decoders[0]);
+            benchmark.print("new header", decoders[1]);
+            benchmark.print("linear port scan", decoders[2]);
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import se.bitcraze.crazyflie.lib.crazyflie.ConnectionAdapter;
+import se.bitcraze.crazyflie.lib.crazyflie.Crazyflie;
+import se.bitcraze.crazyflie.lib.log.LogConfig;
+import se.bitcraze.crazyflie.lib.log.LogRecord;
+import se.bitcraze.crazyflie.lib.log.LogRecordListener;
+import se.bitcraze.crazyflie.lib.log.Logg;
+import se.bitcraze.crazyflie.lib.sim.SimulatedCrazyflieDriver;
+import se.bitcraze.crazyflie.lib.toc.TocElement;
+
+/**
+ * Checks that sending setpoints and receiving log data through a {@link SimulatedCrazyflieDriver}
+ * does not allocate packets once the {@link CrtpPacketPool} has warmed up.
+ */
+public class CrtpPacketPoolTest {
+
+    private static final long TIMEOUT_MS = 30000;
+    private static final int LOG_BLOCKS = 4;
+    private static final int LOG_PERIOD_MS = 10;
+    private static final long SETPOINT_PERIOD_MS = 10;
+    private static final long WARM_UP_MS = 500;
+    private static final long MEASURE_MS = 2000;
+
+    private File mCacheDir;
+    private SimulatedCrazyflieDriver mDriver;
+    private Crazyflie mCrazyflie;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheDir = File.createTempFile("cflib-pool", "");
+        mCacheDir.delete();
+        mCacheDir.mkdirs();
+        mDriver = new SimulatedCrazyflieDriver(SimulatedCrazyflieDriver.DEFAULT_TOC_SIZE, SimulatedCrazyflieDriver.DEFAULT_TOC_SIZE, 42);
+        final CountDownLatch setupFinished = new CountDownLatch(1);
+        mDriver.addConnectionListener(new ConnectionAdapter() {
+            @Override
+            public void setupFinished() {
+                setupFinished.countDown();
+            }
+        });
+        mCrazyflie = new Crazyflie(mDriver, mCacheDir);
+        mCrazyflie.setParamValueCache(null);
+        mCrazyflie.connect();
+        assertTrue("Connection setup timed out", setupFinished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        mCrazyflie.disconnect();
+        delete(mCacheDir);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocatePackets() throws Exception {
+        final AtomicInteger records = new AtomicInteger();
+        Logg logg = mCrazyflie.getLogg();
+        logg.addLogRecordListener(new LogRecordListener() {
+            public void logRecordReceived(LogRecord record) {
+                records.incrementAndGet();
+            }
+        });
+        startLogConfigs(logg);
+
+        SetpointSender setpoints = new SetpointSender();
+        Thread setpointThread = new Thread(setpoints, "setpoints");
+        setpointThread.start();
+        try {
+            Thread.sleep(WARM_UP_MS);
+            long allocations = CrtpPacketPool.getAllocationCount();
+            int recordsBefore = records.get();
+            long sentBefore = mDriver.getSentCount();
+
+            Thread.sleep(MEASURE_MS);
+
+            assertTrue("No log data received", records.get() - recordsBefore > MEASURE_MS / LOG_PERIOD_MS);
+            assertTrue("No setpoints sent", mDriver.getSentCount() - sentBefore > MEASURE_MS / SETPOINT_PERIOD_MS / 2);
+            assertEquals("Packets allocated in steady state", allocations, CrtpPacketPool.getAllocationCount());
+        } finally {
+            setpoints.mRunning = false;
+            setpointThread.join();
+        }
+    }
+
+    private void startLogConfigs(Logg logg) throws InterruptedException {
+        List<TocElement> elements = logg.getToc().getElements();
+        int next = 0;
+        for (int i = 0; i < LOG_BLOCKS; i++) {
+            LogConfig logConfig = new LogConfig("pool" + i, LOG_PERIOD_MS);
+            int size = 0;
+            while (next < elements.size() && size + elements.get(next).getCtype().getSize() <= 26) {
+                TocElement element = elements.get(next++);
+                logConfig.addVariable(element.getCompleteName(), element.getCtype());
+                size += element.getCtype().getSize();
+            }
+            logg.addConfig(logConfig);
+            // starts the log config when it was created
+            logg.create(logConfig);
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        for (LogConfig logConfig : logg.getLogConfigs()) {
+            while (!logConfig.isStarted()) {
+                assertTrue("Log config " + logConfig.getName() + " not started", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Sends pooled setpoints like the periodic setpoint thread of the app
+     */
+    private class SetpointSender implements Runnable {
+        volatile boolean mRunning = true;
+
+        public void run() {
+            float yaw = 0;
+            while (mRunning) {
+                mCrazyflie.sendPacket(CommanderPacket.obtain(0, 0, yaw++, (char) 0, false));
+                try {
+                    Thread.sleep(SETPOINT_PERIOD_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,242 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.crtp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Driver that replays the inbound packets of a capture file recorded with {@link PacketCapture}.
+ *
+ * Sent packets are discarded. To keep replies behind their requests, an inbound packet is only delivered
+ * after at least as many packets have been sent as were sent before it in the recorded session.
+ * If the client sends fewer packets (e.g. because the TOC was cached this time), the packet is delivered
+ * anyway once no packet has been sent for the stall timeout.
+ *
+ * In {@link Mode#FAST} packets are delivered as fast as the client takes them, which is useful for benchmarks.
+ * In {@link Mode#REAL_TIME} packets are not delivered before their recorded time relative to {@link #connect()}.
+ */
+public class ReplayDriver extends CrtpDriver {
+
+    final Logger mLogger = LoggerFactory.getLogger(this.getClass().getSimpleName());
+
+    public enum Mode {
+        FAST,
+        REAL_TIME
+    }
+
+    public static final long DEFAULT_STALL_TIMEOUT_MS = 100;
+
+    private final byte[][] mInbound;
+    // recorded time and number of outbound packets before each inbound packet
+    private final long[] mInboundTimes;
+    private final int[] mOutboundBefore;
+
+    private final Mode mMode;
+    private volatile long mStallTimeoutNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STALL_TIMEOUT_MS);
+
+    private final Object mLock = new Object();
+    private boolean mConnected = false;
+    private int mNextInbound = 0;
+    private int mSentCount = 0;
+    private long mLastSendTime;
+    private long mStartTime;
+
+    /**
+     * @param captureFile capture file
+     * @param mode replay speed
+     * @throws IOException if the capture file can not be read
+     */
+    public ReplayDriver(File captureFile, Mode mode) throws IOException {
+        this(PacketCapture.read(captureFile), mode);
+    }
+
+    /**
+     * @param records recorded packets
+     * @param mode replay speed
+     */
+    public ReplayDriver(List<PacketCapture.Record> records, Mode mode) {
+        List<PacketCapture.Record> inbound = new ArrayList<PacketCapture.Record>();
+        List<Integer> outboundBefore = new ArrayList<Integer>();
+        int outbound = 0;
+        for (PacketCapture.Record record : records) {
+            if (record.isOutbound()) {
+                outbound++;
+            } else {
+                inbound.add(record);
+                outboundBefore.add(outbound);
+            }
+        }
+        this.mInbound = new byte[inbound.size()][];
+        this.mInboundTimes = new long[inbound.size()];
+        this.mOutboundBefore = new int[inbound.size()];
+        long firstTime = records.isEmpty() ? 0 : records.get(0).getTimestamp();
+        for (int i = 0; i < mInbound.length; i++) {
+            mInbound[i] = inbound.get(i).getData();
+            mInboundTimes[i] = inbound.get(i).getTimestamp() - firstTime;
+            mOutboundBefore[i] = outboundBefore.get(i);
+        }
+        this.mMode = mode;
+    }
+
+    @Override
+    public void connect() {
+        notifyConnectionRequested();
+        synchronized (mLock) {
+            mNextInbound = 0;
+            mSentCount = 0;
+            mStartTime = System.nanoTime();
+            mLastSendTime = mStartTime;
+            mConnected = true;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (mLock) {
+            mConnected = false;
+            mLock.notifyAll();
+        }
+        notifyDisconnected();
+    }
+
+    @Override
+    public boolean isConnected() {
+        synchronized (mLock) {
+            return mConnected;
+        }
+    }
+
+    @Override
+    public void sendPacket(CrtpPacket packet) {
+        synchronized (mLock) {
+            if (mConnected) {
+                mSentCount++;
+                mLastSendTime = System.nanoTime();
+                mLock.notifyAll();
+            }
+        }
+        CrtpPacketPool.release(packet);
+    }
+
+    /*
+     * @param time time to wait in seconds, like RadioDriver
+     */
+    @Override
+    public CrtpPacket receivePacket(int time) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(time);
+        synchronized (mLock) {
+            try {
+                while (true) {
+                    if (!mConnected || mNextInbound >= mInbound.length) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return null;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    long due = dueTime(mNextInbound);
+                    if (due <= now) {
+                        byte[] data = mInbound[mNextInbound++];
+                        return CrtpPacketPool.acquire(data, 0, data.length);
+                    }
+                    long wait = Math.min(due, deadline) - now;
+                    if (wait <= 0) {
+                        return null;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(mLock, wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Earliest time an inbound packet can be delivered. Must be called with the lock held.
+     */
+    private long dueTime(int index) {
+        long due = 0;
+        if (mSentCount < mOutboundBefore[index]) {
+            due = mLastSendTime + mStallTimeoutNs;
+        }
+        if (mMode == Mode.REAL_TIME) {
+            due = Math.max(due, mStartTime + mInboundTimes[index]);
+        }
+        return due;
+    }
+
+    /**
+     * Set how long an inbound packet waits for its requests before it is delivered anyway
+     *
+     * @param timeoutMs stall timeout in milliseconds
+     */
+    public void setStallTimeout(long timeoutMs) {
+        if (timeoutMs < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative");
+        }
+        this.mStallTimeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    /**
+     * @return number of inbound packets that were delivered
+     */
+    public int getDeliveredCount() {
+        synchronized (mLock) {
+            return mNextInbound;
+        }
+    }
+
+    /**
+     * @return number of inbound packets in the capture
+     */
+    public int getInboundCount() {
+        return mInbound.length;
+    }
+
+    /**
+     * @return true if all inbound packets were delivered
+     */
+    public boolean isFinished() {
+        synchronized (mLock) {
+            return mNextInbound >= mInbound.length;
+        }
+    }
+
+}
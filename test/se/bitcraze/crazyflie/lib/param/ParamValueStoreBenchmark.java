@@ -0,0 +1,217 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+
+package se.bitcraze.crazyflie.lib.param;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.bitcraze.crazyflie.lib.toc.TocElement;
+import se.bitcraze.crazyflie.lib.toc.VariableType;
+
+/**
+ * Contention benchmark of {@link ParamValueStore}: one thread writes values as fast as it can
+ * while several threads read them.
+ *
+ * Compares lock-free reads by ident, reads by complete name, snapshots and the nested map that
+ * Param used before (made thread safe with a lock). Run {@link #main(String[])} to print the results.
+ */
+public class ParamValueStoreBenchmark {
+
+    public static final int PARAM_COUNT = 255;
+    public static final long DURATION_MS = 1000;
+    public static final int[] READER_COUNTS = {1, 2, 4};
+
+    private static final VariableType[] TYPES = {VariableType.UINT8_T, VariableType.INT16_T, VariableType.INT32_T,
+            VariableType.FLOAT, VariableType.UINT32_T};
+
+    private final List<TocElement> mElements = new ArrayList<TocElement>();
+    private final String[] mNames = new String[PARAM_COUNT];
+
+    public ParamValueStoreBenchmark() {
+        for (int i = 0; i < PARAM_COUNT; i++) {
+            TocElement element = new TocElement();
+            element.setIdent(i);
+            element.setGroup("group" + (i % 16));
+            element.setName("param" + i);
+            element.setCtype(TYPES[i % TYPES.length]);
+            element.setAccess(TocElement.RW_ACCESS);
+            mElements.add(element);
+            mNames[i] = element.getCompleteName();
+        }
+    }
+
+    /**
+     * Values of one benchmark run
+     */
+    private interface Target {
+        void write(int ident, int value);
+        long read(int ident);
+    }
+
+    private class StoreByIdent implements Target {
+        final ParamValueStore mStore = new ParamValueStore(mElements);
+
+        public void write(int ident, int value) {
+            mStore.update(ident, value);
+        }
+
+        public long read(int ident) {
+            return mStore.getLong(ident);
+        }
+    }
+
+    private class StoreByName extends StoreByIdent {
+        @Override
+        public long read(int ident) {
+            Number value = mStore.getNumber(mNames[ident]);
+            return (value != null) ? value.longValue() : 0;
+        }
+    }
+
+    private class StoreSnapshot extends StoreByIdent {
+        @Override
+        public long read(int ident) {
+            // e.g. a UI that takes one snapshot per frame and reads a few values from it
+            return mStore.snapshot().getLong(ident);
+        }
+    }
+
+    /**
+     * Layout of Param before the value store: group -> name -> value
+     */
+    private class LockedNestedMap implements Target {
+        final Map<String, Map<String, Number>> mValues = new HashMap<String, Map<String, Number>>();
+
+        public synchronized void write(int ident, int value) {
+            TocElement element = mElements.get(ident);
+            Map<String, Number> group = mValues.get(element.getGroup());
+            if (group == null) {
+                group = new HashMap<String, Number>();
+                mValues.put(element.getGroup(), group);
+            }
+            group.put(element.getName(), value);
+        }
+
+        public synchronized long read(int ident) {
+            TocElement element = mElements.get(ident);
+            Map<String, Number> group = mValues.get(element.getGroup());
+            Number value = (group != null) ? group.get(element.getName()) : null;
+            return (value != null) ? value.longValue() : 0;
+        }
+    }
+
+    /**
+     * @return [reads per second of all readers, writes per second]
+     */
+    private double[] run(final Target target, int readerCount) throws InterruptedException {
+        for (int i = 0; i < PARAM_COUNT; i++) {
+            target.write(i, i);
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        // keeps the reads from being optimized away
+        final AtomicLong sink = new AtomicLong();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread(new Runnable() {
+            public void run() {
+                awaitStart(startLatch);
+                long count = 0;
+                while (running.get()) {
+                    target.write((int) (count % PARAM_COUNT), (int) count);
+                    count++;
+                }
+                writes.set(count);
+            }
+        }, "writer"));
+        for (int r = 0; r < readerCount; r++) {
+            final int offset = r * 17;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    awaitStart(startLatch);
+                    long count = 0;
+                    long sum = 0;
+                    while (running.get()) {
+                        sum += target.read((int) ((count + offset) % PARAM_COUNT));
+                        count++;
+                    }
+                    reads.addAndGet(count);
+                    sink.addAndGet(sum);
+                }
+            }, "reader" + r));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long start = System.nanoTime();
+        startLatch.countDown();
+        Thread.sleep(DURATION_MS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return new double[] {reads.get() / seconds, writes.get() / seconds};
+    }
+
+    private static void awaitStart(CountDownLatch startLatch) {
+        try {
+            startLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void print(String name, Target target, int readerCount) throws InterruptedException {
+        double[] result = run(target, readerCount);
+        System.out.println(String.format("  %-22s %d readers: %8.2f M reads/s  %8.2f M writes/s", name, readerCount,
+                result[0] / 1e6, result[1] / 1e6));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ParamValueStoreBenchmark benchmark = new ParamValueStoreBenchmark();
+        System.out.println("1 writer, " + PARAM_COUNT + " params, " + DURATION_MS + "ms per run");
+        for (int readerCount : READER_COUNTS) {
+            // first run warms up the JIT
+            benchmark.run(benchmark.new StoreByIdent(), readerCount);
+            benchmark.print("store by ident", benchmark.new StoreByIdent(), readerCount);
+            benchmark.print("store by name", benchmark.new StoreByName(), readerCount);
+            benchmark.print("store snapshot", benchmark.new StoreSnapshot(), readerCount);
+            benchmark.print("locked nested map", benchmark.new LockedNestedMap(), readerCount);
+        }
+    }
+
+}
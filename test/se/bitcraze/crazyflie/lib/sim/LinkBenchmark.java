@@ -0,0 +1,368 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+
+package se.bitcraze.crazyflie.lib.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import se.bitcraze.crazyflie.lib.crazyflie.ConnectionAdapter;
+import se.bitcraze.crazyflie.lib.crazyflie.Crazyflie;
+import se.bitcraze.crazyflie.lib.log.LogAdapter;
+import se.bitcraze.crazyflie.lib.log.LogConfig;
+import se.bitcraze.crazyflie.lib.log.Logg;
+import se.bitcraze.crazyflie.lib.param.Param;
+import se.bitcraze.crazyflie.lib.param.ParamBulkReader;
+import se.bitcraze.crazyflie.lib.toc.TocElement;
+
+/**
+ * End-to-end benchmarks of the lib against a {@link SimulatedCrazyflieDriver}:
+ * connection setup with and without TOC cache, param refresh and log throughput.
+ *
+ * Every benchmark runs on a new simulated Crazyflie with the same seed, so the numbers
+ * only depend on the link profile and the lib, not on a real Crazyflie or radio.
+ * Run {@link #main(String[])} to print the results of the default profiles.
+ */
+public class LinkBenchmark {
+
+    public static final int DEFAULT_RUNS = 5;
+    public static final long SEED = 42;
+
+    private static final long TIMEOUT_MS = 30000;
+    private static final int LOG_BLOCKS = 8;
+    private static final int LOG_PERIOD_MS = 10;
+    private static final long LOG_DURATION_MS = 2000;
+
+    /**
+     * Link parameters of a benchmark run
+     */
+    public static class Profile {
+        private final String mName;
+        private final long mLatencyUs;
+        private final int mBandwidth;
+        private final double mLossRate;
+
+        public Profile(String name, long latencyUs, int bandwidth, double lossRate) {
+            this.mName = name;
+            this.mLatencyUs = latencyUs;
+            this.mBandwidth = bandwidth;
+            this.mLossRate = lossRate;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        void apply(SimulatedCrazyflieDriver driver) {
+            driver.setLatency(mLatencyUs);
+            driver.setBandwidth(mBandwidth);
+            driver.setLossRate(mLossRate);
+        }
+
+        @Override
+        public String toString() {
+            return mName + " [latency=" + mLatencyUs + "us, bandwidth=" + mBandwidth + "/s, loss=" + (mLossRate * 100) + "%]";
+        }
+    }
+
+    public static final Profile[] DEFAULT_PROFILES = {
+        new Profile("radio", SimulatedCrazyflieDriver.DEFAULT_LATENCY_US, SimulatedCrazyflieDriver.DEFAULT_BANDWIDTH, 0),
+        new Profile("far", 5000, SimulatedCrazyflieDriver.DEFAULT_BANDWIDTH, 0),
+        new Profile("lossy", SimulatedCrazyflieDriver.DEFAULT_LATENCY_US, SimulatedCrazyflieDriver.DEFAULT_BANDWIDTH, 0.1),
+        new Profile("far+lossy", 5000, SimulatedCrazyflieDriver.DEFAULT_BANDWIDTH, 0.3)
+    };
+
+    /**
+     * Measurements of one benchmark, over all runs
+     */
+    public static class Result {
+        private final String mName;
+        private final String mUnit;
+        private final double[] mValues;
+
+        Result(String name, String unit, double[] values) {
+            this.mName = name;
+            this.mUnit = unit;
+            this.mValues = values.clone();
+            Arrays.sort(this.mValues);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public double getMedian() {
+            return mValues[mValues.length / 2];
+        }
+
+        public double getMin() {
+            return mValues[0];
+        }
+
+        public double getMax() {
+            return mValues[mValues.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-24s median %8.1f %-9s min %8.1f  max %8.1f", mName, getMedian(), mUnit, getMin(), getMax());
+        }
+    }
+
+    private final File mWorkDir;
+    private int mRuns = DEFAULT_RUNS;
+    private int mTocSize = SimulatedCrazyflieDriver.DEFAULT_TOC_SIZE;
+
+    /**
+     * @param workDir directory for the TOC caches, must exist
+     */
+    public LinkBenchmark(File workDir) {
+        this.mWorkDir = workDir;
+    }
+
+    public void setRuns(int runs) {
+        if (runs < 1) {
+            throw new IllegalArgumentException("At least one run is needed");
+        }
+        this.mRuns = runs;
+    }
+
+    /**
+     * @param tocSize number of log variables and of parameters of the simulated Crazyflie (max 255)
+     */
+    public void setTocSize(int tocSize) {
+        this.mTocSize = tocSize;
+    }
+
+    /**
+     * Run all benchmarks with the given link profile
+     *
+     * @param profile link profile
+     * @return one result per benchmark
+     * @throws IOException if a benchmark timed out or failed
+     */
+    public List<Result> run(Profile profile) throws IOException {
+        double[] setupSequential = new double[mRuns];
+        double[] setupConcurrent = new double[mRuns];
+        double[] setupCached = new double[mRuns];
+        double[] paramRefreshSequential = new double[mRuns];
+        double[] paramRefresh = new double[mRuns];
+        double[] logRate = new double[mRuns];
+        for (int i = 0; i < mRuns; i++) {
+            File cacheDir = new File(mWorkDir, "toc-" + profile.getName() + "-" + i);
+            try {
+                setupSequential[i] = measureSetup(profile, new File(cacheDir, "sequential"), false, null);
+                File concurrentDir = new File(cacheDir, "concurrent");
+                setupConcurrent[i] = measureSetup(profile, concurrentDir, true, null);
+                // second connection with the TOCs from the cache of the first one
+                setupCached[i] = measureSetup(profile, concurrentDir, true, null);
+                paramRefreshSequential[i] = measureSetup(profile, concurrentDir, true, new ParamRefresh(1));
+                paramRefresh[i] = measureSetup(profile, concurrentDir, true, new ParamRefresh(ParamBulkReader.DEFAULT_WINDOW_SIZE));
+                logRate[i] = measureSetup(profile, concurrentDir, true, new LogThroughput());
+            } finally {
+                delete(cacheDir);
+            }
+        }
+        List<Result> results = new ArrayList<Result>();
+        results.add(new Result("setup (sequential)", "ms", setupSequential));
+        results.add(new Result("setup (concurrent)", "ms", setupConcurrent));
+        results.add(new Result("setup (cached TOC)", "ms", setupCached));
+        results.add(new Result("param refresh (window 1)", "ms", paramRefreshSequential));
+        results.add(new Result("param refresh (window " + ParamBulkReader.DEFAULT_WINDOW_SIZE + ")", "ms", paramRefresh));
+        results.add(new Result("log data (" + LOG_BLOCKS + "x" + LOG_PERIOD_MS + "ms)", "packets/s", logRate));
+        return results;
+    }
+
+    /**
+     * Connect to a new simulated Crazyflie and wait for the connection setup
+     *
+     * @param task task to measure after the setup, null to measure the setup
+     * @return duration of the setup in ms, or the result of the task
+     */
+    private double measureSetup(Profile profile, File cacheDir, boolean concurrent, Task task) throws IOException {
+        SimulatedCrazyflieDriver driver = new SimulatedCrazyflieDriver(mTocSize, mTocSize, SEED);
+        profile.apply(driver);
+        final CountDownLatch setupFinished = new CountDownLatch(1);
+        driver.addConnectionListener(new ConnectionAdapter() {
+            @Override
+            public void setupFinished() {
+                setupFinished.countDown();
+            }
+        });
+        cacheDir.mkdirs();
+        Crazyflie crazyflie = new Crazyflie(driver, cacheDir);
+        crazyflie.setConcurrentSetup(concurrent);
+        // no background param read during the measurements
+        crazyflie.setParamValueCache(null);
+        try {
+            long start = System.nanoTime();
+            crazyflie.connect();
+            await(setupFinished, "connection setup");
+            long setupTime = System.nanoTime() - start;
+            if (task == null) {
+                return setupTime / 1e6;
+            }
+            return task.run(crazyflie);
+        } finally {
+            crazyflie.disconnect();
+        }
+    }
+
+    private interface Task {
+        double run(Crazyflie crazyflie) throws IOException;
+    }
+
+    /**
+     * Read all parameters, result in ms
+     */
+    private static class ParamRefresh implements Task {
+        private final int mWindowSize;
+
+        ParamRefresh(int windowSize) {
+            this.mWindowSize = windowSize;
+        }
+
+        public double run(Crazyflie crazyflie) throws IOException {
+            Param param = crazyflie.getParam();
+            param.setReadWindowSize(mWindowSize);
+            long start = System.nanoTime();
+            try {
+                param.readAllParams().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during param refresh");
+            } catch (ExecutionException e) {
+                throw new IOException("Param refresh failed: " + e.getMessage());
+            } catch (TimeoutException e) {
+                throw new IOException("Timeout during param refresh");
+            }
+            return (System.nanoTime() - start) / 1e6;
+        }
+    }
+
+    /**
+     * Log as many variables as fit into {@link #LOG_BLOCKS} blocks, result in log packets per second
+     */
+    private static class LogThroughput implements Task {
+        public double run(Crazyflie crazyflie) throws IOException {
+            Logg logg = crazyflie.getLogg();
+            final AtomicInteger received = new AtomicInteger();
+            final CountDownLatch allStarted = new CountDownLatch(LOG_BLOCKS);
+            logg.addLogListener(new LogAdapter() {
+                @Override
+                public void logConfigStarted(LogConfig logConfig) {
+                    if (logConfig.isStarted()) {
+                        allStarted.countDown();
+                    }
+                }
+
+                @Override
+                public void logDataReceived(LogConfig logConfig, Map<String, Number> data, int timestamp) {
+                    received.incrementAndGet();
+                }
+            });
+            List<TocElement> elements = logg.getToc().getElements();
+            int next = 0;
+            for (int i = 0; i < LOG_BLOCKS; i++) {
+                LogConfig logConfig = new LogConfig("bench" + i, LOG_PERIOD_MS);
+                int size = 0;
+                while (next < elements.size() && size + elements.get(next).getCtype().getSize() <= 26) {
+                    TocElement element = elements.get(next++);
+                    logConfig.addVariable(element.getCompleteName(), element.getCtype());
+                    size += element.getCtype().getSize();
+                }
+                logg.addConfig(logConfig);
+                // starts the log config when it was created
+                logg.create(logConfig);
+            }
+            await(allStarted, "log start");
+            int before = received.get();
+            long start = System.nanoTime();
+            try {
+                Thread.sleep(LOG_DURATION_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            return (received.get() - before) * 1e9 / (System.nanoTime() - start);
+        }
+    }
+
+    private static void await(CountDownLatch latch, String what) throws IOException {
+        try {
+            if (!latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timeout during " + what);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during " + what);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Run the benchmarks for all default profiles and print the results
+     *
+     * @param args optional number of runs per benchmark
+     */
+    public static void main(String[] args) throws IOException {
+        File workDir = new File(System.getProperty("java.io.tmpdir"), "cflib-benchmark");
+        workDir.mkdirs();
+        LinkBenchmark benchmark = new LinkBenchmark(workDir);
+        if (args.length > 0) {
+            benchmark.setRuns(Integer.parseInt(args[0]));
+        }
+        for (Profile profile : DEFAULT_PROFILES) {
+            System.out.println(profile);
+            for (Result result : benchmark.run(profile)) {
+                System.out.println("  " + result);
+            }
+        }
+        delete(workDir);
+    }
+
+}
@@ -0,0 +1,532 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+
+package se.bitcraze.crazyflie.lib.sim;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.bitcraze.crazyflie.lib.crazyradio.RadioDriver;
+import se.bitcraze.crazyflie.lib.crtp.CrtpDriver;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacketPool;
+import se.bitcraze.crazyflie.lib.crtp.OutgoingPacketScheduler;
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer;
+import se.bitcraze.crazyflie.lib.crtp.SpscRingBuffer.OverflowPolicy;
+
+/**
+ * Driver that talks to a Crazyflie simulated in the same process, e.g. to benchmark
+ * the connection setup, param and log handling without a Crazyflie and Crazyradio.
+ *
+ * The link is modelled like the radio link: every exchange sends at most one packet
+ * to the Crazyflie and receives at most one packet in its ack. An exchange is lost with the
+ * configured loss rate and then retried up to the configured number of retries, like the
+ * auto retransmit of the Crazyradio. After that the sent packet is dropped, the packet in the
+ * ack stays queued in the Crazyflie. The bandwidth limits the number of exchanges per second
+ * and the latency delays every packet in both directions.
+ *
+ * The simulation is deterministic for a given seed, apart from thread scheduling.
+ */
+public class SimulatedCrazyflieDriver extends CrtpDriver {
+
+    final Logger mLogger = LoggerFactory.getLogger(this.getClass().getSimpleName());
+
+    public static final int DEFAULT_TOC_SIZE = 200;
+    public static final long DEFAULT_LATENCY_US = 500;
+    // exchanges per second, roughly what a Crazyradio achieves at 2Mbit/s
+    public static final int DEFAULT_BANDWIDTH = 1000;
+    public static final int DEFAULT_RETRIES = 3;
+
+    // CRTP TX queue size of the firmware
+    /* package private */ static final int TX_QUEUE_SIZE = 120;
+
+    private static final String BOOT_MESSAGE = "SYS: Crazyflie (simulated) is up and running!\n";
+
+    private final SimulatedFirmware mFirmware;
+    private final long mSeed;
+
+    private volatile long mLatencyNs = TimeUnit.MICROSECONDS.toNanos(DEFAULT_LATENCY_US);
+    private volatile double mLossRate = 0;
+    private volatile int mBandwidth = DEFAULT_BANDWIDTH;
+    private volatile int mRetries = DEFAULT_RETRIES;
+
+    private final OutgoingPacketScheduler mOutQueue;
+    private final SpscRingBuffer<CrtpPacket> mInQueue;
+    // text printed by the application, passed to the simulation thread
+    private final SpscRingBuffer<String> mConsoleQueue;
+
+    private volatile boolean mConnected = false;
+    private Thread mSimulationThread;
+
+    private volatile long mExchangeCount = 0;
+    private volatile long mRetryCount = 0;
+    private volatile long mSentCount = 0;
+    private volatile long mLostCount = 0;
+    private volatile long mReceivedCount = 0;
+    private volatile long mTxDropCount = 0;
+
+    /**
+     * Simulated Crazyflie with log and param TOCs of {@link #DEFAULT_TOC_SIZE} entries
+     */
+    public SimulatedCrazyflieDriver() {
+        this(DEFAULT_TOC_SIZE, DEFAULT_TOC_SIZE, 0);
+    }
+
+    /**
+     * @param logTocSize number of log variables (max 255)
+     * @param paramTocSize number of parameters (max 255)
+     * @param seed seed for the TOCs, param values and packet loss
+     */
+    public SimulatedCrazyflieDriver(int logTocSize, int paramTocSize, long seed) {
+        this.mFirmware = new SimulatedFirmware(logTocSize, paramTocSize, seed);
+        this.mSeed = seed;
+        this.mOutQueue = new OutgoingPacketScheduler(RadioDriver.DEFAULT_OUT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+        this.mInQueue = new SpscRingBuffer<CrtpPacket>(RadioDriver.DEFAULT_IN_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+        this.mConsoleQueue = new SpscRingBuffer<String>(16, OverflowPolicy.DROP_OLDEST);
+    }
+
+    @Override
+    public synchronized void connect() {
+        if (mConnected) {
+            mLogger.error("Simulated Crazyflie already connected");
+            return;
+        }
+        notifyConnectionRequested();
+        mExchangeCount = 0;
+        mRetryCount = 0;
+        mSentCount = 0;
+        mLostCount = 0;
+        mReceivedCount = 0;
+        mTxDropCount = 0;
+        mConnected = true;
+        mSimulationThread = new Thread(new SimulationThread(), "SimulatedCrazyflieThread");
+        mSimulationThread.start();
+    }
+
+    @Override
+    public void disconnect() {
+        mLogger.debug("disconnect()");
+        Thread thread;
+        synchronized (this) {
+            mConnected = false;
+            thread = mSimulationThread;
+            mSimulationThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                mLogger.error("Interrupted during disconnect: " + e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+        }
+        mOutQueue.clear();
+        CrtpPacket packet;
+        while ((packet = mInQueue.poll()) != null) {
+            CrtpPacketPool.release(packet);
+        }
+        notifyDisconnected();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public void sendPacket(CrtpPacket packet) {
+        if (!mConnected) {
+            CrtpPacketPool.release(packet);
+            return;
+        }
+        try {
+            CrtpPacket dropped = this.mOutQueue.offer(packet);
+            if (dropped != null) {
+                CrtpPacketPool.release(dropped);
+            }
+        } catch (InterruptedException e) {
+            mLogger.error("InterruptedException: " + e.getMessage());
+            CrtpPacketPool.release(packet);
+            return;
+        }
+        Thread thread = mSimulationThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /*
+     * @param time time to wait in seconds, like RadioDriver
+     */
+    @Override
+    public CrtpPacket receivePacket(int time) {
+        try {
+            return mInQueue.poll((long) time, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            // keep the flag, so that the receiving thread can stop
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Print text on the console of the simulated Crazyflie
+     *
+     * @param text text to print
+     */
+    public void printConsole(String text) {
+        try {
+            mConsoleQueue.offer(text);
+        } catch (InterruptedException e) {
+            // does not block with DROP_OLDEST
+            Thread.currentThread().interrupt();
+        }
+        Thread thread = mSimulationThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Set the one-way latency of the link. Can be changed while connected.
+     *
+     * @param latencyUs latency in microseconds
+     */
+    public void setLatency(long latencyUs) {
+        if (latencyUs < 0) {
+            throw new IllegalArgumentException("Latency must not be negative");
+        }
+        this.mLatencyNs = TimeUnit.MICROSECONDS.toNanos(latencyUs);
+    }
+
+    public long getLatency() {
+        return TimeUnit.NANOSECONDS.toMicros(mLatencyNs);
+    }
+
+    /**
+     * Set the probability that an exchange is lost. Can be changed while connected.
+     *
+     * @param lossRate loss rate between 0 and 1
+     */
+    public void setLossRate(double lossRate) {
+        if (lossRate < 0 || lossRate >= 1) {
+            throw new IllegalArgumentException("Loss rate must be >= 0 and < 1");
+        }
+        this.mLossRate = lossRate;
+    }
+
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    /**
+     * Set the max number of exchanges per second. Can be changed while connected.
+     *
+     * @param bandwidth exchanges per second, 0 for unlimited
+     */
+    public void setBandwidth(int bandwidth) {
+        if (bandwidth < 0) {
+            throw new IllegalArgumentException("Bandwidth must not be negative");
+        }
+        this.mBandwidth = bandwidth;
+    }
+
+    public int getBandwidth() {
+        return mBandwidth;
+    }
+
+    /**
+     * Set how often a lost exchange is retried before the sent packet is dropped
+     *
+     * @param retries number of retries (auto retransmit count)
+     */
+    public void setRetries(int retries) {
+        if (retries < 0 || retries > 15) {
+            throw new IllegalArgumentException("Retries must be between 0 and 15");
+        }
+        this.mRetries = retries;
+    }
+
+    public int getRetries() {
+        return mRetries;
+    }
+
+    public int getLogTocSize() {
+        return mFirmware.getLogTocSize();
+    }
+
+    public int getParamTocSize() {
+        return mFirmware.getParamTocSize();
+    }
+
+    /**
+     * @return number of exchanges, including retries
+     */
+    public long getExchangeCount() {
+        return mExchangeCount;
+    }
+
+    /**
+     * @return number of retried exchanges
+     */
+    public long getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * @return number of packets that reached the simulated Crazyflie
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return number of sent packets that were dropped after the last retry
+     */
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    /**
+     * @return number of packets received from the simulated Crazyflie
+     */
+    public long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return number of packets the simulated Crazyflie dropped because its TX queue was full
+     */
+    public long getTxDropCount() {
+        return mTxDropCount;
+    }
+
+    /**
+     * @return scheduler of the outgoing packets
+     */
+    public OutgoingPacketScheduler getOutgoingScheduler() {
+        return mOutQueue;
+    }
+
+    /**
+     * Fixed size FIFO of packets with a time stamp. Only used by the simulation thread.
+     */
+    /* package private */ static final class TimedQueue {
+
+        private final CrtpPacket[] mPackets;
+        private final long[] mTimes;
+        private int mHead = 0;
+        private int mSize = 0;
+        private long mDropCount = 0;
+
+        TimedQueue(int capacity) {
+            this.mPackets = new CrtpPacket[capacity];
+            this.mTimes = new long[capacity];
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        boolean isFull() {
+            return mSize == mPackets.length;
+        }
+
+        void add(CrtpPacket packet, long time) {
+            if (isFull()) {
+                throw new IllegalStateException("Queue is full");
+            }
+            int index = (mHead + mSize) % mPackets.length;
+            mPackets[index] = packet;
+            mTimes[index] = time;
+            mSize++;
+        }
+
+        long peekTime() {
+            return mTimes[mHead];
+        }
+
+        CrtpPacket poll() {
+            CrtpPacket packet = mPackets[mHead];
+            mPackets[mHead] = null;
+            mHead = (mHead + 1) % mPackets.length;
+            mSize--;
+            return packet;
+        }
+
+        void countDrop() {
+            mDropCount++;
+        }
+
+        long getDropCount() {
+            return mDropCount;
+        }
+
+        void clear() {
+            while (!isEmpty()) {
+                CrtpPacketPool.release(poll());
+            }
+        }
+    }
+
+    /**
+     * Runs the radio link and the firmware of the simulated Crazyflie
+     */
+    private class SimulationThread implements Runnable {
+
+        // packets on the way to the Crazyflie, time stamped with their arrival
+        private final TimedQueue mUplink = new TimedQueue(RadioDriver.DEFAULT_OUT_QUEUE_CAPACITY);
+        // TX queue of the Crazyflie, time stamped with the time the packet was queued
+        private final TimedQueue mDownlink = new TimedQueue(TX_QUEUE_SIZE);
+        private final Random mRandom = new Random(mSeed);
+
+        private CrtpPacket mInFlight = null;
+        private int mAttempt = 0;
+        private long mNextExchange;
+
+        public void run() {
+            long now = System.nanoTime();
+            mFirmware.reset(now);
+            mNextExchange = now;
+            mFirmware.printConsole(BOOT_MESSAGE, now, mDownlink);
+            try {
+                while (mConnected && !Thread.currentThread().isInterrupted()) {
+                    now = System.nanoTime();
+                    long nextEvent = runFirmware(now);
+                    if (mNextExchange - now <= 0) {
+                        if (exchange(now)) {
+                            int bandwidth = mBandwidth;
+                            mNextExchange = (bandwidth > 0) ? mNextExchange + TimeUnit.SECONDS.toNanos(1) / bandwidth : now;
+                            // no burst after an idle period
+                            if (now - mNextExchange > TimeUnit.MILLISECONDS.toNanos(1)) {
+                                mNextExchange = now;
+                            }
+                            continue;
+                        }
+                    } else {
+                        nextEvent = Math.min(nextEvent, mNextExchange);
+                    }
+                    if (!mDownlink.isEmpty()) {
+                        nextEvent = Math.min(nextEvent, mDownlink.peekTime() + mLatencyNs);
+                    }
+                    if (!mUplink.isEmpty()) {
+                        nextEvent = Math.min(nextEvent, mUplink.peekTime());
+                    }
+                    // woken up by sendPacket() and printConsole()
+                    long wait = Math.min(nextEvent - now, TimeUnit.MILLISECONDS.toNanos(10));
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            } finally {
+                if (mInFlight != null) {
+                    CrtpPacketPool.release(mInFlight);
+                    mInFlight = null;
+                }
+                mUplink.clear();
+                mDownlink.clear();
+            }
+        }
+
+        /**
+         * Let the firmware handle the packets that arrived and produce its log data and console output
+         *
+         * @return System.nanoTime() of the next log data
+         */
+        private long runFirmware(long now) {
+            while (!mUplink.isEmpty() && mUplink.peekTime() - now <= 0) {
+                CrtpPacket packet = mUplink.poll();
+                mFirmware.handlePacket(packet, now, mDownlink);
+                CrtpPacketPool.release(packet);
+            }
+            String text;
+            while ((text = mConsoleQueue.poll()) != null) {
+                mFirmware.printConsole(text, now, mDownlink);
+            }
+            long nextLogData = mFirmware.pollLogData(now, mDownlink);
+            mTxDropCount = mDownlink.getDropCount();
+            return nextLogData;
+        }
+
+        /**
+         * @return false if there was nothing to exchange
+         */
+        private boolean exchange(long now) {
+            if (mInFlight == null && !mUplink.isFull()) {
+                mInFlight = mOutQueue.poll();
+            }
+            boolean ackPayload = !mDownlink.isEmpty() && mDownlink.peekTime() + mLatencyNs - now <= 0;
+            if (mInFlight == null && !ackPayload) {
+                // the radio would send a poll here, which does not change anything
+                return false;
+            }
+            mExchangeCount++;
+            if (mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+                mRetryCount++;
+                mAttempt++;
+                if (mAttempt > mRetries) {
+                    if (mInFlight != null) {
+                        mLostCount++;
+                        CrtpPacketPool.release(mInFlight);
+                        mInFlight = null;
+                    }
+                    mAttempt = 0;
+                    notifyLinkQualityUpdated(0);
+                }
+                return true;
+            }
+            notifyLinkQualityUpdated((mRetries + 1 - mAttempt) * 100 / (mRetries + 1));
+            mAttempt = 0;
+            if (mInFlight != null) {
+                mUplink.add(mInFlight, now + mLatencyNs);
+                mInFlight = null;
+                mSentCount++;
+            }
+            if (ackPayload) {
+                mReceivedCount++;
+                try {
+                    CrtpPacket dropped = mInQueue.offer(mDownlink.poll());
+                    if (dropped != null) {
+                        CrtpPacketPool.release(dropped);
+                    }
+                } catch (InterruptedException e) {
+                    // does not block with DROP_OLDEST
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,519 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+
+package se.bitcraze.crazyflie.lib.sim;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacket.Header;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPacketPool;
+import se.bitcraze.crazyflie.lib.crtp.CrtpPort;
+
+/**
+ * Firmware side of the CRTP protocol, as far as the lib uses it:
+ * TOC info and element commands on the LOGGING and PARAMETERS ports (protocol version 1),
+ * param read/write, log block create/append/delete/start/stop/reset with periodic log data and console output.
+ *
+ * The TOCs are synthetic and generated from a seed, so two instances with the same seed are identical.
+ * Not thread safe, only used by the thread of the {@link SimulatedCrazyflieDriver}.
+ */
+class SimulatedFirmware {
+
+    // TOC count is sent as uint8
+    static final int MAX_TOC_SIZE = 255;
+
+    // see firmware log.c
+    static final int MAX_LOG_BLOCKS = 16;
+    static final int MAX_LOG_OPS = 128;
+    static final int MAX_LOG_DATA_SIZE = CrtpPacket.MAX_PACKET_SIZE - 1 - 4;
+
+    // error codes of the log control replies (see Logg.getErrorMsg())
+    static final int ENOENT = 2;
+    static final int E2BIG = 7;
+    static final int ENOEXEC = 8;
+    static final int ENOMEM = 12;
+    static final int EEXIST = 17;
+
+    private static final int CHAN_TOC = 0;
+    private static final int CHAN_LOG_SETTINGS = 1;
+    private static final int CHAN_LOG_DATA = 2;
+    private static final int CHAN_PARAM_READ = 1;
+    private static final int CHAN_PARAM_WRITE = 2;
+
+    private static final int CMD_TOC_ELEMENT = 0;
+    private static final int CMD_TOC_INFO = 1;
+
+    private static final int CMD_CREATE_BLOCK = 0;
+    private static final int CMD_APPEND_BLOCK = 1;
+    private static final int CMD_DELETE_BLOCK = 2;
+    private static final int CMD_START_BLOCK = 3;
+    private static final int CMD_STOP_BLOCK = 4;
+    private static final int CMD_RESET = 5;
+
+    private static final int TYPE_READ_ONLY = 0x40;
+
+    // log type ids: 1=uint8 ... 7=float, see Toc.fillVariableTypeMapLog()
+    private static final int[] LOG_TYPE_SIZES = {0, 1, 2, 4, 1, 2, 4, 4};
+    private static final int LOG_TYPE_FLOAT = 7;
+    // param type ids without the 64 bit types, see Toc.fillVariableTypeMapParam()
+    private static final int[] PARAM_TYPES = {0x00, 0x01, 0x02, 0x06, 0x08, 0x09, 0x0A};
+
+    private static final String[] GROUPS = {"stabilizer", "pm", "gyro", "acc", "baro", "motor", "kalman",
+            "ctrltarget", "pid_rate", "pid_attitude", "posCtl", "health", "sys", "radio", "ring", "flow"};
+
+    private static final Header CONSOLE_HEADER = Header.valueOf(0, CrtpPort.CONSOLE);
+    private static final Header LOG_SETTINGS_HEADER = Header.valueOf(CHAN_LOG_SETTINGS, CrtpPort.LOGGING);
+    private static final Header LOG_DATA_HEADER = Header.valueOf(CHAN_LOG_DATA, CrtpPort.LOGGING);
+
+    private final SyntheticToc mLogToc;
+    private final SyntheticToc mParamToc;
+    private final byte[][] mParamValues;
+
+    private final LogBlock[] mLogBlocks = new LogBlock[256];
+    private int mLogBlockCount = 0;
+    private int mLogOpCount = 0;
+
+    // [header, payload], reused for every reply
+    private final byte[] mTxBuffer = new byte[CrtpPacket.MAX_PACKET_SIZE];
+    private long mBootTime;
+
+    /**
+     * @param logTocSize number of log variables
+     * @param paramTocSize number of parameters
+     * @param seed seed of the generated TOCs and values
+     */
+    SimulatedFirmware(int logTocSize, int paramTocSize, long seed) {
+        if (logTocSize < 0 || logTocSize > MAX_TOC_SIZE || paramTocSize < 0 || paramTocSize > MAX_TOC_SIZE) {
+            throw new IllegalArgumentException("TOC size must be between 0 and " + MAX_TOC_SIZE);
+        }
+        Random random = new Random(seed);
+        this.mLogToc = new SyntheticToc(logTocSize);
+        for (int i = 0; i < logTocSize; i++) {
+            mLogToc.set(i, 1 + random.nextInt(LOG_TYPE_SIZES.length - 1), GROUPS[i % GROUPS.length], "var" + i);
+        }
+        this.mParamToc = new SyntheticToc(paramTocSize);
+        this.mParamValues = new byte[paramTocSize][];
+        for (int i = 0; i < paramTocSize; i++) {
+            int type = PARAM_TYPES[random.nextInt(PARAM_TYPES.length)];
+            if (random.nextInt(4) == 0) {
+                type |= TYPE_READ_ONLY;
+            }
+            mParamToc.set(i, type, GROUPS[i % GROUPS.length], "param" + i);
+            mParamValues[i] = new byte[getParamSize(type)];
+            // any bit pattern is a valid value, except for NaN floats
+            ByteBuffer bb = ByteBuffer.wrap(mParamValues[i]).order(CrtpPacket.BYTE_ORDER);
+            if ((type & 0x0F) == 0x06) {
+                bb.putFloat(random.nextFloat() * 100);
+            } else {
+                random.nextBytes(mParamValues[i]);
+            }
+        }
+        mLogToc.finish();
+        mParamToc.finish();
+    }
+
+    /**
+     * Reset the state of the firmware, like a reboot.
+     *
+     * @param now System.nanoTime() of the boot
+     */
+    void reset(long now) {
+        this.mBootTime = now;
+        resetLogBlocks();
+    }
+
+    int getLogTocSize() {
+        return mLogToc.mSize;
+    }
+
+    int getParamTocSize() {
+        return mParamToc.mSize;
+    }
+
+    int getLogTocCrc() {
+        return mLogToc.mCrc;
+    }
+
+    int getParamTocCrc() {
+        return mParamToc.mCrc;
+    }
+
+    /**
+     * @return number of created log blocks
+     */
+    int getLogBlockCount() {
+        return mLogBlockCount;
+    }
+
+    /**
+     * Handle a packet sent to the Crazyflie
+     *
+     * @param packet received packet
+     * @param now System.nanoTime() of the reception
+     * @param out queue for the replies
+     */
+    void handlePacket(CrtpPacket packet, long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        Header header = packet.getHeader();
+        byte[] payload = packet.getPayload();
+        if (header.getPort() == CrtpPort.LOGGING) {
+            if (header.getChannel() == CHAN_TOC) {
+                handleTocPacket(mLogToc, header, payload, now, out);
+            } else if (header.getChannel() == CHAN_LOG_SETTINGS && payload.length > 0) {
+                handleLogSettingsPacket(payload, now, out);
+            }
+        } else if (header.getPort() == CrtpPort.PARAMETERS) {
+            if (header.getChannel() == CHAN_TOC) {
+                handleTocPacket(mParamToc, header, payload, now, out);
+            } else if (header.getChannel() == CHAN_PARAM_READ && payload.length > 0) {
+                int ident = payload[0] & 0xff;
+                if (ident < mParamToc.mSize) {
+                    sendParamValue(header, ident, now, out);
+                }
+            } else if (header.getChannel() == CHAN_PARAM_WRITE && payload.length > 0) {
+                int ident = payload[0] & 0xff;
+                if (ident < mParamToc.mSize) {
+                    byte[] value = mParamValues[ident];
+                    if ((mParamToc.mTypes[ident] & TYPE_READ_ONLY) == 0 && payload.length - 1 == value.length) {
+                        System.arraycopy(payload, 1, value, 0, value.length);
+                    }
+                    // the reply contains the value after the write
+                    sendParamValue(header, ident, now, out);
+                }
+            }
+        }
+        // commander, link control etc. are only acked
+    }
+
+    /**
+     * Queue the data of all log blocks that are due
+     *
+     * @param now System.nanoTime()
+     * @param out queue for the log data, log data is dropped if it is full
+     * @return System.nanoTime() when the next log block is due, Long.MAX_VALUE if no block is started
+     */
+    long pollLogData(long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        long nextDue = Long.MAX_VALUE;
+        for (int id = 0; id < mLogBlocks.length && mLogBlockCount > 0; id++) {
+            LogBlock block = mLogBlocks[id];
+            if (block == null || !block.mStarted) {
+                continue;
+            }
+            if (block.mNextDue - now <= 0) {
+                sendLogData(id, block, now, out);
+                block.mNextDue += block.mPeriodNs;
+                // don't try to catch up after a stall
+                if (block.mNextDue - now <= 0) {
+                    block.mNextDue = now + block.mPeriodNs;
+                }
+            }
+            nextDue = Math.min(nextDue, block.mNextDue);
+        }
+        return nextDue;
+    }
+
+    /**
+     * Queue console output, split in packets of max 30 characters like the firmware does
+     *
+     * @param text text to print
+     * @param now System.nanoTime()
+     * @param out queue for the console packets
+     */
+    void printConsole(String text, long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        byte[] bytes = text.getBytes();
+        int maxChunk = CrtpPacket.MAX_PACKET_SIZE - 2;
+        for (int offset = 0; offset < bytes.length; offset += maxChunk) {
+            int length = Math.min(maxChunk, bytes.length - offset);
+            mTxBuffer[0] = CONSOLE_HEADER.getByte();
+            System.arraycopy(bytes, offset, mTxBuffer, 1, length);
+            send(1 + length, now, out);
+        }
+    }
+
+    private void handleTocPacket(SyntheticToc toc, Header header, byte[] payload, long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        if (payload.length == 0) {
+            return;
+        }
+        mTxBuffer[0] = header.getByte();
+        if (payload[0] == CMD_TOC_INFO) {
+            // [cmd, count, crc (uint32)] + [max packets, max ops] for logging
+            ByteBuffer bb = ByteBuffer.wrap(mTxBuffer, 1, mTxBuffer.length - 1).order(CrtpPacket.BYTE_ORDER);
+            bb.put((byte) CMD_TOC_INFO);
+            bb.put((byte) toc.mSize);
+            bb.putInt(toc.mCrc);
+            if (toc == mLogToc) {
+                bb.put((byte) MAX_LOG_BLOCKS);
+                bb.put((byte) MAX_LOG_OPS);
+            }
+            send(bb.position(), now, out);
+        } else if (payload[0] == CMD_TOC_ELEMENT && payload.length > 1) {
+            int index = payload[1] & 0xff;
+            if (index < toc.mSize) {
+                byte[] element = toc.mElements[index];
+                mTxBuffer[1] = (byte) CMD_TOC_ELEMENT;
+                System.arraycopy(element, 0, mTxBuffer, 2, element.length);
+                send(2 + element.length, now, out);
+            }
+        }
+    }
+
+    private void handleLogSettingsPacket(byte[] payload, long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        int cmd = payload[0];
+        if (cmd == CMD_RESET) {
+            resetLogBlocks();
+            sendLogReply(cmd, 0, 0, now, out);
+            return;
+        }
+        if (payload.length < 2) {
+            return;
+        }
+        int id = payload[1] & 0xff;
+        LogBlock block = mLogBlocks[id];
+        int error = 0;
+        switch (cmd) {
+            case CMD_CREATE_BLOCK:
+                if (block != null) {
+                    error = EEXIST;
+                } else if (mLogBlockCount >= MAX_LOG_BLOCKS) {
+                    error = ENOMEM;
+                } else {
+                    block = new LogBlock();
+                    error = appendVariables(block, payload);
+                    if (error == 0) {
+                        mLogBlocks[id] = block;
+                        mLogBlockCount++;
+                    }
+                }
+                break;
+            case CMD_APPEND_BLOCK:
+                error = (block == null) ? ENOENT : appendVariables(block, payload);
+                break;
+            case CMD_DELETE_BLOCK:
+                if (block == null) {
+                    error = ENOENT;
+                } else {
+                    mLogBlocks[id] = null;
+                    mLogBlockCount--;
+                    mLogOpCount -= block.mCount;
+                }
+                break;
+            case CMD_START_BLOCK:
+                if (block == null) {
+                    error = ENOENT;
+                } else if (payload.length < 3 || (payload[2] & 0xff) == 0) {
+                    error = E2BIG;
+                } else {
+                    // period in 10ms units
+                    block.mPeriodNs = TimeUnit.MILLISECONDS.toNanos((payload[2] & 0xff) * 10L);
+                    block.mNextDue = now + block.mPeriodNs;
+                    block.mStarted = true;
+                }
+                break;
+            case CMD_STOP_BLOCK:
+                if (block == null) {
+                    error = ENOENT;
+                } else {
+                    block.mStarted = false;
+                }
+                break;
+            default:
+                error = ENOEXEC;
+                break;
+        }
+        sendLogReply(cmd, id, error, now, out);
+    }
+
+    /**
+     * Add the (type, ident) pairs of a create or append command to the block.
+     * Variables are only added if all of them fit.
+     */
+    private int appendVariables(LogBlock block, byte[] payload) {
+        int count = block.mCount;
+        int size = block.mDataSize;
+        // Logg.create() pads the packet with zeros, type 0 does not exist
+        for (int i = 2; i + 1 < payload.length && payload[i] != 0; i += 2) {
+            int type = payload[i] & 0x0F;
+            int ident = payload[i + 1] & 0xff;
+            if (type >= LOG_TYPE_SIZES.length || ident >= mLogToc.mSize) {
+                return ENOENT;
+            }
+            if (count == block.mTypes.length) {
+                return E2BIG;
+            }
+            size += LOG_TYPE_SIZES[type];
+            if (size > MAX_LOG_DATA_SIZE) {
+                return E2BIG;
+            }
+            if (mLogOpCount + count - block.mCount >= MAX_LOG_OPS) {
+                return ENOMEM;
+            }
+            block.mTypes[count] = type;
+            block.mIdents[count] = ident;
+            count++;
+        }
+        mLogOpCount += count - block.mCount;
+        block.mCount = count;
+        block.mDataSize = size;
+        return 0;
+    }
+
+    private void resetLogBlocks() {
+        for (int i = 0; i < mLogBlocks.length; i++) {
+            mLogBlocks[i] = null;
+        }
+        mLogBlockCount = 0;
+        mLogOpCount = 0;
+    }
+
+    private void sendLogReply(int cmd, int id, int error, long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        mTxBuffer[0] = LOG_SETTINGS_HEADER.getByte();
+        mTxBuffer[1] = (byte) cmd;
+        mTxBuffer[2] = (byte) id;
+        mTxBuffer[3] = (byte) error;
+        send(4, now, out);
+    }
+
+    private void sendParamValue(Header header, int ident, long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        byte[] value = mParamValues[ident];
+        mTxBuffer[0] = header.getByte();
+        mTxBuffer[1] = (byte) ident;
+        System.arraycopy(value, 0, mTxBuffer, 2, value.length);
+        send(2 + value.length, now, out);
+    }
+
+    private void sendLogData(int id, LogBlock block, long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        long timeMs = TimeUnit.NANOSECONDS.toMillis(now - mBootTime);
+        ByteBuffer bb = ByteBuffer.wrap(mTxBuffer).order(CrtpPacket.BYTE_ORDER);
+        bb.put(LOG_DATA_HEADER.getByte());
+        bb.put((byte) id);
+        // 24 bit timestamp in ms
+        bb.put((byte) timeMs);
+        bb.put((byte) (timeMs >> 8));
+        bb.put((byte) (timeMs >> 16));
+        for (int i = 0; i < block.mCount; i++) {
+            int ident = block.mIdents[i];
+            // one sine wave per variable, so that plots look plausible
+            double value = Math.sin(timeMs / 1000.0 + ident) * 100;
+            switch (block.mTypes[i]) {
+                case LOG_TYPE_FLOAT:
+                    bb.putFloat((float) value);
+                    break;
+                default:
+                    putInt(bb, LOG_TYPE_SIZES[block.mTypes[i]], (int) value);
+                    break;
+            }
+        }
+        send(bb.position(), now, out);
+    }
+
+    private static void putInt(ByteBuffer bb, int size, int value) {
+        if (size == 1) {
+            bb.put((byte) value);
+        } else if (size == 2) {
+            bb.putShort((short) value);
+        } else {
+            bb.putInt(value);
+        }
+    }
+
+    private void send(int length, long now, SimulatedCrazyflieDriver.TimedQueue out) {
+        if (out.isFull()) {
+            out.countDrop();
+            return;
+        }
+        out.add(CrtpPacketPool.acquire(mTxBuffer, 0, length), now);
+    }
+
+    private static int getParamSize(int type) {
+        switch (type & 0x0F) {
+            case 0x00:
+            case 0x08:
+                return 1;
+            case 0x01:
+            case 0x09:
+                return 2;
+            case 0x03:
+            case 0x07:
+            case 0x0B:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    private static final class LogBlock {
+        final int[] mTypes = new int[MAX_LOG_DATA_SIZE];
+        final int[] mIdents = new int[MAX_LOG_DATA_SIZE];
+        int mCount = 0;
+        int mDataSize = 0;
+        boolean mStarted = false;
+        long mPeriodNs;
+        long mNextDue;
+    }
+
+    /**
+     * Encoded TOC elements: [ident, type, group\0name\0]
+     */
+    private static final class SyntheticToc {
+        final int mSize;
+        final byte[][] mElements;
+        final int[] mTypes;
+        int mCrc;
+
+        SyntheticToc(int size) {
+            this.mSize = size;
+            this.mElements = new byte[size][];
+            this.mTypes = new int[size];
+        }
+
+        void set(int ident, int type, String group, String name) {
+            byte[] groupBytes = group.getBytes();
+            byte[] nameBytes = name.getBytes();
+            byte[] element = new byte[2 + groupBytes.length + 1 + nameBytes.length + 1];
+            element[0] = (byte) ident;
+            element[1] = (byte) type;
+            System.arraycopy(groupBytes, 0, element, 2, groupBytes.length);
+            System.arraycopy(nameBytes, 0, element, 3 + groupBytes.length, nameBytes.length);
+            mElements[ident] = element;
+            mTypes[ident] = type;
+        }
+
+        void finish() {
+            CRC32 crc = new CRC32();
+            for (byte[] element : mElements) {
+                crc.update(element);
+            }
+            mCrc = (int) crc.getValue();
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.toc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Load time of a cached TOC: the indented JSON files TocCache wrote before compared with {@link TocCacheFile}.
+ *
+ * Both formats are loaded the way TocCache does it, JSON with a shared ObjectMapper into the element map
+ * of a new Toc, the binary file through a memory-mapped FileChannel. Run {@link #main(String[])} to print the results.
+ */
+public class TocCacheFileBenchmark {
+
+    public static final int TOC_SIZE = 500;
+    public static final int LOADS = 2000;
+    public static final int RUNS = 3;
+
+    private static final VariableType[] TYPES = {VariableType.UINT8_T, VariableType.INT16_T, VariableType.UINT32_T,
+            VariableType.FLOAT, VariableType.INT8_T, VariableType.UINT16_T};
+    private static final int CRC = 0x12345678;
+
+    private final ObjectMapper mMapper = new ObjectMapper();
+    private final File mJsonFile;
+    private final File mBinaryFile;
+
+    public TocCacheFileBenchmark(File directory) throws IOException {
+        Toc toc = new Toc();
+        toc.setCrc(CRC);
+        for (int i = 0; i < TOC_SIZE; i++) {
+            TocElement element = new TocElement();
+            element.setIdent(i);
+            element.setGroup("group" + (i / 10));
+            element.setName("variable" + i);
+            element.setCtype(TYPES[i % TYPES.length]);
+            element.setAccess((i % 3 == 0) ? TocElement.RO_ACCESS : TocElement.RW_ACCESS);
+            toc.addElement(element);
+        }
+        mJsonFile = new File(directory, String.format("%08X.json", CRC));
+        mBinaryFile = new File(directory, String.format("%08X", CRC) + TocCacheFile.FILE_EXTENSION);
+
+        ObjectMapper writer = new ObjectMapper();
+        writer.enable(SerializationFeature.INDENT_OUTPUT);
+        writer.writeValue(mJsonFile, toc.getTocElementMap());
+        TocCacheFile.write(mBinaryFile, CRC, toc);
+    }
+
+    /**
+     * One way to load the cached TOC
+     */
+    private interface Loader {
+        Toc load() throws IOException;
+    }
+
+    private class JsonLoader implements Loader {
+        public Toc load() throws IOException {
+            Toc toc = new Toc();
+            Map<String, TocElement> readValue = mMapper.readValue(mJsonFile, new TypeReference<Map<String, TocElement>>() { });
+            toc.setTocElementMap(readValue);
+            return toc;
+        }
+    }
+
+    private class BinaryLoader implements Loader {
+        public Toc load() throws IOException {
+            return TocCacheFile.read(mBinaryFile, CRC);
+        }
+    }
+
+    /**
+     * @return mean load time in microseconds
+     */
+    private double run(Loader loader) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < LOADS; i++) {
+            Toc toc = loader.load();
+            if (toc.getTocSize() != TOC_SIZE) {
+                throw new IllegalStateException("Loaded " + toc.getTocSize() + " of " + TOC_SIZE + " elements");
+            }
+        }
+        return (System.nanoTime() - start) / 1e3 / LOADS;
+    }
+
+    private void print(String name, Loader loader, File file) throws IOException {
+        System.out.println(String.format("  %-22s %8.1f us/load  %6d bytes", name, run(loader), file.length()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        File directory = File.createTempFile("cflib-toc", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            TocCacheFileBenchmark benchmark = new TocCacheFileBenchmark(directory);
+            Loader json = benchmark.new JsonLoader();
+            Loader binary = benchmark.new BinaryLoader();
+
+            // a cold load, e.g. the first connect after the app was started
+            long start = System.nanoTime();
+            json.load();
+            long jsonCold = System.nanoTime() - start;
+            start = System.nanoTime();
+            binary.load();
+            long binaryCold = System.nanoTime() - start;
+            System.out.println(TOC_SIZE + " elements, first load: json " + jsonCold / 1000 + " us, binary " + binaryCold / 1000 + " us");
+
+            System.out.println(LOADS + " loads per run");
+            // first run warms up the JIT
+            benchmark.run(json);
+            benchmark.run(binary);
+            for (int r = 0; r < RUNS; r++) {
+                benchmark.print("json", json, benchmark.mJsonFile);
+                benchmark.print("binary", binary, benchmark.mBinaryFile);
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+/**
+ *    ||          ____  _ __
+ * +------+      / __ )(_) /_______________ _____  ___
+ * | 0xBC |     / __  / / __/ ___/ ___/ __ `/_  / / _ \
+ * +------+    / /_/ / / /_/ /__/ /  / /_/ / / /_/  __/
+ *  ||  ||    /_____/_/\__/\___/_/   \__,_/ /___/\___/
+ *
+ * Copyright (C) 2018 Bitcraze AB
+ *
+ * Crazyflie Nano Quadcopter Client
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ */
+
+
+package se.bitcraze.crazyflie.lib.usb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.hardware.usb.UsbDevice;
+
+/**
+ * Crazyradio stand-in for tests.
+ *
+ * Keeps the channel, data rate, address and retry count that were set with control transfers.
+ * Bulk transfers are answered by the {@link Responder} registered for the current channel, data rate
+ * and address, transfers to a target without responder are not acked.
+ */
+public class MockUsbInterface implements CrazyUsbInterface {
+
+    // control transfer requests, see Crazyradio
+    public static final int SET_RADIO_CHANNEL = 0x01;
+    public static final int SET_RADIO_ADDRESS = 0x02;
+    public static final int SET_DATA_RATE = 0x03;
+    public static final int SET_RADIO_ARC = 0x06;
+
+    private static final int MAX_PAYLOAD = 32;
+
+    /**
+     * A simulated Crazyflie
+     */
+    public interface Responder {
+        /**
+         * @param dataOut packet sent by the dongle
+         * @param ackPayload buffer for the payload of the ack (32 bytes)
+         * @return length of the ack payload, -1 if the transfer is not acked
+         */
+        int respond(byte[] dataOut, byte[] ackPayload);
+    }
+
+    /** Acks every packet without payload */
+    public static final Responder EMPTY_ACK = new Responder() {
+        public int respond(byte[] dataOut, byte[] ackPayload) {
+            return 0;
+        }
+    };
+
+    private final Map<String, Responder> mResponders = new HashMap<String, Responder>();
+    private final Map<String, Integer> mExchangeCounts = new HashMap<String, Integer>();
+    private final List<String> mExchanges = new ArrayList<String>();
+    private final int[] mControlTransferCounts = new int[256];
+    private final byte[] mAckPayload = new byte[MAX_PAYLOAD];
+    private boolean mRecordExchanges = false;
+    private volatile boolean mConnected = true;
+
+    private int mChannel = -1;
+    private int mDatarate = -1;
+    private int mArc = -1;
+    private byte[] mAddress = null;
+    private long mBulkTransferCount = 0;
+
+    /**
+     * Set the Crazyflie that answers on the given channel, data rate and address
+     *
+     * @param responder the Crazyflie or null to remove it
+     */
+    public synchronized void setResponder(int channel, int datarate, byte[] address, Responder responder) {
+        String key = toKey(channel, datarate, address);
+        if (responder == null) {
+            mResponders.remove(key);
+        } else {
+            mResponders.put(key, responder);
+        }
+    }
+
+    /**
+     * Record the target of every bulk transfer, see {@link #getExchanges()}
+     */
+    public synchronized void setRecordExchanges(boolean recordExchanges) {
+        this.mRecordExchanges = recordExchanges;
+        mExchanges.clear();
+    }
+
+    public void setConnected(boolean connected) {
+        this.mConnected = connected;
+    }
+
+    public void initDevice(int usbVid, int usbPid) {
+    }
+
+    public void releaseInterface() {
+    }
+
+    public boolean isUsbConnected() {
+        return mConnected;
+    }
+
+    public synchronized int sendControlTransfer(int requestType, int request, int value, int index, byte[] data) {
+        mControlTransferCounts[request & 0xFF]++;
+        switch (request) {
+            case SET_RADIO_CHANNEL:
+                mChannel = value;
+                break;
+            case SET_RADIO_ADDRESS:
+                mAddress = data.clone();
+                break;
+            case SET_DATA_RATE:
+                mDatarate = value;
+                break;
+            case SET_RADIO_ARC:
+                mArc = value;
+                break;
+            default:
+                break;
+        }
+        return 0;
+    }
+
+    public synchronized int sendBulkTransfer(byte[] data, byte[] receiveData) {
+        mBulkTransferCount++;
+        String key = toKey(mChannel, mDatarate, mAddress);
+        Integer count = mExchangeCounts.get(key);
+        mExchangeCounts.put(key, count == null ? 1 : count + 1);
+        if (mRecordExchanges) {
+            mExchanges.add(key);
+        }
+        Responder responder = mResponders.get(key);
+        int length = (responder != null) ? responder.respond(data, mAckPayload) : -1;
+        if (length < 0) {
+            receiveData[0] = 0;
+            return 1;
+        }
+        receiveData[0] = 0x01;
+        System.arraycopy(mAckPayload, 0, receiveData, 1, length);
+        return length + 1;
+    }
+
+    public List<UsbDevice> findDevices(int usbVid, int usbPid) {
+        return new ArrayList<UsbDevice>();
+    }
+
+    public float getFirmwareVersion() {
+        return 0.53f;
+    }
+
+    public String getSerialNumber() {
+        return "MOCK";
+    }
+
+    public void bulkWrite(byte[] data) {
+    }
+
+    public byte[] bulkRead() {
+        return null;
+    }
+
+    public synchronized int getChannel() {
+        return mChannel;
+    }
+
+    public synchronized int getDatarate() {
+        return mDatarate;
+    }
+
+    public synchronized int getArc() {
+        return mArc;
+    }
+
+    public synchronized byte[] getAddress() {
+        return (mAddress != null) ? mAddress.clone() : null;
+    }
+
+    /**
+     * @param request e.g. {@link #SET_RADIO_CHANNEL}
+     * @return number of control transfers with this request
+     */
+    public synchronized int getControlTransferCount(int request) {
+        return mControlTransferCounts[request & 0xFF];
+    }
+
+    public synchronized long getBulkTransferCount() {
+        return mBulkTransferCount;
+    }
+
+    /**
+     * @return number of bulk transfers sent to this channel, data rate and address
+     */
+    public synchronized int getExchangeCount(int channel, int datarate, byte[] address) {
+        Integer count = mExchangeCounts.get(toKey(channel, datarate, address));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return targets of the recorded bulk transfers, see {@link #toKey(int, int, byte[])}
+     */
+    public synchronized List<String> getExchanges() {
+        return new ArrayList<String>(mExchanges);
+    }
+
+    /**
+     * @return key of a target, e.g. 80/2/E7E7E7E7E7
+     */
+    public static String toKey(int channel, int datarate, byte[] address) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(channel).append('/').append(datarate).append('/');
+        if (address != null) {
+            for (byte b : address) {
+                sb.append(String.format("%02X", b));
+            }
+        }
+        return sb.toString();
+    }
+
+}